@@ -0,0 +1,119 @@
+/*
+ * AcceptBenchmark.java
+ * Connections per second with one or more SO_REUSEPORT acceptors, by Westropp
+ */
+package jokes;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts a JokeServer with each --acceptors=1,4,16 count in a process of its
+ * own, since a server cannot be started twice in one JVM, and measures with
+ * BenchHarness:
+ * <pre>
+ *   accept.oneShot   a one-shot request on a new connection, so every request is an accept
+ * </pre>
+ * at every --threads=16 count. One acceptor is the single accept loop the
+ * others are measured against. Server options go in --server, separated by
+ * commas, for instance --server=--io=nio or --server=--exec=pool, and the
+ * BenchHarness options apply. No other server may be running on the usual
+ * ports.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.AcceptBenchmark -Dbench.args="--acceptors=1,4,16 --threads=16 --millis=2000"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class AcceptBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] acceptorCounts = {1, 4, 16};
+        int[] threadCounts = {16};
+        String server = "--log-level=warn";
+        for (String arg : args) {
+            if (arg.startsWith("--acceptors=")) {
+                acceptorCounts = counts(arg.substring("--acceptors=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threadCounts = counts(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--server=")) {
+                server = server + "," + arg.substring("--server=".length());
+            }
+        }
+        BenchHarness harness = new BenchHarness(args);
+        for (int acceptors : acceptorCounts) {
+            Process process = startServer(acceptors, server.split(","));
+            try {
+                for (int threads : threadCounts) {
+                    harness.run("accept.oneShot", "acceptors=" + acceptors, threads,
+                            (thread, i) -> HotPathBenchmark.oneShot("user" + thread));
+                }
+                HotPathBenchmark.stopServer();
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    throw new IOException("server with " + acceptors + " acceptors did not shut down");
+                }
+            } finally {
+                process.destroy();
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Parses a list of counts.
+     *
+     * @param list counts separated by commas
+     * @return the counts
+     */
+    private static int[] counts(String list) {
+        String[] counts = list.split(",");
+        int[] parsed = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            parsed[i] = Integer.parseInt(counts[i]);
+        }
+        return parsed;
+    }
+
+    /**
+     * Starts a server in a new JVM on this class path and waits for it to
+     * answer on the client port.
+     *
+     * @param acceptors number of acceptors
+     * @param options other server options
+     * @return the server process, its output passed on to this one
+     * @throws Exception if the server does not come up within ten seconds
+     */
+    private static Process startServer(int acceptors, String[] options) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("jokes.JokeServer");
+        command.add("--acceptors=" + acceptors);
+        for (String option : options) {
+            command.add(option);
+        }
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        for (int tries = 0; ; tries++) {
+            try (Socket admin = new Socket("localhost", 2565)) {
+                // a harmless command, so the admin worker has something to answer */
+                admin.getOutputStream().write("help\n".getBytes());
+                admin.getInputStream().readAllBytes();
+                // the client port is bound after the admin port */
+                HotPathBenchmark.oneShot("bench");
+                return process;
+            } catch (ConnectException x) {
+                if (tries >= 100 || !process.isAlive()) {
+                    process.destroy();
+                    throw x;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * BenchHarness.java
+ * Small timing harness for the Joke Server benchmarks, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * BenchHarness runs an operation in a loop on a number of threads for a fixed
+ * time per iteration, the way JMH measures throughput: a few warmup
+ * iterations that are thrown away for the JIT, then measured iterations, each
+ * on fresh threads released together by a barrier. Every thread checks the
+ * clock once per 16 operations, so reading the clock costs next to nothing.
+ * A result is the mean of the measured iterations in operations per second
+ * with the standard deviation between them, and the nanoseconds one
+ * operation takes a thread.
+ * <p>
+ * Results are written as CSV or as JSON lines, one object per result, so
+ * runs before and after a change can be compared by a script.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class BenchHarness {
+
+    /**
+     * One operation of a benchmark, run over and over by every thread.
+     */
+    interface Op {
+
+        /**
+         * Runs the operation once.
+         *
+         * @param thread index of the calling thread, 0 to threads - 1
+         * @param i how many times the thread has run it this iteration
+         * @throws Exception to fail the benchmark
+         */
+        void run(int thread, long i) throws Exception;
+    }
+
+    /**
+     * The measured result of one benchmark at one thread count.
+     */
+    static final class Result {
+
+        final String name; // name of the benchmark */
+        final String params; // parameters as name=value;name=value, or empty */
+        final int threads; // threads running the operation */
+        final double[] rates; // operations per second of each measured iteration */
+
+        /**
+         * Basic constructor for a result.
+         *
+         * @param name name of the benchmark
+         * @param params parameters of the run
+         * @param threads threads running the operation
+         * @param rates operations per second of each measured iteration
+         */
+        Result(String name, String params, int threads, double[] rates) {
+            this.name = name;
+            this.params = params;
+            this.threads = threads;
+            this.rates = rates;
+        }
+
+        /**
+         * Returns the mean rate over the measured iterations.
+         *
+         * @return operations per second
+         */
+        double mean() {
+            double sum = 0;
+            for (double rate : rates) {
+                sum += rate;
+            }
+            return sum / rates.length;
+        }
+
+        /**
+         * Returns the standard deviation of the rate between iterations.
+         *
+         * @return operations per second
+         */
+        double stddev() {
+            double mean = mean();
+            double sum = 0;
+            for (double rate : rates) {
+                sum += (rate - mean) * (rate - mean);
+            }
+            return rates.length < 2 ? 0 : Math.sqrt(sum / (rates.length - 1));
+        }
+
+        /**
+         * Returns the time one operation takes a thread.
+         *
+         * @return nanoseconds per operation
+         */
+        double nanosPerOp() {
+            return threads * 1e9 / mean();
+        }
+
+        /**
+         * Formats the result as a CSV line matching CSV_HEADER.
+         *
+         * @return CSV line
+         */
+        String csv() {
+            return name + "," + params + "," + threads + "," + rates.length + ","
+                    + String.format("%.1f,%.1f,%.1f", mean(), stddev(), nanosPerOp());
+        }
+
+        /**
+         * Formats the result as one JSON object.
+         *
+         * @return JSON line
+         */
+        String json() {
+            StringBuilder line = new StringBuilder();
+            line.append("{\"benchmark\":\"").append(name).append("\",\"params\":\"").append(params)
+                    .append("\",\"threads\":").append(threads).append(",\"iterations\":").append(rates.length)
+                    .append(String.format(",\"opsPerSec\":%.1f,\"stddev\":%.1f,\"nanosPerOp\":%.1f",
+                            mean(), stddev(), nanosPerOp()))
+                    .append(",\"rates\":[");
+            for (int i = 0; i < rates.length; i++) {
+                line.append(i > 0 ? "," : "").append(String.format("%.1f", rates[i]));
+            }
+            return line.append("]}").toString();
+        }
+    }
+
+    static final String CSV_HEADER = "benchmark,params,threads,iterations,opsPerSec,stddev,nanosPerOp";
+
+    private final int warmups; // iterations thrown away */
+    private final int iterations; // iterations measured */
+    private final long iterationMillis; // length of one iteration */
+    private final boolean json; // true for JSON lines, false for CSV */
+    private final PrintStream out; // where results go */
+    private boolean headed; // true once the CSV header is written */
+
+    /**
+     * Builds a harness from the common benchmark options --warmups,
+     * --iterations, --millis, --format=csv|json and --out=file; results go to
+     * stdout when --out is not given.
+     *
+     * @param args benchmark arguments, other options are left to the caller
+     * @throws IOException if the output file cannot be opened
+     */
+    BenchHarness(String[] args) throws IOException {
+        int warmups = 2;
+        int iterations = 5;
+        long millis = 1000;
+        String format = "csv";
+        String file = null;
+        for (String arg : args) {
+            if (arg.startsWith("--warmups=")) {
+                warmups = Integer.parseInt(arg.substring("--warmups=".length()));
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+            } else if (arg.startsWith("--millis=")) {
+                millis = Long.parseLong(arg.substring("--millis=".length()));
+            } else if (arg.startsWith("--format=")) {
+                format = arg.substring("--format=".length());
+            } else if (arg.startsWith("--out=")) {
+                file = arg.substring("--out=".length());
+            }
+        }
+        if (!format.equals("csv") && !format.equals("json")) {
+            throw new IllegalArgumentException("Unknown --format: " + format + " (expected csv or json)");
+        }
+        this.warmups = warmups;
+        this.iterations = Math.max(1, iterations);
+        this.iterationMillis = millis;
+        this.json = format.equals("json");
+        this.out = file == null ? System.out : new PrintStream(Files.newOutputStream(Paths.get(file)), true);
+    }
+
+    /**
+     * Measures an operation on a number of threads and writes the result.
+     *
+     * @param name name of the benchmark
+     * @param params parameters of the run, or empty
+     * @param threads threads running the operation
+     * @param op the operation
+     * @return the result
+     * @throws Exception if the operation fails
+     */
+    Result run(String name, String params, int threads, Op op) throws Exception {
+        double[] rates = new double[iterations];
+        for (int i = 0; i < warmups + iterations; i++) {
+            double rate = iteration(threads, op);
+            if (i >= warmups) {
+                rates[i - warmups] = rate;
+            }
+        }
+        Result result = new Result(name, params, threads, rates);
+        if (json) {
+            out.println(result.json());
+        } else {
+            if (!headed) {
+                out.println(CSV_HEADER);
+                headed = true;
+            }
+            out.println(result.csv());
+        }
+        out.flush();
+        return result;
+    }
+
+    /**
+     * Runs one iteration.
+     *
+     * @param threads threads running the operation
+     * @param op the operation
+     * @return operations per second over all threads
+     * @throws Exception if the operation fails
+     */
+    private double iteration(int threads, final Op op) throws Exception {
+        final long[] counts = new long[threads];
+        final Exception[] failures = new Exception[threads];
+        final long[] started = new long[1];
+        final CyclicBarrier start = new CyclicBarrier(threads, () -> started[0] = System.nanoTime());
+        final long length = iterationMillis * 1000000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                try {
+                    start.await();
+                    long deadline = started[0] + length;
+                    do {
+                        for (int k = 0; k < 16; k++) {
+                            op.run(thread, n++);
+                        }
+                    } while (System.nanoTime() < deadline);
+                } catch (Exception x) {
+                    failures[thread] = x;
+                }
+                counts[thread] = n;
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - started[0];
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            if (failures[t] != null) {
+                throw failures[t];
+            }
+            total += counts[t];
+        }
+        return total * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * ClientThroughputBenchmark.java
+ * Per-call sockets against the pooled asynchronous client, by Westropp
+ */
+package jokes;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fetches jokes from a JokeServer started in this JVM for --seconds each way
+ * and prints the fetches per second as CSV:
+ * <pre>
+ *   percall   a new socket per joke, the way JokeClient.connectToServer does it
+ *   blocking  AsyncJokeClient, each thread waiting on every fetch
+ *   window    AsyncJokeClient, each thread keeping --window fetches in flight
+ * </pre>
+ * every way on --threads threads, for --users users drawn in turn. The
+ * AsyncJokeClient ways run once for each of --protocol=text,binary, session
+ * lines against the BinaryProtocol. Options
+ * for the server go in --server, separated by commas; no other server may be
+ * running on the usual ports.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.ClientThroughputBenchmark -Dbench.args="--threads=16 --window=32 --seconds=5"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class ClientThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = 16;
+        int window = 32;
+        int seconds = 5;
+        int users = 1000;
+        int poolSize = 4;
+        String[] protocols = {"text", "binary"};
+        String server = "--log-level=warn";
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--window=")) {
+                window = Integer.parseInt(arg.substring("--window=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--pool-size=")) {
+                poolSize = Integer.parseInt(arg.substring("--pool-size=".length()));
+            } else if (arg.startsWith("--protocol=")) {
+                protocols = arg.substring("--protocol=".length()).split(",");
+            } else if (arg.startsWith("--server=")) {
+                server = server + "," + arg.substring("--server=".length());
+            }
+        }
+        HotPathBenchmark.startServer(server.split(","));
+        String[] names = HotPathBenchmark.userNames(users);
+        System.out.println("client,protocol,threads,window,poolSize,fetches,errors,seconds,fetchesPerSec");
+        // a short untimed run warms up the JIT on both sides */
+        run("percall", null, threads, 1, names, 1);
+        System.out.println(run("percall", null, threads, 1, names, seconds));
+        for (String protocol : protocols) {
+            try (AsyncJokeClient client = new AsyncJokeClient("localhost", 1699, poolSize, 5000, 2, 50,
+                    protocol.equals("binary"))) {
+                run("window", client, threads, window, names, 1);
+                System.out.println(run("blocking/" + protocol, client, threads, 1, names, seconds));
+                System.out.println(run("window/" + protocol, client, threads, window, names, seconds));
+            }
+        }
+        HotPathBenchmark.stopServer();
+        System.exit(0);
+    }
+
+    /**
+     * Runs one way of fetching.
+     *
+     * @param kind percall, or blocking or window and the protocol after a slash
+     * @param client pooled client, null for percall
+     * @param threads fetching threads
+     * @param window fetches each thread keeps in flight
+     * @param names user names to fetch for, in turn
+     * @param seconds length of the run
+     * @return CSV line with the result
+     */
+    static String run(final String kind, final AsyncJokeClient client, int threads, final int window,
+            final String[] names, int seconds) throws InterruptedException {
+        final LongAdder fetches = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t * 7919;
+            workers[t] = new Thread(() -> {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<?>[] inFlight = new CompletableFuture<?>[window];
+                for (long i = first; System.nanoTime() < deadline; ) {
+                    if (client == null) {
+                        try {
+                            HotPathBenchmark.oneShot(names[(int) (i++ % names.length)]);
+                            fetches.increment();
+                        } catch (Exception x) {
+                            errors.increment();
+                        }
+                        continue;
+                    }
+                    for (int w = 0; w < window; w++) {
+                        inFlight[w] = client.next(names[(int) (i++ % names.length)]);
+                    }
+                    for (int w = 0; w < window; w++) {
+                        try {
+                            inFlight[w].join();
+                            fetches.increment();
+                        } catch (Exception x) {
+                            errors.increment();
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        long started = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - started) / 1e9;
+        return kind.replace('/', ',') + (client == null ? ",text" : "") + "," + threads + "," + window + "," + (client == null ? 0 : client.poolSize()) + "," + fetches.sum() + ","
+                + errors.sum() + "," + String.format("%.2f,%.1f", elapsed, fetches.sum() / elapsed);
+    }
+}
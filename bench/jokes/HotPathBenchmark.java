@@ -0,0 +1,259 @@
+/*
+ * HotPathBenchmark.java
+ * Baseline benchmarks of the Joke Server hot paths, by Westropp
+ */
+package jokes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures the hot paths of the server with BenchHarness, so a change can
+ * show its gain against a baseline run saved from before it:
+ * <pre>
+ *   status.takeNext     pick and mark the next unseen joke in one Status (was getCount and updateCount)
+ *   status.clear        start a user's round over (was flushArray)
+ *   catalog.render      render a joke for a user into a response buffer (was serviceHandler), and in UTF-8 for a binary frame
+ *   store.takeNext      pick through a striped and a locked store, users shared by all threads
+ *   worker.nextFor      the whole pick and render of a request through JokeServer's store
+ *   snapshot.roundTrip  write a store of --users users to a snapshot and read it back (was writeToDisk/readFromDisk)
+ *   loopback.oneShot    a one-shot request through the server's socket path, connection and all
+ *   loopback.session    a request on a keep-alive session through the server's socket path
+ * </pre>
+ * The loopback benchmarks start the server in this JVM on its usual ports
+ * (with the --server options, separated by commas) and shut it down through
+ * the admin port at the end, so no other server may be running. Pick the
+ * benchmarks with --include=prefix,prefix and the thread counts of the
+ * shared ones with --threads=1,4,16,64. The harness options --warmups,
+ * --iterations, --millis, --format=csv|json and --out=file apply to all.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.HotPathBenchmark -Dbench.args="--format=json --out=/tmp/baseline.json"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class HotPathBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String[] include = {""};
+        int[] threadCounts = {1, 4, 16, 64};
+        int users = 10000;
+        String server = "--log-level=warn";
+        for (String arg : args) {
+            if (arg.startsWith("--include=")) {
+                include = arg.substring("--include=".length()).split(",");
+            } else if (arg.startsWith("--threads=")) {
+                String[] counts = arg.substring("--threads=".length()).split(",");
+                threadCounts = new int[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    threadCounts[i] = Integer.parseInt(counts[i]);
+                }
+            } else if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--server=")) {
+                server = server + "," + arg.substring("--server=".length());
+            }
+        }
+        BenchHarness harness = new BenchHarness(args);
+        ServerLog.start(new ServerOptions(new String[]{"--log-level=warn"}));
+        JokeServer.setCatalogs(Catalog.builtInJokes(), Catalog.builtInProverbs());
+        final Catalog jokes = JokeServer.getCatalog(Status.JOKES);
+        String items = "items=" + jokes.size();
+
+        if (included(include, "status.takeNext")) {
+            final Status state = new Status("alice");
+            harness.run("status.takeNext", items, 1, (thread, i) -> state.takeNext(Status.JOKES));
+        }
+        if (included(include, "status.clear")) {
+            final Status state = new Status("alice");
+            harness.run("status.clear", items, 1, (thread, i) -> {
+                state.markSeen(Status.JOKES, (int) i % jokes.size());
+                state.clear(Status.JOKES);
+            });
+        }
+        if (included(include, "catalog.render")) {
+            final ResponseBuffer out = new ResponseBuffer();
+            out.setUser("alice");
+            harness.run("catalog.render", items, 1, (thread, i) -> {
+                jokes.renderTo((int) i % jokes.size(), out);
+                out.endLine();
+                out.reset();
+            });
+            out.setUserUtf8("alice");
+            harness.run("catalog.render", items + ";charset=UTF-8", 1, (thread, i) -> {
+                jokes.renderUtf8((int) i % jokes.size(), out);
+                out.reset();
+            });
+        }
+        if (included(include, "store.takeNext")) {
+            for (String kind : new String[]{"striped", "locked"}) {
+                for (int threads : threadCounts) {
+                    final UserStateStore store = kind.equals("striped")
+                            ? new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES)
+                            : new UserStateStore.Locked();
+                    final String[] names = userNames(1024);
+                    harness.run("store.takeNext", "store=" + kind + ";users=1024", threads,
+                            (thread, i) -> store.takeNext(names[(int) ((thread * 7919L + i) & 1023)], Status.JOKES));
+                }
+            }
+        }
+        if (included(include, "worker.nextFor")) {
+            for (int threads : threadCounts) {
+                final String[] names = userNames(1024);
+                final ResponseBuffer[] buffers = new ResponseBuffer[threads];
+                for (int t = 0; t < threads; t++) {
+                    buffers[t] = new ResponseBuffer();
+                }
+                harness.run("worker.nextFor", "users=1024", threads, (thread, i) -> {
+                    String userName = names[(int) ((thread * 7919L + i) & 1023)];
+                    ResponseBuffer out = buffers[thread];
+                    out.setUser(userName);
+                    Worker.nextFor(userName, ServerConfig.current(), out);
+                    out.reset();
+                });
+            }
+        }
+        if (included(include, "snapshot.roundTrip")) {
+            final UserStateStore store = new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES);
+            String[] names = userNames(users);
+            for (int u = 0; u < users; u++) {
+                store.takeNext(names[u], Status.JOKES);
+                store.takeNext(names[u], Status.PROVERBS);
+            }
+            final Path file = Files.createTempFile("jokes-bench", ".snapshot");
+            file.toFile().deleteOnExit();
+            harness.run("snapshot.roundTrip", "users=" + users, 1, (thread, i) -> {
+                StateSnapshots.write(store, file);
+                StateSnapshots.read(file, new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES));
+            });
+        }
+        if (included(include, "loopback.")) {
+            startServer(server.split(","));
+            if (included(include, "loopback.oneShot")) {
+                for (int threads : threadCounts) {
+                    harness.run("loopback.oneShot", "", threads, (thread, i) -> oneShot("user" + thread));
+                }
+            }
+            if (included(include, "loopback.session")) {
+                for (int threads : threadCounts) {
+                    final JokeClient.KeepAliveConnection[] sessions = new JokeClient.KeepAliveConnection[threads];
+                    for (int t = 0; t < threads; t++) {
+                        sessions[t] = new JokeClient.KeepAliveConnection("localhost", 1699, "session" + t);
+                    }
+                    harness.run("loopback.session", "", threads, (thread, i) -> {
+                        if (sessions[thread].next() == null) {
+                            throw new IOException("server closed the session");
+                        }
+                    });
+                    for (JokeClient.KeepAliveConnection session : sessions) {
+                        session.close();
+                    }
+                }
+            }
+            stopServer();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Checks whether a benchmark was asked for.
+     *
+     * @param include prefixes from --include
+     * @param name name of the benchmark
+     * @return true if a prefix matches, or the name starts with one
+     */
+    static boolean included(String[] include, String name) {
+        for (String prefix : include) {
+            if (name.startsWith(prefix) || prefix.startsWith(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes user names.
+     *
+     * @param n number of users
+     * @return user0 to user n - 1
+     */
+    static String[] userNames(int n) {
+        String[] names = new String[n];
+        for (int i = 0; i < n; i++) {
+            names[i] = "user" + i;
+        }
+        return names;
+    }
+
+    /**
+     * Sends one one-shot request and reads the answer to its end.
+     *
+     * @param userName name of user
+     * @throws IOException if the server cannot be reached
+     */
+    static void oneShot(String userName) throws IOException {
+        try (Socket sock = new Socket("localhost", 1699)) {
+            PrintStream toServer = new PrintStream(sock.getOutputStream());
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            toServer.println(userName);
+            toServer.flush();
+            while (fromServer.readLine() != null) {
+                // read to the end of the answer */
+            }
+        }
+    }
+
+    /**
+     * Starts JokeServer in this JVM and waits until it accepts connections.
+     *
+     * @param options server options
+     * @throws Exception if it does not come up within ten seconds
+     */
+    static void startServer(final String[] options) throws Exception {
+        Thread server = new Thread(() -> {
+            try {
+                JokeServer.main(options);
+            } catch (IOException x) {
+                x.printStackTrace();
+            }
+        }, "bench-server");
+        server.setDaemon(true);
+        server.start();
+        for (int tries = 0; ; tries++) {
+            try (Socket admin = new Socket("localhost", 2565)) {
+                // a harmless command, so the admin worker has something to answer */
+                admin.getOutputStream().write("help\n".getBytes());
+                admin.getInputStream().readAllBytes();
+                // the client port is bound after the admin port and any front ends */
+                oneShot("bench");
+                return;
+            } catch (ConnectException x) {
+                if (tries == 100) {
+                    throw x;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Shuts the server down the way the admin client does, then wakes both
+     * accept loops so they see it.
+     */
+    static void stopServer() throws IOException {
+        try (Socket admin = new Socket("localhost", 2565)) {
+            PrintStream toServer = new PrintStream(admin.getOutputStream());
+            toServer.println("shutdown");
+            toServer.flush();
+            admin.getInputStream().readAllBytes();
+        }
+        oneShot("bench");
+        new Socket("localhost", 2565).close();
+    }
+}
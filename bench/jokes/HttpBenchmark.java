@@ -0,0 +1,168 @@
+/*
+ * HttpBenchmark.java
+ * HTTP front end against the socket protocol, by Westropp
+ */
+package jokes;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Starts a JokeServer with its HTTP front end in this JVM and fetches jokes
+ * at the same client concurrency, one thread per connection, every way:
+ * <pre>
+ *   socket.oneShot   a new socket per joke on the line protocol
+ *   socket.session   a keep-alive session per thread on the line protocol
+ *   http.close       a new connection per GET /joke, Connection: close
+ *   http.keepAlive   a kept-alive HTTP/1.1 connection per thread
+ * </pre>
+ * The HTTP requests are written and parsed by hand, so the numbers are the
+ * server's and not an HTTP client library's. Thread counts go in
+ * --threads=1,4,16, the HTTP port in --http-port and the server options in
+ * --server, separated by commas; the BenchHarness options apply as well. No
+ * other server may be running on the usual ports.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.HttpBenchmark -Dbench.args="--threads=1,4,16 --millis=1000"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class HttpBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 4, 16};
+        int httpPort = 8080;
+        String server = "--log-level=warn";
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                String[] counts = arg.substring("--threads=".length()).split(",");
+                threadCounts = new int[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    threadCounts[i] = Integer.parseInt(counts[i]);
+                }
+            } else if (arg.startsWith("--http-port=")) {
+                httpPort = Integer.parseInt(arg.substring("--http-port=".length()));
+            } else if (arg.startsWith("--server=")) {
+                server = server + "," + arg.substring("--server=".length());
+            }
+        }
+        BenchHarness harness = new BenchHarness(args);
+        HotPathBenchmark.startServer((server + ",--http-port=" + httpPort).split(","));
+        final int port = httpPort;
+        for (int threads : threadCounts) {
+            harness.run("socket.oneShot", "", threads, (thread, i) -> HotPathBenchmark.oneShot("user" + thread));
+        }
+        for (int threads : threadCounts) {
+            final JokeClient.KeepAliveConnection[] sessions = new JokeClient.KeepAliveConnection[threads];
+            for (int t = 0; t < threads; t++) {
+                sessions[t] = new JokeClient.KeepAliveConnection("localhost", 1699, "user" + t);
+            }
+            harness.run("socket.session", "", threads, (thread, i) -> {
+                if (sessions[thread].next() == null) {
+                    throw new IOException("server closed the session");
+                }
+            });
+            for (JokeClient.KeepAliveConnection session : sessions) {
+                session.close();
+            }
+        }
+        for (int threads : threadCounts) {
+            harness.run("http.close", "", threads, (thread, i) -> {
+                try (HttpConnection conn = new HttpConnection(port)) {
+                    conn.get("/joke?user=user" + thread, true);
+                }
+            });
+        }
+        for (int threads : threadCounts) {
+            final HttpConnection[] conns = new HttpConnection[threads];
+            for (int t = 0; t < threads; t++) {
+                conns[t] = new HttpConnection(port);
+            }
+            harness.run("http.keepAlive", "", threads, (thread, i) -> conns[thread].get("/joke?user=user" + thread, false));
+            for (HttpConnection conn : conns) {
+                conn.close();
+            }
+        }
+        HotPathBenchmark.stopServer();
+        System.exit(0);
+    }
+
+    /**
+     * A bare HTTP/1.1 connection to the front end.
+     */
+    static final class HttpConnection implements AutoCloseable {
+
+        private final Socket sock;
+        private final OutputStream toServer;
+        private final InputStream fromServer;
+
+        /**
+         * Opens the connection.
+         *
+         * @param port HTTP port of the server
+         * @throws IOException if the server cannot be reached
+         */
+        HttpConnection(int port) throws IOException {
+            sock = new Socket("localhost", port);
+            sock.setTcpNoDelay(true);
+            toServer = sock.getOutputStream();
+            fromServer = new BufferedInputStream(sock.getInputStream());
+        }
+
+        /**
+         * Sends a GET and reads the whole answer.
+         *
+         * @param target path and query
+         * @param close true to ask the server to close the connection after
+         * @return body of the answer
+         * @throws IOException if the answer is not a 200 or is cut off
+         */
+        String get(String target, boolean close) throws IOException {
+            toServer.write(("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + (close ? "Connection: close\r\n" : "") + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            toServer.flush();
+            String status = readLine();
+            if (status == null || !status.startsWith("HTTP/1.1 200")) {
+                throw new IOException("bad answer: " + status);
+            }
+            int length = 0;
+            for (String header; (header = readLine()) != null && !header.isEmpty(); ) {
+                if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    length = Integer.parseInt(header.substring(15).trim());
+                }
+            }
+            byte[] body = fromServer.readNBytes(length);
+            if (body.length < length) {
+                throw new IOException("answer cut off");
+            }
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Reads one header line.
+         *
+         * @return line without its CRLF, or null at the end of the stream
+         */
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int b; (b = fromServer.read()) != '\n'; ) {
+                if (b < 0) {
+                    return null;
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            sock.close();
+        }
+    }
+}
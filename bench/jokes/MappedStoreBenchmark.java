@@ -0,0 +1,125 @@
+/*
+ * MappedStoreBenchmark.java
+ * Heap footprint and throughput of the heap and off-heap user state stores, by Westropp
+ */
+package jokes;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Fills a striped store and a mapped store with the same users, then runs
+ * takeNext on users picked at random from several threads, and prints the
+ * heap used after a collection, the fill and pick rates and, for the mapped
+ * store, how long it takes to map the file again, as CSV lines. Run it once
+ * per store kind so the heap numbers do not mix.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.MappedStoreBenchmark -Dbench.args="--store=mapped --users=4000000" -Dbench.jvmargs=-Xmx4g
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class MappedStoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String kind = "mapped";
+        int users = 1000000;
+        int threads = 4;
+        int seconds = 5;
+        Path file = Paths.get(System.getProperty("java.io.tmpdir"), "jokes-bench.state");
+        for (String arg : args) {
+            if (arg.startsWith("--store=")) {
+                kind = arg.substring("--store=".length());
+            } else if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            } else if (arg.startsWith("--file=")) {
+                file = Paths.get(arg.substring("--file=".length()));
+            }
+        }
+        Files.deleteIfExists(file);
+        long baseline = heapUsed();
+        UserStateStore store = kind.equals("mapped")
+                ? new MappedStateStore(file, users, 48, UserStateStore.Striped.DEFAULT_STRIPES)
+                : new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            store.takeNext("user" + i, Status.JOKES);
+        }
+        long fillNanos = System.nanoTime() - started;
+        long heap = heapUsed() - baseline;
+
+        final UserStateStore shared = store;
+        final int population = users;
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final long[] picks = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int me = t;
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                long seed = 0x9e3779b97f4a7c15L * (me + 1);
+                while ((n & 255) != 0 || System.nanoTime() < end) {
+                    seed = seed * 6364136223846793005L + 1442695040888963407L;
+                    shared.takeNext("user" + (int) ((seed >>> 33) % population), Status.JOKES);
+                    n++;
+                }
+                picks[me] = n;
+            });
+            workers[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += picks[t];
+        }
+
+        long reopenMillis = -1;
+        long fileBytes = 0;
+        int wrong = 0;
+        if (store instanceof MappedStateStore) {
+            store.close();
+            fileBytes = Files.size(file);
+            started = System.nanoTime();
+            MappedStateStore reopened = new MappedStateStore(file, users, 48, UserStateStore.Striped.DEFAULT_STRIPES);
+            reopenMillis = (System.nanoTime() - started) / 1000000;
+            for (int i = 0; i < users; i += Math.max(1, users / 1000)) {
+                if (!reopened.contains("user" + i)) {
+                    wrong++;
+                }
+            }
+            if (reopened.size() != users) {
+                wrong++;
+            }
+            Files.deleteIfExists(file);
+        }
+
+        System.out.println("store,users,threads,heapBytes,heapBytesPerUser,fillUsersPerSec,picksPerSec,"
+                + "fileBytes,reopenMillis,mismatches");
+        System.out.println(kind + "," + users + "," + threads + "," + heap + "," + heap / Math.max(1, users)
+                + "," + SnapshotBenchmark.perSecond(users, fillNanos) + "," + total / seconds
+                + "," + fileBytes + "," + reopenMillis + "," + wrong);
+        if (wrong != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Returns the heap in use after asking for a few collections.
+     *
+     * @return bytes of heap used
+     */
+    static long heapUsed() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
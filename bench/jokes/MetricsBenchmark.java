@@ -0,0 +1,93 @@
+/*
+ * MetricsBenchmark.java
+ * Cost of recording a latency on the request path, by Westropp
+ */
+package jokes;
+
+/**
+ * Records latencies from several threads at once into one LatencyHistogram,
+ * with a single stripe that every thread shares and with the stripes the
+ * server uses, next to a loop that only reads the clock, and prints the
+ * wall time per record over all the threads as CSV. The difference between the
+ * clock loop and a histogram is what the metrics add to every stage of a
+ * request.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.MetricsBenchmark -Dbench.args="--threads=16 --records=2000000"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class MetricsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = 16;
+        int records = 2000000;
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--records=")) {
+                records = Integer.parseInt(arg.substring("--records=".length()));
+            }
+        }
+        int striped = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+        System.out.println("recorder,stripes,threads,recordsPerThread,millis,nanosPerRecord");
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT, only the second is printed */
+            String clock = run("clock", null, threads, records);
+            String shared = run("histogram", new LatencyHistogram(1), threads, records);
+            String spread = run("histogram", new LatencyHistogram(striped), threads, records);
+            if (round == 1) {
+                System.out.println(clock);
+                System.out.println(shared);
+                System.out.println(spread);
+            }
+        }
+    }
+
+    /**
+     * Runs one way of recording.
+     *
+     * @param kind clock or histogram
+     * @param histogram histogram to record into, null to only read the clock
+     * @param threads number of recording threads
+     * @param records records each thread makes
+     * @return CSV line with the result
+     */
+    static String run(String kind, final LatencyHistogram histogram, int threads, final int records)
+            throws InterruptedException {
+        final long[] sink = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int slot = t;
+            workers[t] = new Thread(() -> {
+                long last = System.nanoTime();
+                long sum = 0;
+                for (int i = 0; i < records; i++) {
+                    long now = System.nanoTime();
+                    if (histogram != null) {
+                        histogram.record(now - last);
+                    } else {
+                        sum += now - last;
+                    }
+                    last = now;
+                }
+                sink[slot] = sum;
+            });
+        }
+        long started = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long nanos = System.nanoTime() - started;
+        int stripes = 0;
+        if (histogram != null) {
+            stripes = histogram.stripes();
+        }
+        long total = (long) threads * records;
+        return kind + "," + stripes + "," + threads + "," + records + "," + nanos / 1000000 + ","
+                + String.format("%.1f", (double) nanos / total);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * SelectionBenchmark.java
+ * Cost of picking the next unseen joke as the catalog grows, by Westropp
+ */
+package jokes;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks jokes for one user round after round, with the walk Status.takeNext
+ * uses now and with the probing it replaced (two random guesses, then a
+ * search from the first joke), for catalogs of 5 to 1M jokes. Prints one CSV
+ * line per catalog size and way of picking with the nanoseconds per pick,
+ * timed on a second run after a first one to warm up, and checks that every
+ * full round handed out every joke exactly once. For catalogs of up to 1000
+ * jokes it also draws the second pick of many fresh users and prints the
+ * chi-square of those draws over its degrees of freedom, which stays near 1
+ * for a uniform pick. Each way gets --seconds per size, so probing may not
+ * finish a round on the big catalogs; roundsDone shows how far it got.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.SelectionBenchmark -Dbench.args="--sizes=5,64,1000,100000,1000000 --rounds=3"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class SelectionBenchmark {
+
+    static int failures; // full rounds that handed a joke out other than once */
+
+    public static void main(String[] args) {
+        String sizes = "5,64,1000,10000,100000,1000000";
+        int rounds = 3;
+        int seconds = 5;
+        for (String arg : args) {
+            if (arg.startsWith("--sizes=")) {
+                sizes = arg.substring("--sizes=".length());
+            } else if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            }
+        }
+        System.out.println("picker,items,picks,roundsDone,nanosPerPick,repeats,secondPickChiSquare");
+        for (String size : sizes.split(",")) {
+            Status.jokeCount = Integer.parseInt(size.trim());
+            for (boolean walk : new boolean[]{true, false}) {
+                // the first run warms up the code for this catalog size */
+                run(walk, rounds, seconds);
+                System.out.println(run(walk, rounds, seconds));
+            }
+        }
+        if (failures != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Picks rounds x items jokes for one user, and at least 2M so the small
+     * catalogs are timed after warming up, or as many as fit in the time
+     * given.
+     *
+     * @param walk true for Status.takeNext, false for probing
+     * @param rounds full rounds to pick
+     * @param seconds most time to spend
+     * @return CSV line with the result
+     */
+    static String run(boolean walk, int rounds, int seconds) {
+        int items = Status.jokeCount;
+        Status state = new Status("bench");
+        int[] delivered = new int[items];
+        long total = Math.max((long) rounds * items, 2000000L / items * items);
+        long deadline = System.nanoTime() + seconds * 1000000000L;
+        long picks = 0;
+        int repeats = 0;
+        long started = System.nanoTime();
+        while (picks < total && ((picks & 1023) != 0 || System.nanoTime() < deadline)) {
+            delivered[walk ? state.takeNext(Status.JOKES) : probe(state)]++;
+            if (++picks % items == 0) {
+                // a round is over, every joke must have gone out exactly once */
+                for (int i = 0; i < items; i++) {
+                    if (delivered[i] != 1) {
+                        repeats++;
+                    }
+                    delivered[i] = 0;
+                }
+            }
+        }
+        long nanos = System.nanoTime() - started;
+        failures += repeats;
+        return (walk ? "walk" : "probe") + "," + items + "," + picks + "," + picks / items + ","
+                + nanos / Math.max(1, picks) + "," + repeats + "," + chiSquare(walk);
+    }
+
+    /**
+     * Picks the way the server did before the walk: two random guesses, then
+     * the first unseen joke from the start of the record.
+     *
+     * @param state state of the user
+     * @return index of the joke picked
+     */
+    static int probe(Status state) {
+        int size = Status.jokeCount;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = random.nextInt(size);
+        if (state.isSeen(Status.JOKES, count)) {
+            count = random.nextInt(size);
+            if (state.isSeen(Status.JOKES, count) && (count = state.nextUnseen(Status.JOKES, 0)) < 0) {
+                state.clear(Status.JOKES);
+                count = random.nextInt(size);
+            }
+        }
+        state.markSeen(Status.JOKES, count);
+        return count;
+    }
+
+    /**
+     * Draws the second pick of many fresh users, after a first pick that
+     * always takes joke 0, and returns the chi-square of where they fell
+     * over its degrees of freedom. The second pick is the one probing gets
+     * wrong: a second guess that lands on the first joke is thrown back.
+     *
+     * @param walk true for Status.takeNext, false for probing
+     * @return chi-square over degrees of freedom, or empty past 1000 jokes
+     */
+    static String chiSquare(boolean walk) {
+        int items = Status.jokeCount;
+        if (items > 1000) {
+            return "";
+        }
+        int trials = Math.min(200000, 200 * items);
+        int[] hits = new int[items];
+        for (int t = 0; t < trials; t++) {
+            Status state = new Status("bench");
+            state.markSeen(Status.JOKES, 0);
+            hits[walk ? state.takeNext(Status.JOKES) : probe(state)]++;
+        }
+        double expected = (double) trials / (items - 1);
+        double sum = 0;
+        for (int i = 1; i < items; i++) {
+            sum += (hits[i] - expected) * (hits[i] - expected) / expected;
+        }
+        return String.format("%.2f", sum / Math.max(1, items - 2));
+    }
+}
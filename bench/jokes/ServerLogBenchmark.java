@@ -0,0 +1,94 @@
+/*
+ * ServerLogBenchmark.java
+ * Cost of logging on the request path, by Westropp
+ */
+package jokes;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Logs the "user has connected." line from several threads at once, through
+ * a synchronized PrintStream the way the server used System.out and through
+ * ServerLog with each overflow policy, all to the same file, and prints the
+ * lines per second the logging threads got through and the lines dropped as
+ * CSV. The time is taken on the logging threads only, which is what a
+ * request pays.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.ServerLogBenchmark -Dbench.args="--threads=16 --lines=200000 --file=/tmp/bench.log"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class ServerLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = 16;
+        int lines = 200000;
+        int buffer = 8192;
+        String file = "/dev/null";
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--lines=")) {
+                lines = Integer.parseInt(arg.substring("--lines=".length()));
+            } else if (arg.startsWith("--buffer=")) {
+                buffer = Integer.parseInt(arg.substring("--buffer=".length()));
+            } else if (arg.startsWith("--file=")) {
+                file = arg.substring("--file=".length());
+            }
+        }
+        System.out.println("logger,threads,linesPerThread,millis,linesPerSec,dropped");
+        for (String kind : new String[]{"println", "drop", "block"}) {
+            System.out.println(run(kind, threads, lines, buffer, file));
+        }
+    }
+
+    /**
+     * Runs one way of logging.
+     *
+     * @param kind println, drop or block
+     * @param threads number of logging threads
+     * @param lines lines each thread logs
+     * @param buffer slots in the ring of ServerLog
+     * @param file file the lines go to
+     * @return CSV line with the result
+     */
+    static String run(String kind, int threads, final int lines, int buffer, String file)
+            throws IOException, InterruptedException {
+        final PrintStream console = kind.equals("println")
+                ? new PrintStream(new FileOutputStream(file, true), true) : null;
+        final ServerLog log = console == null ? new ServerLog(ServerLog.INFO, buffer, kind.equals("block"), file) : null;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final String userName = "user" + t;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < lines; i++) {
+                    if (console != null) {
+                        console.println(userName + " has connected.");
+                    } else {
+                        log.log(ServerLog.INFO, userName, " has connected.", null, null);
+                    }
+                }
+            });
+        }
+        long started = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long millis = Math.max(1, (System.nanoTime() - started) / 1000000);
+        String dropped = "0";
+        if (console != null) {
+            console.close();
+        } else {
+            log.stop();
+            dropped = String.valueOf(log.dropped());
+        }
+        long total = (long) threads * lines;
+        return kind + "," + threads + "," + lines + "," + millis + "," + total * 1000 / millis + "," + dropped;
+    }
+}
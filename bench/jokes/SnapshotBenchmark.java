@@ -0,0 +1,94 @@
+/*
+ * SnapshotBenchmark.java
+ * Save and restore throughput of the user state snapshots, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Fills a striped store with users who have each seen a few jokes and
+ * proverbs, saves it to a snapshot and restores it into a fresh store, and
+ * prints the time and throughput of both as a CSV line. The restored store is
+ * checked against the saved one user by user.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.SnapshotBenchmark -Dbench.args="--users=10000000" -Dbench.jvmargs=-Xmx4g
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int users = 10000000;
+        Path file = Paths.get(System.getProperty("java.io.tmpdir"), "jokes-bench.snap");
+        for (String arg : args) {
+            if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--file=")) {
+                file = Paths.get(arg.substring("--file=".length()));
+            } else if (arg.startsWith("--items=")) {
+                Status.jokeCount = Integer.parseInt(arg.substring("--items=".length()));
+                Status.proverbCount = Status.jokeCount;
+            }
+        }
+        UserStateStore saved = new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < users; i++) {
+            Status state = new Status("user" + i);
+            for (int seen = random.nextInt(4); seen > 0; seen--) {
+                state.markSeen(Status.JOKES, random.nextInt(Status.jokeCount));
+                state.markSeen(Status.PROVERBS, random.nextInt(Status.proverbCount));
+            }
+            saved.put(state.userName, state);
+        }
+
+        long started = System.nanoTime();
+        StateSnapshots.write(saved, file);
+        long saveNanos = System.nanoTime() - started;
+        long bytes = Files.size(file);
+
+        UserStateStore restored = new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES);
+        started = System.nanoTime();
+        long read = StateSnapshots.read(file, restored);
+        long loadNanos = System.nanoTime() - started;
+
+        int[] wrong = new int[1];
+        saved.forEach((userName, state) -> {
+            Status copy = restored.get(userName);
+            for (int i = 0; i < Status.jokeCount; i++) {
+                if (copy == null || copy.isSeen(Status.JOKES, i) != state.isSeen(Status.JOKES, i)
+                        || copy.isSeen(Status.PROVERBS, i) != state.isSeen(Status.PROVERBS, i)) {
+                    wrong[0]++;
+                    return;
+                }
+            }
+        });
+        Files.deleteIfExists(file);
+
+        System.out.println("users,items,fileBytes,bytesPerUser,saveMillis,saveUsersPerSec,saveMBPerSec,"
+                + "loadMillis,loadUsersPerSec,loadMBPerSec,mismatches");
+        System.out.println(users + "," + Status.jokeCount + "," + bytes + "," + (bytes / Math.max(1, users))
+                + "," + saveNanos / 1000000 + "," + perSecond(users, saveNanos) + "," + perSecond(bytes >> 20, saveNanos)
+                + "," + loadNanos / 1000000 + "," + perSecond(read, loadNanos) + "," + perSecond(bytes >> 20, loadNanos)
+                + "," + wrong[0]);
+        if (read != users || wrong[0] != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Turns a count over some nanoseconds into a rate per second.
+     *
+     * @param count things done
+     * @param nanos time taken
+     * @return things per second
+     */
+    static long perSecond(long count, long nanos) {
+        return count * 1000000000L / Math.max(1, nanos);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * StateLogBenchmark.java
+ * Cost of the write-ahead log on the request path, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Runs takeNext on a striped store from several threads with no log and with
+ * the log under each sync policy, and prints the picks per second as CSV.
+ * After each run the log is replayed into a fresh store, which must end with
+ * the same seen records as the store it was written from.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.StateLogBenchmark -Dbench.args="--threads=16 --seconds=5"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class StateLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = 16;
+        int users = 10000;
+        int seconds = 5;
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(arg.substring("--seconds=".length()));
+            }
+        }
+        System.out.println("policy,threads,users,seconds,picks,picksPerSec,logBytes,replayMismatches");
+        for (String policy : new String[]{"none", "never", "interval", "batch"}) {
+            System.out.println(run(policy, threads, users, seconds));
+        }
+    }
+
+    /**
+     * Runs one policy against a fresh store and log directory.
+     *
+     * @param policy none, never, interval or batch
+     * @param threads number of threads
+     * @param users number of users the picks are spread over
+     * @param seconds how long to run
+     * @return CSV line with the result
+     */
+    static String run(String policy, int threads, final int users, int seconds) throws Exception {
+        Path dir = Files.createTempDirectory("jokes-wal");
+        final UserStateStore store = new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES);
+        StateLog log = null;
+        if (!policy.equals("none")) {
+            log = new StateLog(dir.resolve("log"), policy, 10);
+            log.open(store);
+            store.setLog(log);
+        }
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final long[] picks = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int me = t;
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                int user = me;
+                while ((n & 255) != 0 || System.nanoTime() < end) {
+                    store.takeNext("user" + user, Status.JOKES);
+                    user = (user + 7919) % users;
+                    n++;
+                }
+                picks[me] = n;
+            });
+            workers[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += picks[t];
+        }
+        long bytes = 0;
+        int mismatches = 0;
+        if (log != null) {
+            store.setLog(null);
+            log.close();
+            UserStateStore replayed = new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES);
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                    bytes += Files.size(file);
+                    StateLog.replay(file, replayed);
+                }
+            }
+            int[] wrong = new int[1];
+            store.forEach((userName, state) -> {
+                Status copy = replayed.get(userName);
+                for (int i = 0; i < Status.jokeCount; i++) {
+                    if (copy == null || copy.isSeen(Status.JOKES, i) != state.isSeen(Status.JOKES, i)) {
+                        wrong[0]++;
+                        return;
+                    }
+                }
+            });
+            mismatches = wrong[0];
+        }
+        delete(dir);
+        return policy + "," + threads + "," + users + "," + seconds + "," + total + "," + (total / seconds)
+                + "," + bytes + "," + mismatches;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param dir directory to delete
+     */
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
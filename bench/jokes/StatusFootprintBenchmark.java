@@ -0,0 +1,158 @@
+/*
+ * StatusFootprintBenchmark.java
+ * Heap footprint of the stored user states, by Westropp
+ */
+package jokes;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Measures the heap used by the user state map at a given number of users,
+ * for the bitset Status and for the old layout of two Boolean[5] arrays per
+ * user. Every run fills a HashMap the same way JokeServer does, so the
+ * difference between the layouts is the cost of the Status objects alone.
+ * <p>
+ * With no arguments it runs every layout at 1M and 10M users, each in its own
+ * JVM so one run cannot leave garbage behind for the next. Give --layout=bitset
+ * or --layout=legacy and --users=N to run a single measurement in this JVM.
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class StatusFootprintBenchmark {
+
+    /**
+     * The Status layout before the bitsets, kept here for comparison.
+     */
+    static class LegacyStatus {
+
+        String userName;
+        Boolean[] userJokes;
+        Boolean[] userProverbs;
+
+        LegacyStatus(String user) {
+            userName = user;
+            userJokes = flush(new Boolean[5]);
+            userProverbs = flush(new Boolean[5]);
+        }
+
+        static Boolean[] flush(Boolean[] record) {
+            for (int i = 0; i < 5; i++) {
+                record[i] = false;
+            }
+            return record;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String layout = null;
+        int users = 0;
+        String heap = "-Xmx3g";
+        for (String arg : args) {
+            if (arg.startsWith("--layout=")) {
+                layout = arg.substring("--layout=".length());
+            } else if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--heap=")) {
+                heap = "-Xmx" + arg.substring("--heap=".length());
+            }
+        }
+        if (layout != null) {
+            measure(layout, users > 0 ? users : 1000000);
+            return;
+        }
+        int[] counts = users > 0 ? new int[]{users} : new int[]{1000000, 10000000};
+        System.out.println("layout,users,heapBytes,bytesPerUser");
+        for (int count : counts) {
+            for (String each : new String[]{"none", "legacy", "bitset"}) {
+                System.out.println(fork(each, count, heap));
+            }
+        }
+    }
+
+    /**
+     * Runs one measurement in a fresh JVM.
+     *
+     * @param layout none, legacy or bitset
+     * @param users number of users to store
+     * @param heap -Xmx option for the child JVM
+     * @return CSV line printed by the child
+     */
+    static String fork(String layout, int users, String heap) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add(heap);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(StatusFootprintBenchmark.class.getName());
+        command.add("--layout=" + layout);
+        command.add("--users=" + users);
+        Process child = new ProcessBuilder(command).redirectErrorStream(true).start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream()));
+        String line;
+        String last = "";
+        while ((line = out.readLine()) != null) {
+            last = line;
+        }
+        child.waitFor();
+        return last;
+    }
+
+    /**
+     * Fills a user state map and prints the heap it holds as a CSV line. The
+     * layout none stores the user name only, as the baseline of the map and
+     * key cost.
+     *
+     * @param layout none, legacy or bitset
+     * @param users number of users to store
+     */
+    static void measure(String layout, int users) {
+        long before = usedHeap();
+        HashMap<String, Object> states = new HashMap<>();
+        for (int i = 0; i < users; i++) {
+            String userName = "user" + i;
+            Object state;
+            switch (layout) {
+                case "legacy":
+                    state = new LegacyStatus(userName);
+                    break;
+                case "bitset":
+                    state = new Status(userName);
+                    break;
+                default:
+                    state = userName;
+                    break;
+            }
+            states.put(userName, state);
+        }
+        long used = usedHeap() - before;
+        System.out.println(layout + "," + users + "," + used + "," + (used / users));
+        if (states.size() != users) {
+            throw new IllegalStateException("lost users");
+        }
+    }
+
+    /**
+     * Returns the heap in use after a few rounds of garbage collection.
+     *
+     * @return bytes of heap in use
+     */
+    static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
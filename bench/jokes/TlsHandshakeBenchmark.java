@@ -0,0 +1,205 @@
+/*
+ * TlsHandshakeBenchmark.java
+ * Cost of the TLS handshake with and without session resumption, by Westropp
+ */
+package jokes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Starts a JokeServer with --tls in this JVM, its key generated into a
+ * temporary directory, and measures with BenchHarness:
+ * <pre>
+ *   tls.full      a one-shot request on a new connection, its session thrown away so every one is a full handshake
+ *   tls.resumed   a one-shot request on a new connection that resumes the session of the one before
+ *   tls.session   a request on a keep-alive session over TLS, the handshake paid once
+ * </pre>
+ * at every --threads=1,4 count, then prints the server's handshake counters.
+ * Compare the one-shot rows with loopback.oneShot of HotPathBenchmark for
+ * the same request with no TLS. Server options go in --server, separated by
+ * commas, and the BenchHarness options apply. No other server may be running
+ * on the usual ports.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.TlsHandshakeBenchmark -Dbench.args="--threads=1,4 --millis=1000"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class TlsHandshakeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 4};
+        String server = "--log-level=warn";
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                String[] counts = arg.substring("--threads=".length()).split(",");
+                threadCounts = new int[counts.length];
+                for (int i = 0; i < counts.length; i++) {
+                    threadCounts[i] = Integer.parseInt(counts[i]);
+                }
+            } else if (arg.startsWith("--server=")) {
+                server = server + "," + arg.substring("--server=".length());
+            }
+        }
+        BenchHarness harness = new BenchHarness(args);
+        Path dir = Files.createTempDirectory("jokes-tls");
+        Path keystore = dir.resolve(TlsSupport.KEYSTORE);
+        final Path certificate = dir.resolve(TlsSupport.CERTIFICATE);
+        keystore.toFile().deleteOnExit();
+        certificate.toFile().deleteOnExit();
+        dir.toFile().deleteOnExit();
+        final String[] options = (server + ",--tls,--keystore=" + keystore).split(",");
+        Thread main = new Thread(() -> {
+            try {
+                JokeServer.main(options);
+            } catch (IOException x) {
+                x.printStackTrace();
+            }
+        }, "bench-server");
+        main.setDaemon(true);
+        main.start();
+        final SocketFactory sockets = startedSockets(certificate);
+
+        for (int threads : threadCounts) {
+            harness.run("tls.full", "", threads, (thread, i) -> {
+                SSLSocket sock = oneShot(sockets, "user" + thread);
+                sock.getSession().invalidate(); // the next connection cannot resume it */
+            });
+        }
+        for (int threads : threadCounts) {
+            harness.run("tls.resumed", "", threads, (thread, i) -> oneShot(sockets, "user" + thread));
+        }
+        for (int threads : threadCounts) {
+            final Session[] sessions = new Session[threads];
+            for (int t = 0; t < threads; t++) {
+                sessions[t] = new Session(sockets, "session" + t);
+            }
+            harness.run("tls.session", "", threads, (thread, i) -> sessions[thread].next());
+            for (Session session : sessions) {
+                session.sock.close();
+            }
+        }
+        System.out.println(admin(sockets, "tls"));
+        admin(sockets, "shutdown");
+        try {
+            oneShot(sockets, "bench"); // wakes the accept loop to see the shutdown */
+        } catch (IOException x) {
+            // it may be closed before the handshake */
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Waits for the server to make its key and answer on the admin port.
+     *
+     * @param certificate certificate the server exports
+     * @return factory of TLS sockets trusting it
+     * @throws Exception if the server does not come up within ten seconds
+     */
+    static SocketFactory startedSockets(Path certificate) throws Exception {
+        for (int tries = 0; ; tries++) {
+            try {
+                if (Files.exists(certificate)) {
+                    SocketFactory sockets = TlsSupport.clientSockets(new ServerOptions(
+                            new String[]{"--tls", "--tls-cert=" + certificate}));
+                    admin(sockets, "help");
+                    oneShot(sockets, "bench"); // the client port is bound after the admin port */
+                    return sockets;
+                }
+            } catch (ConnectException x) {
+                if (tries >= 100) {
+                    throw x;
+                }
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Sends one one-shot request and reads the answer to its end.
+     *
+     * @param sockets factory of TLS sockets
+     * @param userName name of user
+     * @return the closed socket, for its session
+     * @throws IOException if the request fails
+     */
+    static SSLSocket oneShot(SocketFactory sockets, String userName) throws IOException {
+        try (SSLSocket sock = (SSLSocket) sockets.createSocket("localhost", 1699)) {
+            PrintStream toServer = new PrintStream(sock.getOutputStream());
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            toServer.println(userName);
+            toServer.flush();
+            if (fromServer.readLine() == null) {
+                throw new IOException("no answer");
+            }
+            while (fromServer.readLine() != null) {
+                // read to the end of the answer */
+            }
+            return sock;
+        }
+    }
+
+    /**
+     * Sends one admin command.
+     *
+     * @param sockets factory of TLS sockets
+     * @param command admin command
+     * @return the answer
+     * @throws IOException if the admin port cannot be reached
+     */
+    static String admin(SocketFactory sockets, String command) throws IOException {
+        try (Socket sock = sockets.createSocket("localhost", 2565)) {
+            PrintStream toServer = new PrintStream(sock.getOutputStream());
+            toServer.println(command);
+            toServer.flush();
+            return new String(sock.getInputStream().readAllBytes()).trim();
+        }
+    }
+
+    /**
+     * A keep-alive session over TLS.
+     */
+    static final class Session {
+
+        final Socket sock;
+        private final BufferedReader fromServer;
+        private final PrintStream toServer;
+
+        /**
+         * Opens the connection and its session.
+         *
+         * @param sockets factory of TLS sockets
+         * @param userName name of user
+         * @throws IOException if the server cannot be reached
+         */
+        Session(SocketFactory sockets, String userName) throws IOException {
+            sock = sockets.createSocket("localhost", 1699);
+            fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            toServer = new PrintStream(sock.getOutputStream());
+            toServer.println(ClientSession.START + userName);
+            toServer.flush();
+        }
+
+        /**
+         * Asks for the next joke/proverb and waits for it.
+         *
+         * @throws IOException if the session is closed
+         */
+        void next() throws IOException {
+            toServer.println("next");
+            toServer.flush();
+            if (fromServer.readLine() == null) {
+                throw new IOException("server closed the session");
+            }
+        }
+    }
+}
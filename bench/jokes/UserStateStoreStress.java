@@ -0,0 +1,178 @@
+/*
+ * UserStateStoreStress.java
+ * Contention check of the user state stores, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Hammers a few users from many threads at once and checks that every user
+ * got every joke exactly once per round. Each user is asked for exactly
+ * rounds x items jokes, so with the pick and the mark done as one step every
+ * joke is delivered exactly rounds times and the user ends with every joke
+ * seen. A duplicate delivery shows up as a joke delivered more than rounds
+ * times, a lost update as the user not ending with every joke seen.
+ * <p>
+ * The phase next asks for one joke at a time, the phase batch for batches of
+ * --batch jokes. The store unsafe replays the way the server used to do it,
+ * check then get then change then store as separate steps, to show the check
+ * catches those races. The store evicting keeps only half the users resident
+ * and spills the rest to a mapped file, so users are faulted in and out all
+ * the time. Prints one CSV line per store and phase and exits with 1 if any
+ * store but unsafe fails.
+ * <pre>
+ *   ant bench -Dbench.class=jokes.UserStateStoreStress -Dbench.args="--threads=8 --users=4 --items=64 --rounds=500"
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class UserStateStoreStress {
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int threads = 8;
+        int users = 4;
+        int items = 64;
+        int rounds = 500;
+        int batch = 8;
+        String[] stores = {"striped", "locked", "evicting", "unsafe"};
+        for (String arg : args) {
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--users=")) {
+                users = Integer.parseInt(arg.substring("--users=".length()));
+            } else if (arg.startsWith("--items=")) {
+                items = Integer.parseInt(arg.substring("--items=".length()));
+            } else if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            } else if (arg.startsWith("--batch=")) {
+                batch = Integer.parseInt(arg.substring("--batch=".length()));
+            } else if (arg.startsWith("--stores=")) {
+                stores = arg.substring("--stores=".length()).split(",");
+            }
+        }
+        if (items % batch != 0) {
+            throw new IllegalArgumentException("--items must be a multiple of --batch");
+        }
+        Status.jokeCount = items;
+        Status.proverbCount = items;
+        boolean failed = false;
+        System.out.println("store,phase,threads,users,items,requests,millis,requestsPerSec,wrongCounts,unfinishedUsers,result");
+        for (String store : stores) {
+            for (int size : new int[]{1, batch}) {
+                String result = run(store, size, threads, users, items, rounds);
+                System.out.println(result);
+                if (result.endsWith("FAIL") && !store.equals("unsafe")) {
+                    failed = true;
+                }
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs one phase against a fresh store.
+     *
+     * @param kind striped, locked, evicting or unsafe
+     * @param size jokes per request, 1 for next
+     * @param threads number of threads
+     * @param users number of users
+     * @param items jokes in the catalog
+     * @param rounds times each user is to see every joke
+     * @return CSV line with the result
+     */
+    static String run(String kind, final int size, int threads, final int users, final int items, final int rounds)
+            throws InterruptedException, IOException {
+        Path spill = null;
+        final UserStateStore store;
+        if (kind.equals("striped")) {
+            store = new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES);
+        } else if (kind.equals("evicting")) {
+            spill = Files.createTempFile("jokes-stress", ".spill");
+            Files.delete(spill);
+            store = new EvictingStateStore(new MappedStateStore(spill, users, 48, 16), Math.max(1, users / 2), 0,
+                    UserStateStore.Striped.DEFAULT_STRIPES);
+        } else {
+            store = new UserStateStore.Locked();
+        }
+        final boolean unsafe = kind.equals("unsafe");
+        final AtomicIntegerArray delivered = new AtomicIntegerArray(users * items);
+        final int requests = users * rounds * items / size;
+        final int threadCount = threads;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException x) {
+                    return;
+                }
+                // requests are dealt round robin, so every user is asked for from every thread */
+                for (int i = first; i < requests; i += threadCount) {
+                    int user = i % users;
+                    String userName = "user" + user;
+                    for (int count : take(store, unsafe, userName, size)) {
+                        delivered.incrementAndGet(user * items + count);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long millis = Math.max(1, (System.nanoTime() - began) / 1000000);
+        int wrong = 0;
+        for (int i = 0; i < delivered.length(); i++) {
+            if (delivered.get(i) != rounds) {
+                wrong++;
+            }
+        }
+        int unfinished = 0;
+        for (int user = 0; user < users; user++) {
+            Status state = store.get("user" + user);
+            if (state == null || state.unseenCount(Status.JOKES) != 0) {
+                unfinished++;
+            }
+        }
+        if (spill != null) {
+            String stats = store.stats();
+            store.close();
+            Files.delete(spill);
+            System.out.println("# " + stats);
+        }
+        return kind + "," + (size == 1 ? "next" : "batch" + size) + "," + threads + "," + users + "," + items
+                + "," + requests + "," + millis + "," + (requests * 1000L / millis) + "," + wrong + "," + unfinished
+                + "," + (wrong == 0 && unfinished == 0 ? "ok" : "FAIL");
+    }
+
+    /**
+     * Takes jokes for a user, through the store or the old way.
+     *
+     * @param store store of the user states
+     * @param unsafe true to check, get, change and store as separate steps
+     * @param userName name of user
+     * @param size jokes to take, 1 for next
+     * @return indexes of the jokes taken
+     */
+    static int[] take(UserStateStore store, boolean unsafe, String userName, int size) {
+        if (!unsafe) {
+            return size == 1 ? new int[]{store.takeNext(userName, Status.JOKES)}
+                    : store.takeBatch(userName, Status.JOKES, size);
+        }
+        Status state = store.contains(userName) ? store.get(userName) : new Status(userName);
+        int[] taken = size == 1 ? new int[]{state.takeNext(Status.JOKES)} : state.takeBatch(Status.JOKES, size);
+        store.put(userName, state);
+        return taken;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * AdmissionControl.java
+ * Backpressure for the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AdmissionControl limits how much work the server takes on. At most
+ * maxInFlight requests are handled at once and at most queueDepth more may
+ * wait for a turn. Once both are full a new connection is either rejected
+ * straight away with the maintenance answer (policy reject) or the accept loop
+ * waits for room, leaving new connections in the kernel backlog (policy block).
+ * A maxInFlight of 0 turns admission control off.
+ * <p>
+ * A keep-alive connection is admitted like any other, but gives its permits
+ * back while it waits for the client's next request and takes them again
+ * for each request, so idle connections do not count against the limits.
+ *
+ * @author Kevin Patrick Westropp
+ */
+class AdmissionControl {
+
+    private final int maxInFlight; // requests handled at once, 0 for no limit */
+    private final int queueDepth; // requests allowed to wait for a turn */
+    private final boolean block; // true to block the accept loop instead of rejecting */
+    private final Semaphore admitted; // permits for in flight plus queued requests */
+    private final Semaphore running; // permits for in flight requests */
+    private final AtomicInteger queued = new AtomicInteger(); // admitted requests not running yet */
+    private final AtomicInteger inFlight = new AtomicInteger(); // requests being handled now */
+    private final LongAdder rejectedTotal = new LongAdder(); // connections turned away */
+    private final LongAdder queuedTotal = new LongAdder(); // requests that had to wait for a slot */
+    private final ThreadLocal<boolean[]> holding = new ThreadLocal<>(); // of a wrapped task, true while it holds its permits */
+
+    /**
+     * Basic constructor for admission control.
+     *
+     * @param maxInFlight requests handled at once, 0 for no limit
+     * @param queueDepth requests allowed to wait for a turn
+     * @param policy reject or block
+     */
+    AdmissionControl(int maxInFlight, int queueDepth, String policy) {
+        if (!policy.equals("reject") && !policy.equals("block")) {
+            throw new IllegalArgumentException("Unknown --backpressure policy: " + policy + " (expected reject or block)");
+        }
+        this.maxInFlight = Math.max(0, maxInFlight);
+        this.queueDepth = Math.max(0, queueDepth);
+        this.block = policy.equals("block");
+        this.admitted = new Semaphore(this.maxInFlight + this.queueDepth);
+        this.running = new Semaphore(this.maxInFlight);
+    }
+
+    /**
+     * Builds admission control from the startup options --max-in-flight,
+     * --queue-depth and --backpressure.
+     *
+     * @param options startup options
+     * @return admission control for the server
+     */
+    static AdmissionControl fromOptions(ServerOptions options) {
+        return new AdmissionControl(options.getInt("max-in-flight", 0),
+                options.getInt("queue-depth", 0),
+                options.getString("backpressure", "reject"));
+    }
+
+    /**
+     * Tells whether admission control is switched on.
+     *
+     * @return true if there is a limit
+     */
+    boolean enabled() {
+        return maxInFlight > 0;
+    }
+
+    /**
+     * Called for each accepted connection. Every admitted connection must be
+     * run through wrap, or started inline and, if that lets it in, finished
+     * inline.
+     *
+     * @return true if the connection is admitted, false if it should be
+     * rejected
+     */
+    boolean admit() {
+        if (!enabled()) {
+            return true;
+        }
+        if (!admitted.tryAcquire()) {
+            if (!block) {
+                rejectedTotal.increment();
+                return false;
+            }
+            admitted.acquireUninterruptibly();
+        }
+        queued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Takes an in flight slot for an admitted connection straight away, for
+     * the nio loops which serve connections inline rather than through wrap.
+     * A loop must not wait, so with no slot free the connection gives its
+     * admission back and is turned away; the queue depth only covers the
+     * hand over from the acceptor to the loop.
+     *
+     * @return true if the connection may be served, to be given back with
+     * finishInline; false if it should be rejected
+     */
+    boolean startInline() {
+        if (!enabled()) {
+            return true;
+        }
+        queued.decrementAndGet();
+        if (!running.tryAcquire()) {
+            admitted.release();
+            rejectedTotal.increment();
+            return false;
+        }
+        inFlight.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gives back a connection started with startInline.
+     */
+    void finishInline() {
+        if (enabled()) {
+            inFlight.decrementAndGet();
+            running.release();
+            admitted.release();
+        }
+    }
+
+    /**
+     * Wraps the handler of an admitted connection so it waits for an in flight
+     * slot before running, and gives the admission back once done. Time spent
+     * in the executor queue or waiting for a slot counts as queued.
+     *
+     * @param task handler of the connection
+     * @return task to hand to the executor
+     */
+    Runnable wrap(final Runnable task) {
+        if (!enabled()) {
+            return task;
+        }
+        return new Runnable() {
+            @Override
+            public void run() {
+                if (!running.tryAcquire()) {
+                    queuedTotal.increment();
+                    running.acquireUninterruptibly();
+                }
+                queued.decrementAndGet();
+                inFlight.incrementAndGet();
+                boolean[] held = {true};
+                holding.set(held);
+                try {
+                    task.run();
+                } finally {
+                    holding.remove();
+                    if (held[0]) {
+                        finishRequest();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Gives back the permits of the wrapped task running on this thread
+     * while its keep-alive connection waits for the next request. Does
+     * nothing if they are already given back or the task is not wrapped.
+     */
+    void idle() {
+        boolean[] held = holding.get();
+        if (held != null && held[0]) {
+            held[0] = false;
+            finishRequest();
+        }
+    }
+
+    /**
+     * Takes the permits back for the next request of the wrapped task running
+     * on this thread, after idle. Waits for a running slot, and for room
+     * under policy block.
+     *
+     * @return true if the request may run, false if it should be answered
+     * unavailable
+     */
+    boolean resume() {
+        boolean[] held = holding.get();
+        if (held == null || held[0]) {
+            return true;
+        }
+        held[0] = startRequest(true);
+        return held[0];
+    }
+
+    /**
+     * Takes the permits for one request of a keep-alive connection that holds
+     * none. A nio loop must not wait, so it is turned away whenever a permit
+     * is not free straight away.
+     *
+     * @param mayWait true if the caller may wait for a running slot, and for
+     * room under policy block
+     * @return true if the request may run, to be given back with
+     * finishRequest; false if it should be answered unavailable
+     */
+    boolean startRequest(boolean mayWait) {
+        if (!enabled()) {
+            return true;
+        }
+        if (!admitted.tryAcquire()) {
+            if (!block || !mayWait) {
+                rejectedTotal.increment();
+                return false;
+            }
+            admitted.acquireUninterruptibly();
+        }
+        if (!running.tryAcquire()) {
+            if (!mayWait) {
+                admitted.release();
+                rejectedTotal.increment();
+                return false;
+            }
+            queuedTotal.increment();
+            queued.incrementAndGet();
+            running.acquireUninterruptibly();
+            queued.decrementAndGet();
+        }
+        inFlight.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gives back the permits of a request taken with startRequest.
+     */
+    void finishRequest() {
+        if (enabled()) {
+            inFlight.decrementAndGet();
+            running.release();
+            admitted.release();
+        }
+    }
+
+    /**
+     * Returns the number of connections turned away so far.
+     *
+     * @return connections rejected
+     */
+    long rejected() {
+        return rejectedTotal.sum();
+    }
+
+    /**
+     * One line summary of the admission counters, for the admin client.
+     *
+     * @return counters as name=value pairs
+     */
+    String stats() {
+        return "maxInFlight=" + maxInFlight + " queueDepth=" + queueDepth
+                + " policy=" + (block ? "block" : "reject")
+                + " inFlight=" + inFlight.get() + " queued=" + queued.get()
+                + " queuedTotal=" + queuedTotal.sum() + " rejectedTotal=" + rejectedTotal.sum();
+    }
+}
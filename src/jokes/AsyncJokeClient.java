@@ -0,0 +1,704 @@
+/*
+ * AsyncJokeClient.java
+ * Asynchronous pooled client library for the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * AsyncJokeClient is the client library for programs that embed the Joke
+ * Client. Every fetch returns a CompletableFuture straight away. The requests
+ * of all users go over a small pool of connections to the server, each a
+ * shared keep-alive session (see ClientSession) on which every request names
+ * its user, so thousands of fetches at once need no more than --pool-size
+ * sockets. Requests are pipelined: a connection takes the next request while
+ * earlier ones are still being answered, and a reader thread per connection
+ * hands the answers, which come back in order, to their futures. Connections
+ * are opened, and reopened after a failure, on a connector thread of their
+ * own, so a fetch returns straight away even while its server is slow to
+ * answer the connect or the TLS handshake, both of which get --timeout-ms.
+ * <p>
+ * A fetch that gets no answer within --timeout-ms fails with a
+ * TimeoutException and its connection is closed, since an answer that late
+ * means the connection is stuck; the other requests on it fail with it.
+ * Failed fetches are retried up to --retries times on another connection,
+ * after --backoff-ms doubled on every retry, with some jitter. A retried
+ * fetch may have been served before its answer was lost, so the user can
+ * skip a joke/proverb. The unavailable message is an answer, not a failure.
+ * <p>
+ * With --binary the connections speak the BinaryProtocol instead of session
+ * lines: requests and answers are length-prefixed frames, answers are matched
+ * to their requests by number rather than by order, and a batch needs no
+ * header line to be parsed. The futures get the same text either way, an
+ * error frame showing up as the @error line the text protocol would send.
+ * <p>
+ * The futures are completed on the reader threads, so work chained onto them
+ * with the plain then... methods runs there and holds up the answers behind
+ * it; use the ...Async methods for anything slow.
+ *
+ * @author Kevin Patrick Westropp
+ */
+public final class AsyncJokeClient implements AutoCloseable {
+
+    private final String serverName; // host of the server */
+    private final int port; // client port of the server */
+    private final Slot[] pool; // pooled connections, each opened when first needed */
+    private final long timeoutMillis; // how long a fetch waits for its answer */
+    private final int retries; // retries of a failed fetch */
+    private final long backoffMillis; // wait before the first retry, doubled for each one after */
+    private final boolean binary; // true to speak the BinaryProtocol, false for session lines */
+    private final SocketFactory sockets; // plain or TLS sockets to the server */
+    private final AtomicInteger nextSlot = new AtomicInteger(); // round robin over the pool */
+    private final ScheduledExecutorService timers; // timeouts and retry backoff */
+    private final ExecutorService connector; // opens connections, off the fetching and timer threads */
+    private final AtomicLong connects = new AtomicLong(); // connections opened */
+    private final AtomicLong retried = new AtomicLong(); // fetches retried */
+    private volatile boolean closed; // set once close is called */
+
+    /**
+     * One request waiting for its answer on a connection.
+     */
+    private static final class Pending {
+
+        final String userName; // user the request is for */
+        final int size; // 0 for next, else the batch size */
+        final long sent = System.nanoTime(); // when it was written, for the timeout */
+        final CompletableFuture<List<String>> answer = new CompletableFuture<>();
+
+        /**
+         * Basic constructor for a pending request.
+         *
+         * @param userName user the request is for
+         * @param size 0 for next, else the batch size
+         */
+        Pending(String userName, int size) {
+            this.userName = userName;
+            this.size = size;
+        }
+    }
+
+    /**
+     * One place in the pool: its connection, and the connect under way while
+     * it is opened or reopened. Each slot is locked on its own, and only to
+     * start a connect, never while one runs.
+     */
+    private static final class Slot {
+
+        volatile Connection conn; // last connection opened, null until the first */
+        CompletableFuture<Connection> opening; // last connect started, guarded by this */
+    }
+
+    /**
+     * One pooled connection: a shared session, a lock for writing requests
+     * and a reader thread completing the requests in the order they were
+     * written, or by their numbers on a binary connection.
+     */
+    private final class Connection {
+
+        private final Socket sock;
+        private final OutputStream toServer;
+        private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>(); // written, not answered */
+        private final ConcurrentHashMap<Integer, Pending> numbered = new ConcurrentHashMap<>(); // the same, binary */
+        private final AtomicInteger writers = new AtomicInteger(); // threads writing or waiting to write */
+        private int lastNumber; // number of the last binary request, guarded by this */
+        private volatile boolean open = true; // false once failed or closed */
+
+        /**
+         * Opens the connection and its shared session, and starts its reader.
+         *
+         * @param slot index in the pool, to name the reader thread
+         * @throws IOException if the server cannot be reached
+         */
+        Connection(int slot) throws IOException {
+            sock = sockets.createSocket();
+            sock.setTcpNoDelay(true);
+            int timeout = (int) Math.min(Integer.MAX_VALUE, timeoutMillis);
+            sock.connect(new InetSocketAddress(serverName, port), timeout);
+            if (sock instanceof SSLSocket) {
+                // the handshake gets the timeout too, the reader then waits as long as it takes */
+                sock.setSoTimeout(timeout);
+                ((SSLSocket) sock).startHandshake();
+                sock.setSoTimeout(0);
+            }
+            toServer = new BufferedOutputStream(sock.getOutputStream(), 8192);
+            if (binary) {
+                toServer.write(BinaryProtocol.MAGIC);
+                toServer.write(BinaryProtocol.VERSION);
+            } else {
+                toServer.write(ClientSession.START.getBytes(StandardCharsets.UTF_8));
+                toServer.write('\n');
+            }
+            toServer.flush();
+            Thread reader = new Thread(binary ? this::readFrames : this::readLines, "joke-client-" + slot);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Writes a request and queues it for its answer. The queue and the
+         * socket are updated under one lock, so answers match requests. Only
+         * the last of the threads waiting to write flushes, so requests sent
+         * at the same time go out in one packet.
+         *
+         * @param request the request
+         * @return false if the connection is no longer open
+         */
+        boolean send(Pending request) {
+            byte[] bytes = binary ? frame(request) : (request.size == 0 ? ClientSession.NEXT_FOR + request.userName
+                    : ClientSession.BATCH + request.size + " " + request.userName).concat("\n").getBytes(StandardCharsets.UTF_8);
+            writers.incrementAndGet();
+            synchronized (this) {
+                boolean last = writers.decrementAndGet() == 0;
+                if (!open) {
+                    return false;
+                }
+                if (binary) {
+                    int number = ++lastNumber == 0 ? ++lastNumber : lastNumber; // 0 is left for errors of no request */
+                    ByteBuffer.wrap(bytes).putInt(5, number);
+                    numbered.put(number, request);
+                } else {
+                    pending.add(request);
+                }
+                try {
+                    toServer.write(bytes);
+                    if (last) {
+                        toServer.flush();
+                    }
+                } catch (IOException x) {
+                    fail(x);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Encodes a binary request frame, all but its number.
+         *
+         * @param request the request
+         * @return the frame
+         */
+        private byte[] frame(Pending request) {
+            byte[] name = request.userName.getBytes(BinaryProtocol.CHARSET);
+            ByteBuffer frame = ByteBuffer.allocate(4 + BinaryProtocol.HEADER + (request.size > 0 ? 2 : 0) + name.length);
+            frame.putInt(frame.capacity() - 4);
+            frame.put((byte) (request.size > 0 ? BinaryProtocol.BATCH : BinaryProtocol.NEXT));
+            frame.putInt(0);
+            frame.put((byte) BinaryProtocol.AS_MODE);
+            if (request.size > 0) {
+                frame.putShort((short) request.size);
+            }
+            return frame.put(name).array();
+        }
+
+        /**
+         * Reader loop of a session: reads the answers in order and completes
+         * their requests, until the connection fails or is closed.
+         */
+        private void readLines() {
+            try {
+                BufferedReader fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.UTF_8));
+                Pending request;
+                while (open) {
+                    String line = fromServer.readLine();
+                    if (line == null) {
+                        throw new IOException("server closed the connection");
+                    }
+                    request = pending.poll();
+                    if (request == null) {
+                        throw new IOException("answer without a request: " + line);
+                    }
+                    List<String> lines;
+                    if (request.size > 0 && line.startsWith(ClientSession.ITEMS)) {
+                        int count = Integer.parseInt(line.substring(ClientSession.ITEMS.length()).trim());
+                        lines = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            String item = fromServer.readLine();
+                            if (item == null) {
+                                throw new IOException("server closed the connection in a batch");
+                            }
+                            lines.add(item);
+                        }
+                    } else {
+                        lines = Collections.singletonList(line);
+                    }
+                    request.answer.complete(lines);
+                }
+            } catch (IOException | NumberFormatException x) {
+                fail(x);
+            }
+        }
+
+        /**
+         * Reader loop of a binary connection: reads answer frames and
+         * completes the requests they are numbered for, until the connection
+         * fails or is closed.
+         */
+        private void readFrames() {
+            try {
+                DataInputStream fromServer = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 8192));
+                while (open) {
+                    int length;
+                    try {
+                        length = fromServer.readInt();
+                    } catch (EOFException x) {
+                        throw new IOException("server closed the connection");
+                    }
+                    if (length < BinaryProtocol.HEADER || length > BinaryProtocol.MAX_FRAME) {
+                        throw new IOException("bad frame length " + length);
+                    }
+                    byte[] bytes = new byte[length];
+                    fromServer.readFully(bytes);
+                    ByteBuffer frame = ByteBuffer.wrap(bytes);
+                    int opcode = frame.get() & 0xff;
+                    int number = frame.getInt();
+                    frame.get(); // category served */
+                    if (number == 0 && opcode == BinaryProtocol.UNAVAILABLE) {
+                        // the server turned the connection away, the message answers every request on it */
+                        List<String> lines = Collections.singletonList(
+                                new String(bytes, frame.position(), frame.remaining(), BinaryProtocol.CHARSET));
+                        for (Integer waiting : numbered.keySet()) {
+                            Pending request = numbered.remove(waiting);
+                            if (request != null) {
+                                request.answer.complete(lines);
+                            }
+                        }
+                        throw new IOException("server turned the connection away: " + lines.get(0));
+                    }
+                    Pending request = numbered.remove(number);
+                    if (request == null) {
+                        throw new IOException("answer without a request: " + opcode + " "
+                                + new String(bytes, frame.position(), frame.remaining(), BinaryProtocol.CHARSET));
+                    }
+                    List<String> lines;
+                    if (opcode == BinaryProtocol.ITEMS) {
+                        int count = frame.getShort() & 0xffff;
+                        lines = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            int size = frame.getInt();
+                            lines.add(new String(bytes, frame.position(), size, BinaryProtocol.CHARSET));
+                            frame.position(frame.position() + size);
+                        }
+                    } else {
+                        String text = new String(bytes, frame.position(), frame.remaining(), BinaryProtocol.CHARSET);
+                        lines = Collections.singletonList(opcode == BinaryProtocol.ERROR ? "@error " + text : text);
+                    }
+                    request.answer.complete(lines);
+                }
+            } catch (IOException | RuntimeException x) {
+                fail(x);
+            }
+        }
+
+        /**
+         * Returns when the longest waiting request on this connection was
+         * sent.
+         *
+         * @return nanoTime it was sent, or now if none is waiting
+         */
+        long oldest() {
+            long now = System.nanoTime();
+            Pending first = pending.peek();
+            long oldest = first == null ? now : first.sent;
+            for (Pending request : numbered.values()) {
+                if (request.sent - oldest < 0) {
+                    oldest = request.sent;
+                }
+            }
+            return oldest;
+        }
+
+        /**
+         * Closes the connection and fails every request waiting on it.
+         *
+         * @param cause why, handed to the failed requests
+         */
+        void fail(Throwable cause) {
+            synchronized (this) {
+                open = false;
+            }
+            try {
+                sock.close();
+            } catch (IOException x) {
+                // closing anyway */
+            }
+            Pending request;
+            while ((request = pending.poll()) != null) {
+                request.answer.completeExceptionally(cause);
+            }
+            for (Integer number : numbered.keySet()) {
+                request = numbered.remove(number);
+                if (request != null) {
+                    request.answer.completeExceptionally(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Basic constructor for a client with the default settings: 4
+     * connections, a 5 second timeout and 2 retries 50ms apart.
+     *
+     * @param serverName host of the server
+     * @param port client port of the server
+     */
+    public AsyncJokeClient(String serverName, int port) {
+        this(serverName, port, 4, 5000, 2, 50);
+    }
+
+    /**
+     * Builds a client from the client options --pool-size, --timeout-ms,
+     * --retries, --backoff-ms, --binary and --tls (see TlsSupport).
+     *
+     * @param serverName host of the server
+     * @param port client port of the server
+     * @param options client options
+     * @throws IOException if the certificate to trust cannot be read
+     */
+    AsyncJokeClient(String serverName, int port, ServerOptions options) throws IOException {
+        this(serverName, port, options.getInt("pool-size", 4), options.getInt("timeout-ms", 5000),
+                options.getInt("retries", 2), options.getInt("backoff-ms", 50), options.getBoolean("binary", false),
+                TlsSupport.clientSockets(options));
+    }
+
+    /**
+     * Constructor for a client with every setting given.
+     *
+     * @param serverName host of the server
+     * @param port client port of the server
+     * @param poolSize connections to keep open
+     * @param timeoutMillis how long a fetch waits for its answer
+     * @param retries retries of a failed fetch
+     * @param backoffMillis wait before the first retry, doubled after
+     */
+    public AsyncJokeClient(String serverName, int port, int poolSize, long timeoutMillis, int retries, long backoffMillis) {
+        this(serverName, port, poolSize, timeoutMillis, retries, backoffMillis, false);
+    }
+
+    /**
+     * Constructor for a client with every setting given, and the protocol.
+     *
+     * @param serverName host of the server
+     * @param port client port of the server
+     * @param poolSize connections to keep open
+     * @param timeoutMillis how long a fetch waits for its answer
+     * @param retries retries of a failed fetch
+     * @param backoffMillis wait before the first retry, doubled after
+     * @param binary true to speak the BinaryProtocol, false for session lines
+     */
+    public AsyncJokeClient(String serverName, int port, int poolSize, long timeoutMillis, int retries, long backoffMillis,
+            boolean binary) {
+        this(serverName, port, poolSize, timeoutMillis, retries, backoffMillis, binary, SocketFactory.getDefault());
+    }
+
+    /**
+     * Constructor for a client with every setting given, the protocol and
+     * where its sockets come from, an SSLSocketFactory for TLS.
+     *
+     * @param serverName host of the server
+     * @param port client port of the server
+     * @param poolSize connections to keep open
+     * @param timeoutMillis how long a fetch waits for its answer
+     * @param retries retries of a failed fetch
+     * @param backoffMillis wait before the first retry, doubled after
+     * @param binary true to speak the BinaryProtocol, false for session lines
+     * @param sockets factory of the sockets to the server
+     */
+    public AsyncJokeClient(String serverName, int port, int poolSize, long timeoutMillis, int retries, long backoffMillis,
+            boolean binary, SocketFactory sockets) {
+        if (poolSize < 1 || timeoutMillis < 1 || retries < 0 || backoffMillis < 0) {
+            throw new IllegalArgumentException("Bad client settings: pool " + poolSize + ", timeout " + timeoutMillis
+                    + "ms, retries " + retries + ", backoff " + backoffMillis + "ms");
+        }
+        this.serverName = serverName;
+        this.port = port;
+        this.pool = new Slot[poolSize];
+        for (int i = 0; i < poolSize; i++) {
+            pool[i] = new Slot();
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        this.backoffMillis = backoffMillis;
+        this.binary = binary;
+        this.sockets = sockets;
+        this.timers = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread timer = new Thread(r, "joke-client-timer");
+            timer.setDaemon(true);
+            return timer;
+        });
+        this.connector = Executors.newCachedThreadPool(r -> {
+            Thread connect = new Thread(r, "joke-client-connect");
+            connect.setDaemon(true);
+            return connect;
+        });
+        long tick = Math.max(10, timeoutMillis / 4);
+        timers.scheduleWithFixedDelay(this::expire, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fetches the next joke/proverb for a user.
+     *
+     * @param userName name of user
+     * @return future of the line sent back
+     */
+    public CompletableFuture<String> next(String userName) {
+        return fetch(userName, 0).thenApply(lines -> lines.get(0));
+    }
+
+    /**
+     * Fetches up to size jokes/proverbs for a user, none of them repeated.
+     *
+     * @param userName name of user
+     * @param size largest number wanted
+     * @return future of the lines sent back; one line that is not a
+     * joke/proverb if the server answered with a message or an error
+     */
+    public CompletableFuture<List<String>> batch(String userName, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + size);
+        }
+        return fetch(userName, size);
+    }
+
+    /**
+     * Sends a fetch, retrying it when it fails.
+     *
+     * @param userName name of user
+     * @param size 0 for next, else the batch size
+     * @return future of the lines sent back
+     */
+    private CompletableFuture<List<String>> fetch(String userName, int size) {
+        if (userName == null || userName.isEmpty() || userName.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("User name must be one non-empty line: " + userName);
+        }
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        attempt(userName, size, 0, result);
+        return result;
+    }
+
+    /**
+     * Makes one attempt at a fetch, and schedules the next if it fails.
+     *
+     * @param userName name of user
+     * @param size 0 for next, else the batch size
+     * @param attempt attempts made before this one
+     * @param result future of the fetch
+     */
+    private void attempt(final String userName, final int size, final int attempt, final CompletableFuture<List<String>> result) {
+        if (closed) {
+            result.completeExceptionally(new IOException("client is closed"));
+            return;
+        }
+        final Pending request = new Pending(userName, size);
+        send(request, Math.floorMod(nextSlot.getAndIncrement(), pool.length), 0);
+        request.answer.whenComplete((lines, error) -> {
+            if (error == null) {
+                result.complete(lines);
+            } else {
+                retryOrFail(userName, size, attempt, result, error);
+            }
+        });
+    }
+
+    /**
+     * Fails every connection whose oldest request has waited longer than the
+     * timeout. Session answers come back in order, so only the oldest request
+     * of a connection needs checking, and one sweep every quarter of the
+     * timeout does for all of them; binary requests are all looked at.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        for (Slot slot : pool) {
+            Connection conn = slot.conn;
+            if (conn != null && now - conn.oldest() > timeoutMillis * 1000000L) {
+                conn.fail(new TimeoutException("no answer within " + timeoutMillis + "ms"));
+            }
+        }
+    }
+
+    /**
+     * Schedules another attempt after the backoff, or fails the fetch once
+     * the retries are used up.
+     *
+     * @param userName name of user
+     * @param size 0 for next, else the batch size
+     * @param attempt attempts made before the failed one
+     * @param result future of the fetch
+     * @param error why the attempt failed
+     */
+    private void retryOrFail(String userName, int size, int attempt, CompletableFuture<List<String>> result, Throwable error) {
+        if (attempt >= retries || closed) {
+            result.completeExceptionally(error);
+            return;
+        }
+        retried.incrementAndGet();
+        long delay = backoffMillis << Math.min(attempt, 16);
+        delay += ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        try {
+            timers.schedule(() -> attempt(userName, size, attempt + 1, result), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException x) {
+            result.completeExceptionally(error); // closed meanwhile */
+        }
+    }
+
+    /**
+     * Writes a request on a connection of the pool, opening or reopening it
+     * if needed. A request waiting for its connection to open is written by
+     * the connector once it is; if the connection cannot be opened, or keeps
+     * closing, the request fails.
+     *
+     * @param request the request
+     * @param slot index in the pool
+     * @param tries tries made before this one
+     */
+    private void send(Pending request, int slot, int tries) {
+        connection(slot).whenComplete((conn, error) -> {
+            if (error != null) {
+                request.answer.completeExceptionally(error);
+            } else if (!conn.send(request)) {
+                if (tries < 1) {
+                    send(request, slot, tries + 1);
+                } else {
+                    request.answer.completeExceptionally(
+                            new IOException("connection to " + serverName + ":" + port + " keeps closing"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the open connection of a pool slot, or the connect under way
+     * for it, starting one on the connector if the slot is empty or its
+     * connection has failed. Returns straight away either way, so neither the
+     * fetching threads nor the timer wait for a server that is slow to
+     * answer.
+     *
+     * @param index index in the pool
+     * @return future of the open connection
+     */
+    private CompletableFuture<Connection> connection(int index) {
+        Slot slot = pool[index];
+        Connection conn = slot.conn;
+        if (conn != null && conn.open) {
+            return CompletableFuture.completedFuture(conn);
+        }
+        synchronized (slot) {
+            CompletableFuture<Connection> opening = slot.opening;
+            if (opening != null && !opening.isDone()) {
+                return opening;
+            }
+            conn = slot.conn;
+            if (conn != null && conn.open) {
+                return CompletableFuture.completedFuture(conn);
+            }
+            opening = new CompletableFuture<>();
+            slot.opening = opening;
+            if (closed) {
+                opening.completeExceptionally(new IOException("client is closed"));
+                return opening;
+            }
+            final CompletableFuture<Connection> connect = opening;
+            try {
+                connector.execute(() -> open(slot, index, connect));
+            } catch (RejectedExecutionException x) {
+                connect.completeExceptionally(new IOException("client is closed")); // closed meanwhile */
+            }
+            return opening;
+        }
+    }
+
+    /**
+     * Opens a connection for a pool slot, on the connector.
+     *
+     * @param slot the slot
+     * @param index index in the pool
+     * @param opening completed with the connection, or with why it could not
+     * be opened
+     */
+    private void open(Slot slot, int index, CompletableFuture<Connection> opening) {
+        Connection conn;
+        try {
+            conn = new Connection(index);
+        } catch (IOException x) {
+            opening.completeExceptionally(x);
+            return;
+        }
+        connects.incrementAndGet();
+        slot.conn = conn;
+        if (closed) {
+            conn.fail(new IOException("client is closed")); // close has already been through the pool */
+        }
+        opening.complete(conn);
+    }
+
+    /**
+     * Returns the number of connections the client keeps.
+     *
+     * @return pool size
+     */
+    public int poolSize() {
+        return pool.length;
+    }
+
+    /**
+     * Returns the counters of the client.
+     *
+     * @return one line of counters
+     */
+    public String stats() {
+        int open = 0;
+        int waiting = 0;
+        for (Slot slot : pool) {
+            Connection conn = slot.conn;
+            if (conn != null && conn.open) {
+                open++;
+                waiting += conn.pending.size() + conn.numbered.size();
+            }
+        }
+        return "connections=" + open + " connects=" + connects.get() + " waiting=" + waiting + " retried=" + retried.get();
+    }
+
+    /**
+     * Closes every connection; fetches still waiting fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Slot slot : pool) {
+            Connection conn = slot.conn;
+            if (conn != null) {
+                conn.fail(new IOException("client is closed"));
+            }
+        }
+        timers.shutdownNow();
+        connector.shutdown();
+    }
+}
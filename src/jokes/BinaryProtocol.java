@@ -0,0 +1,341 @@
+/*
+ * BinaryProtocol.java
+ * Length-prefixed binary framing of the client protocol, by Westropp
+ */
+package jokes;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * BinaryProtocol is the binary form of the client protocol, served on the
+ * same port as the text lines. A client picks it by sending the magic byte
+ * 0xB1 and the version 1 as its first two bytes. 0xB1 never starts a
+ * character in UTF-8, but it is a whole character in Latin-1 and the like, so
+ * the magic only opens a binary connection when a version byte of 0 to 8
+ * follows it: control characters that no text line carries after a name
+ * character. A version other than 1 is answered ERROR, and any other second
+ * byte leaves the connection to the text protocol. After the hello both sides
+ * send frames, every number big-endian:
+ * <pre>
+ *   length    int32   bytes of the frame after this field
+ *   opcode    uint8   NEXT, BATCH or END from the client; ITEM, ITEMS, UNAVAILABLE or ERROR back
+ *   request   int32   chosen by the client, sent back on the answer
+ *   category  uint8   0 for what the server mode says, 1 jokes, 2 proverbs; on answers the mode served in
+ *   payload
+ * </pre>
+ * NEXT carries the user name, BATCH a uint16 size and then the user name,
+ * END nothing. ITEM carries the joke/proverb, ITEMS a uint16 count and then
+ * every joke/proverb as an int32 length and its bytes, UNAVAILABLE and ERROR
+ * the message. An UNAVAILABLE numbered 0 turns the whole connection away, as
+ * a server too busy to take it answers right after the hello, and stands for
+ * every request sent on it; the server then closes the connection. Text is
+ * UTF-8 whatever the platform charset of either side, and has no line ends.
+ * <p>
+ * Every request names its user, so one connection carries the requests of
+ * any number of users. Answers carry the request number, so a client matches
+ * them by number rather than by order. A request for a category is served
+ * from it whatever the mode is, except that maintenance mode still answers
+ * UNAVAILABLE. Pipelined requests are answered with one write.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class BinaryProtocol {
+
+    static final int MAGIC = 0xB1; // first byte of a binary client */
+    static final int VERSION = 1; // second byte, the version of the framing */
+    private static final int LAST_VERSION = 0x08; // highest second byte taken for a version, text comes above it */
+    static final int HEADER = 6; // opcode, request number and category */
+    static final int MAX_FRAME = 65536; // longest frame taken from a client */
+
+    static final int NEXT = 0x01; // asks for the next joke/proverb of a user */
+    static final int BATCH = 0x02; // asks for a batch for a user */
+    static final int END = 0x03; // ends the connection */
+    static final int ITEM = 0x41; // answer to NEXT */
+    static final int ITEMS = 0x42; // answer to BATCH */
+    static final int UNAVAILABLE = 0x43; // the server is not serving right now */
+    static final int ERROR = 0x44; // the request was not understood */
+
+    static final int AS_MODE = 0; // category of a request served in the server mode */
+
+    static final Charset CHARSET = StandardCharsets.UTF_8; // of all text in frames */
+
+    /**
+     * Tells whether the byte a client sent after the magic byte makes a
+     * binary hello, rather than the rest of a text line.
+     *
+     * @param second second byte from the client, -1 if it hung up
+     * @return true if the client speaks this protocol
+     */
+    static boolean isVersion(int second) {
+        return second >= 0 && second <= LAST_VERSION;
+    }
+
+    /**
+     * Tells whether the first bytes read from a client are a binary hello.
+     *
+     * @param in bytes read so far, position after the last one
+     * @return true if the magic and a version byte have been read
+     */
+    static boolean isHello(ByteBuffer in) {
+        return in.position() >= 2 && (in.get(0) & 0xff) == MAGIC && isVersion(in.get(1) & 0xff);
+    }
+
+    /**
+     * Tells whether a client has sent only the magic byte so far, so the
+     * byte after it must be read before the protocol is known.
+     *
+     * @param in bytes read so far, position after the last one
+     * @return true if the magic is all there is
+     */
+    static boolean awaitsVersion(ByteBuffer in) {
+        return in.position() == 1 && (in.get(0) & 0xff) == MAGIC;
+    }
+
+    /**
+     * Checks the version a client sent after the magic byte, and renders an
+     * ERROR answer if it is not one the server speaks.
+     *
+     * @param version second byte from the client
+     * @param out buffer the answer is rendered into
+     * @return true if the version is supported
+     */
+    static boolean hello(int version, ResponseBuffer out) {
+        if (version == VERSION) {
+            return true;
+        }
+        reply(out, ERROR, 0, AS_MODE, "unsupported protocol version " + version + ", expected " + VERSION);
+        return false;
+    }
+
+    /**
+     * Serves a binary client on a blocking socket, after its hello has been
+     * seen but not read, until it ends the connection, hangs up or sends
+     * nothing for the idle timeout of the socket. The admission is given back
+     * while it waits for a frame and taken again for each.
+     *
+     * @param in input of the client socket
+     * @param out output of the client socket
+     * @throws IOException if the connection fails
+     */
+    static void serve(InputStream in, OutputStream out) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        ResponseBuffer response = new ResponseBuffer();
+        data.read(); // the magic byte */
+        boolean open = hello(data.read(), response);
+        byte[] frame = new byte[256];
+        AdmissionControl admission = JokeServer.getAdmission();
+        while (open) {
+            if (data.available() == 0) {
+                admission.idle(); // nothing pipelined, so this may wait on the client for long */
+            }
+            int length;
+            try {
+                length = data.readInt();
+            } catch (EOFException x) {
+                break; // client hung up */
+            } catch (SocketTimeoutException x) {
+                ServerLog.info("Closing a binary connection idle for " + ClientSession.idleMillis + " ms.");
+                break;
+            }
+            if (length < HEADER || length > MAX_FRAME) {
+                reply(response, ERROR, 0, AS_MODE, "bad frame length " + length);
+                break;
+            }
+            if (frame.length < length) {
+                frame = new byte[Math.max(length, 2 * frame.length)];
+            }
+            data.readFully(frame, 0, length);
+            ByteBuffer request = ByteBuffer.wrap(frame, 0, length);
+            open = admission.resume() ? serveFrame(request, response) : refuseFrame(request, response);
+            if (open && data.available() > 0) {
+                continue; // more requests are pipelined behind this one, answer them all with one write */
+            }
+            send(response, out);
+        }
+        send(response, out);
+    }
+
+    /**
+     * Tells whether a buffer holds a whole frame, or a length no frame may
+     * have, so serveFrames has something to answer.
+     *
+     * @param in bytes from the client after the hello, ready to read
+     * @return true if serveFrames would answer or end the connection
+     */
+    static boolean hasFrame(ByteBuffer in) {
+        if (in.remaining() < 4) {
+            return false;
+        }
+        int length = in.getInt(in.position());
+        return length < HEADER || length > MAX_FRAME || in.remaining() >= 4 + length;
+    }
+
+    /**
+     * Serves every complete frame in a buffer, leaving a frame that is not
+     * all there yet for the next read.
+     *
+     * @param in bytes from the client after the hello, ready to read
+     * @param out buffer the answers are rendered into
+     * @param admitted false to answer every frame UNAVAILABLE, when the
+     * server is saturated
+     * @return false once the client has ended or broken the protocol, so the
+     * connection closes after the answers are written
+     */
+    static boolean serveFrames(ByteBuffer in, ResponseBuffer out, boolean admitted) {
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < HEADER || length > MAX_FRAME) {
+                reply(out, ERROR, 0, AS_MODE, "bad frame length " + length);
+                return false;
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            ByteBuffer frame = in.slice(in.position() + 4, length);
+            in.position(in.position() + 4 + length);
+            if (!(admitted ? serveFrame(frame, out) : refuseFrame(frame, out))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Serves one frame.
+     *
+     * @param frame the frame from its opcode on
+     * @param out buffer the answer is rendered into
+     * @return false once the client has ended the connection or the server
+     * is shutting down
+     */
+    static boolean serveFrame(ByteBuffer frame, ResponseBuffer out) {
+        long started = System.nanoTime();
+        int opcode = frame.get() & 0xff;
+        int request = frame.getInt();
+        int category = frame.get() & 0xff;
+        if (opcode == END) {
+            return false;
+        }
+        if (opcode != NEXT && opcode != BATCH) {
+            reply(out, ERROR, request, AS_MODE, "unknown opcode " + opcode);
+            return true;
+        }
+        int size = 1;
+        if (opcode == BATCH) {
+            size = frame.remaining() < 2 ? -1 : frame.getShort() & 0xffff;
+            if (size < 1 || size > ClientSession.maxBatch) {
+                reply(out, ERROR, request, AS_MODE, "bad batch size " + size);
+                return true;
+            }
+        }
+        String userName = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), CHARSET);
+        if (userName.isEmpty() || category > ServerConfig.PROVERB_MODE) {
+            reply(out, ERROR, request, AS_MODE, userName.isEmpty() ? "no user named" : "unknown category " + category);
+            return true;
+        }
+        ServerConfig config = ServerConfig.current();
+        String unavailable = Worker.unavailableMessage(config);
+        if (unavailable != null) {
+            reply(out, UNAVAILABLE, request, config.mode, unavailable);
+            ServerMetrics.since(config.mode, ServerMetrics.TOTAL, started);
+            return config.controlSwitch; // once the server is shutting down the connection is over */
+        }
+        if (category != AS_MODE) {
+            config = config.withMode(category);
+        }
+        long looking = System.nanoTime();
+        Worker.connected(userName);
+        ServerMetrics.since(config.mode, ServerMetrics.LOOKUP, looking);
+        out.setUserUtf8(userName);
+        int items = config.category();
+        Catalog catalog = JokeServer.getCatalog(items);
+        int start = out.length();
+        out.putInt(0);
+        out.putByte(opcode == NEXT ? ITEM : ITEMS);
+        out.putInt(request);
+        out.putByte(config.mode);
+        long picking = System.nanoTime();
+        if (opcode == NEXT) {
+            int count = JokeServer.getStore().takeNext(userName, items);
+            long picked = ServerMetrics.since(config.mode, ServerMetrics.SELECT, picking);
+            catalog.renderUtf8(count, out);
+            ServerMetrics.since(config.mode, ServerMetrics.RENDER, picked);
+        } else {
+            int[] counts = JokeServer.getStore().takeBatch(userName, items, size);
+            long picked = ServerMetrics.since(config.mode, ServerMetrics.SELECT, picking);
+            out.putShort(counts.length);
+            for (int count : counts) {
+                int at = out.length();
+                out.putInt(0);
+                catalog.renderUtf8(count, out);
+                out.setInt(at, out.length() - at - 4);
+            }
+            ServerMetrics.since(config.mode, ServerMetrics.RENDER, picked);
+        }
+        out.setInt(start, out.length() - start - 4);
+        ServerMetrics.since(config.mode, ServerMetrics.TOTAL, started);
+        return true;
+    }
+
+    /**
+     * Answers one frame UNAVAILABLE without serving it, when the server is
+     * too busy to take the request.
+     *
+     * @param frame the frame from its opcode on
+     * @param out buffer the answer is rendered into
+     * @return false once the client has ended the connection
+     */
+    static boolean refuseFrame(ByteBuffer frame, ResponseBuffer out) {
+        int opcode = frame.get() & 0xff;
+        int request = frame.getInt();
+        if (opcode == END) {
+            return false;
+        }
+        reply(out, UNAVAILABLE, request, ServerConfig.current().mode, Worker.UNAVAILABLE);
+        return true;
+    }
+
+    /**
+     * Renders an answer frame carrying text.
+     *
+     * @param out buffer to render into
+     * @param opcode opcode of the answer
+     * @param request request number it answers
+     * @param category category field
+     * @param text message
+     */
+    static void reply(ResponseBuffer out, int opcode, int request, int category, String text) {
+        byte[] bytes = text.getBytes(CHARSET);
+        out.putInt(HEADER + bytes.length);
+        out.putByte(opcode);
+        out.putInt(request);
+        out.putByte(category);
+        out.append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes what is rendered with one flush, and empties the buffer.
+     *
+     * @param response rendered answers
+     * @param out output of the client socket
+     * @throws IOException if the write fails
+     */
+    private static void send(ResponseBuffer response, OutputStream out) throws IOException {
+        if (response.isEmpty()) {
+            return;
+        }
+        long started = System.nanoTime();
+        response.writeTo(out);
+        out.flush();
+        response.reset();
+        ServerMetrics.since(ServerConfig.current().mode, ServerMetrics.WRITE, started);
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * Catalog.java
+ * Joke and proverb catalogs for the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A Catalog holds the jokes or the proverbs the server hands out, indexed from
+ * 0 to size() - 1. Each item is a template in which %s marks the spot for the
+ * user name, as the original String.format calls did.
+ * <p>
+ * On the request path items are rendered with renderTo, straight into a
+ * ResponseBuffer, or with renderUtf8 for binary frames. Built in templates are
+ * compiled once into literal byte segments around the user name slots, in the
+ * platform charset and in UTF-8. Mapped templates are UTF-8 already and are
+ * copied out of the mapping, filling in the slots on the way, so no per item
+ * objects are built for a catalog of any size. Only on a platform that is not
+ * UTF-8 is a mapped item compiled, the first time it is served.
+ * <p>
+ * The built in catalogs hold the five jokes and five proverbs the server has
+ * always served, in the same count order. Bigger catalogs are shipped as
+ * catalog files and memory-mapped, so opening one does not parse it and an
+ * item is found by index in O(1) through the offset index at the front of the
+ * file. The file layout, all numbers big-endian, is
+ * <pre>
+ *   magic    4 bytes "JKCT"
+ *   version  int, 1
+ *   count    int, number of items
+ *   offsets  (count + 1) longs, start of each item in the data section, then
+ *            the end of the last item
+ *   data     UTF-8 bytes of the templates, back to back
+ * </pre>
+ * Build a catalog file from a text file holding one template per line with
+ * <pre>
+ *   java jokes.Catalog jokes.txt jokes.cat
+ * </pre>
+ *
+ * @author Kevin Patrick Westropp
+ */
+abstract class Catalog {
+
+    static final int MAGIC = 0x4a4b4354; // "JKCT" */
+    static final int VERSION = 1; // version of the catalog file layout */
+    static final String SLOT = "%s"; // marks the user name in a template */
+
+    /**
+     * Returns the number of items in the catalog.
+     *
+     * @return number of items
+     */
+    abstract int size();
+
+    /**
+     * Returns the UTF-8 bytes of an item template. The buffer must not be
+     * changed, for a mapped catalog it is a view of the file.
+     *
+     * @param index of the item, 0 to size() - 1
+     * @return template bytes from position to limit
+     */
+    abstract ByteBuffer templateBytes(int index);
+
+    /**
+     * Renders an item into a response buffer, using the user name last given
+     * to the buffer with setUser. No line end is added.
+     *
+     * @param index of the item, 0 to size() - 1
+     * @param out buffer of the response
+     */
+    abstract void renderTo(int index, ResponseBuffer out);
+
+    /**
+     * Renders an item into a response buffer in UTF-8, for binary frames,
+     * using the user name last given to the buffer with setUserUtf8. No line
+     * end is added.
+     *
+     * @param index of the item, 0 to size() - 1
+     * @param out buffer of the response
+     */
+    abstract void renderUtf8(int index, ResponseBuffer out);
+
+    /**
+     * Compiles a template into the literal byte segments around its user name
+     * slots.
+     *
+     * @param template item template
+     * @param charset charset the response goes out in
+     * @return literal segments, one more than there are slots
+     */
+    static byte[][] compile(String template, Charset charset) {
+        String[] literals = template.split(SLOT, -1);
+        byte[][] segments = new byte[literals.length][];
+        for (int i = 0; i < literals.length; i++) {
+            segments[i] = literals[i].getBytes(charset);
+        }
+        return segments;
+    }
+
+    /**
+     * Appends compiled segments with the user name between them.
+     *
+     * @param segments compiled template
+     * @param out buffer of the response
+     */
+    static void renderSegments(byte[][] segments, ResponseBuffer out) {
+        out.append(segments[0], 0, segments[0].length);
+        for (int i = 1; i < segments.length; i++) {
+            out.appendUser();
+            out.append(segments[i], 0, segments[i].length);
+        }
+    }
+
+    /**
+     * Returns the built in jokes, in the count order the server has always
+     * used.
+     *
+     * @return joke catalog
+     */
+    static Catalog builtInJokes() {
+        return new BuiltIn(
+                "Joke E: There are only 10 types of people in the world those that understand binary and those that don't. Which one are you, %s?",
+                "Joke A: %s, Do you know this one? Most people believe that if it ain't broke, don't fix it...Engineers believe that if it ain't broke, it doesn't have enough features yet.",
+                "Joke D: I bet you haven't hear this one, %s? How many programmers does it take to screw in a light bulb? None, that's a hardware problem. ",
+                "Joke C: So %s, How many IT guys does it take to screw in a light bulb? None, that's a Facilities problem.",
+                "Joke B: %s, Why do they call it hyper text? Too much Java.");
+    }
+
+    /**
+     * Returns the built in proverbs, in the count order the server has always
+     * used.
+     *
+     * @return proverb catalog
+     */
+    static Catalog builtInProverbs() {
+        return new BuiltIn(
+                "Proverb D: You're never too old to learn, %s!",
+                "Proverb E: Wise men/women think alike. Don't they, %s?",
+                "Proverb A: %s, All good things come to those who wait.",
+                "Proverb C: %s, Practice makes perfect.",
+                "Proverb B: Great starts make great finishes...%s");
+    }
+
+    /**
+     * Opens a catalog file, or returns the built in catalog when no file is
+     * given.
+     *
+     * @param file path of the catalog file, or null
+     * @param builtIn catalog to use when there is no file
+     * @return catalog
+     * @throws IOException if the file cannot be mapped or is not a catalog
+     */
+    static Catalog open(String file, Catalog builtIn) throws IOException {
+        return file == null ? builtIn : new Mapped(Paths.get(file));
+    }
+
+    /**
+     * Writes a catalog file. The file is written next to its final place and
+     * renamed over it, so a server never maps a half written catalog.
+     *
+     * @param templates item templates, in index order
+     * @param file path of the catalog file
+     */
+    static void write(List<String> templates, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        byte[][] items = new byte[templates.size()][];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = templates.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        try (OutputStream fileOut = Files.newOutputStream(temp);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(items.length);
+            long offset = 0;
+            for (byte[] item : items) {
+                out.writeLong(offset);
+                offset += item.length;
+            }
+            out.writeLong(offset);
+            for (byte[] item : items) {
+                out.write(item);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Builds a catalog file from a text file with one template per line.
+     * Blank lines are skipped.
+     *
+     * @param args text file and catalog file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java jokes.Catalog <templates.txt> <catalog file>");
+            return;
+        }
+        List<String> templates = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    templates.add(line);
+                }
+            }
+        }
+        write(templates, Paths.get(args[1]));
+        System.out.println("Wrote " + templates.size() + " items to " + args[1]);
+    }
+
+    /**
+     * Catalog held in memory, for the built in jokes and proverbs.
+     */
+    static final class BuiltIn extends Catalog {
+
+        private final ByteBuffer[] items;
+        private final byte[][][] compiled; // literal segments of each template */
+        private final byte[][][] utf8; // the same in UTF-8, shared when the platform is UTF-8 */
+
+        /**
+         * Basic constructor, compiles every template.
+         *
+         * @param templates item templates, in index order
+         */
+        BuiltIn(String... templates) {
+            items = new ByteBuffer[templates.length];
+            compiled = new byte[templates.length][][];
+            boolean native8 = ResponseBuffer.CHARSET.equals(StandardCharsets.UTF_8);
+            utf8 = native8 ? compiled : new byte[templates.length][][];
+            for (int i = 0; i < templates.length; i++) {
+                items[i] = ByteBuffer.wrap(templates[i].getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+                compiled[i] = compile(templates[i], ResponseBuffer.CHARSET);
+                if (!native8) {
+                    utf8[i] = compile(templates[i], StandardCharsets.UTF_8);
+                }
+            }
+        }
+
+        @Override
+        void renderTo(int index, ResponseBuffer out) {
+            renderSegments(compiled[index], out);
+        }
+
+        @Override
+        void renderUtf8(int index, ResponseBuffer out) {
+            renderSegments(utf8[index], out);
+        }
+
+        @Override
+        int size() {
+            return items.length;
+        }
+
+        @Override
+        ByteBuffer templateBytes(int index) {
+            return items[index].duplicate();
+        }
+    }
+
+    /**
+     * Catalog memory-mapped from a catalog file. Only the header is read when
+     * it is opened, items are sliced out of the mapping when asked for.
+     */
+    static final class Mapped extends Catalog {
+
+        private static final int HEADER = 12; // magic, version and count */
+
+        private final MappedByteBuffer map; // the whole file, read only */
+        private final int count; // number of items */
+        private final int dataStart; // where the data section starts */
+        private final AtomicReferenceArray<byte[][]> compiled; // segments compiled so far, null on UTF-8 platforms */
+
+        /**
+         * Maps a catalog file and checks its header.
+         *
+         * @param file path of the catalog file
+         * @throws IOException if the file cannot be mapped or is not a catalog
+         */
+        Mapped(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Catalog " + file + " is bigger than 2GB");
+                }
+                if (length < HEADER + 8) {
+                    throw new IOException("Catalog " + file + " is too short");
+                }
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            if (map.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a catalog file");
+            }
+            if (map.getInt(4) != VERSION) {
+                throw new IOException("Catalog " + file + " has unknown version " + map.getInt(4));
+            }
+            count = map.getInt(8);
+            long dataStartLong = HEADER + 8L * (count + 1);
+            if (count < 0 || dataStartLong > map.capacity()
+                    || dataStartLong + map.getLong(HEADER + 8 * count) != map.capacity()) {
+                throw new IOException("Catalog " + file + " has a broken index");
+            }
+            dataStart = (int) dataStartLong;
+            compiled = ResponseBuffer.CHARSET.equals(StandardCharsets.UTF_8) ? null : new AtomicReferenceArray<>(count);
+        }
+
+        @Override
+        int size() {
+            return count;
+        }
+
+        @Override
+        ByteBuffer templateBytes(int index) {
+            ByteBuffer item = map.duplicate();
+            item.limit(end(index)).position(start(index));
+            return item;
+        }
+
+        /**
+         * Renders with renderUtf8 when responses go out in UTF-8. Otherwise
+         * the template is compiled the first time the item is asked for, and
+         * its segments are kept for the next time.
+         */
+        @Override
+        void renderTo(int index, ResponseBuffer out) {
+            if (compiled == null) {
+                renderUtf8(index, out);
+                return;
+            }
+            byte[][] segments = compiled.get(index);
+            if (segments == null) {
+                segments = compile(StandardCharsets.UTF_8.decode(templateBytes(index)).toString(), ResponseBuffer.CHARSET);
+                compiled.set(index, segments);
+            }
+            renderSegments(segments, out);
+        }
+
+        /**
+         * Copies the template out of the mapping, putting the user name in
+         * for each slot. The file is UTF-8, so this works byte for byte.
+         */
+        @Override
+        void renderUtf8(int index, ResponseBuffer out) {
+            int from = start(index);
+            int end = end(index);
+            for (int i = from; i + 1 < end; i++) {
+                if (map.get(i) == '%' && map.get(i + 1) == 's') {
+                    out.append(map, from, i);
+                    out.appendUser();
+                    from = i + 2;
+                    i++;
+                }
+            }
+            out.append(map, from, end);
+        }
+
+        /**
+         * Returns where an item starts in the mapping.
+         *
+         * @param index of the item
+         * @return offset of its first byte
+         */
+        private int start(int index) {
+            if (index < 0 || index >= count) {
+                throw new IndexOutOfBoundsException("Item " + index + " of " + count);
+            }
+            return dataStart + (int) map.getLong(HEADER + 8 * index);
+        }
+
+        /**
+         * Returns where an item ends in the mapping.
+         *
+         * @param index of the item
+         * @return offset after its last byte
+         */
+        private int end(int index) {
+            return dataStart + (int) map.getLong(HEADER + 8 * (index + 1));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * ClientSession.java
+ * Keep-alive sessions for the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ClientSession holds one keep-alive session of the client protocol. A one-shot
+ * client sends its user name, reads one line and hangs up. A keep-alive client
+ * instead opens with "@session userName", then sends "next" for each
+ * joke/proverb it wants and "end" (or just hangs up) when it is done. Each
+ * request picks and marks its jokes/proverbs in one step of the
+ * UserStateStore, so a user with several sessions open at once still never
+ * gets the same joke/proverb twice before seeing them all.
+ * <p>
+ * Both kinds of client can also ask for a batch: "batch N" inside a session,
+ * or "@batch N userName" as a one-shot line. The answer is "@items k" followed
+ * by k jokes/proverbs the user has not seen, with k at most N. Requests may be
+ * pipelined, answers come back in the order the requests were sent.
+ * <p>
+ * A request inside a session may name its own user, "next userName" or
+ * "batch N userName", and is then served for that user as a one-shot request
+ * would be. A session opened with an empty user name ("@session ") is shared:
+ * every request on it must name its user, so one connection can carry the
+ * requests of any number of users, as the pooled AsyncJokeClient does.
+ * <p>
+ * A session that sends nothing for idleMillis is closed by the server.
+ *
+ * @author Kevin Patrick Westropp
+ */
+class ClientSession {
+
+    static final String START = "@session "; // first line of a keep-alive client, followed by the user name */
+    static final String BATCH_ONE_SHOT = "@batch "; // one-shot batch, followed by the size and the user name */
+    static final String NEXT = "next"; // asks for the next joke/proverb */
+    static final String NEXT_FOR = "next "; // asks for the next joke/proverb of the user named after it */
+    static final String BATCH = "batch "; // asks for a batch, followed by the size */
+    static final String END = "end"; // ends the session */
+    static final String ITEMS = "@items "; // header of a batch answer, followed by the number of lines */
+    static final byte[] ITEMS_BYTES = ITEMS.getBytes(StandardCharsets.US_ASCII);
+
+    static volatile int maxBatch = 64; // largest batch a client may ask for */
+    static volatile int idleMillis = 60000; // longest a keep-alive connection may wait between requests, 0 for no limit */
+
+    private final String userName; // name of user of this session */
+    private boolean open = true; // false once the session has ended */
+
+    /**
+     * Basic constructor for a session.
+     *
+     * @param userName name of user
+     */
+    ClientSession(String userName) {
+        this.userName = userName;
+        if (!userName.isEmpty()) {
+            Worker.connected(userName);
+        }
+    }
+
+    /**
+     * Checks whether the first line from a client opens a keep-alive session.
+     *
+     * @param line first line sent by the client
+     * @return true for a session line
+     */
+    static boolean isStart(String line) {
+        return line != null && line.startsWith(START);
+    }
+
+    /**
+     * Opens a session from its first line.
+     *
+     * @param line first line sent by the client
+     * @return new session
+     */
+    static ClientSession start(String line) {
+        return new ClientSession(line.substring(START.length()));
+    }
+
+    /**
+     * Serves the only line of a one-shot client, either a plain user name or a
+     * one-shot batch.
+     *
+     * @param line line sent by the client
+     * @param config snapshot of the request
+     * @param out buffer the lines to send back are rendered into
+     */
+    static void oneShot(String line, ServerConfig config, ResponseBuffer out) {
+        if (line == null || !line.startsWith(BATCH_ONE_SHOT)) {
+            Worker.serve(line, config, out);
+            return;
+        }
+        String rest = line.substring(BATCH_ONE_SHOT.length());
+        int space = rest.indexOf(' ');
+        int size = space < 0 ? -1 : batchSize(rest.substring(0, space));
+        if (size < 0) {
+            out.line("@error bad batch request: " + line);
+            return;
+        }
+        String userName = rest.substring(space + 1);
+        long started = System.nanoTime();
+        Worker.connected(userName);
+        ServerMetrics.since(config.mode, ServerMetrics.LOOKUP, started);
+        out.setUser(userName);
+        Worker.nextBatch(userName, config, size, out);
+    }
+
+    /**
+     * Handles one request line of the session, in the snapshot of the server
+     * mode taken when the request is read.
+     *
+     * @param request line sent by the client
+     * @param out buffer the lines to send back are rendered into
+     */
+    void handle(String request, ResponseBuffer out) {
+        if (request.equals(END)) {
+            end();
+            return;
+        }
+        int size = 1;
+        boolean batch = request.startsWith(BATCH);
+        String user = userName;
+        if (batch) {
+            String rest = request.substring(BATCH.length());
+            int space = rest.indexOf(' ');
+            if (space >= 0) {
+                user = rest.substring(space + 1);
+                rest = rest.substring(0, space);
+            }
+            size = batchSize(rest);
+            if (size < 0) {
+                out.line("@error bad batch request: " + request);
+                return;
+            }
+        } else if (request.startsWith(NEXT_FOR)) {
+            user = request.substring(NEXT_FOR.length());
+        } else if (!request.equals(NEXT)) {
+            out.line("@error unknown request: " + request);
+            return;
+        }
+        if (user.isEmpty()) {
+            out.line("@error no user named in a shared session: " + request);
+            return;
+        }
+        ServerConfig config = ServerConfig.current();
+        String unavailable = Worker.unavailableMessage(config);
+        if (unavailable != null) {
+            if (!config.controlSwitch) {
+                end(); // server is shutting down, so this session is over */
+            }
+            out.line(unavailable);
+            return;
+        }
+        if (user != userName) {
+            // a request naming its user is a visit of that user, as a one-shot request is */
+            long started = System.nanoTime();
+            Worker.connected(user);
+            ServerMetrics.since(config.mode, ServerMetrics.LOOKUP, started);
+        }
+        out.setUser(user);
+        if (batch) {
+            Worker.nextBatch(user, config, size, out);
+        } else {
+            Worker.nextFor(user, config, out);
+        }
+    }
+
+    /**
+     * Parses the size of a batch request.
+     *
+     * @param text size sent by the client
+     * @return size between 1 and maxBatch, or -1 if it is not valid
+     */
+    private static int batchSize(String text) {
+        try {
+            int size = Integer.parseInt(text.trim());
+            return (size < 1 || size > maxBatch) ? -1 : size;
+        } catch (NumberFormatException x) {
+            return -1;
+        }
+    }
+
+    /**
+     * Tells whether the session is still open.
+     *
+     * @return false once the session has ended
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Ends the session. Safe to call more than once.
+     */
+    void end() {
+        open = false;
+    }
+}
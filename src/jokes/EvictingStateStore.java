@@ -0,0 +1,466 @@
+/*
+ * EvictingStateStore.java
+ * User state store of the Joke Server that spills idle users to disk, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * EvictingStateStore keeps only the users that are in use on the heap and
+ * spills the rest to a store on disk, so one-off user names from scanners and
+ * typos do not stay in memory for good. A user that comes back is faulted in
+ * from the disk store on its next request, seen jokes/proverbs and all, so it
+ * still gets no repeats.
+ * <p>
+ * The resident users are split over lock stripes by the hash of the user
+ * name, and each stripe keeps its users in a LinkedHashMap in access order.
+ * That makes every stripe an exact LRU list and the store as a whole an
+ * approximate one, with no lock over all users: a new user past the stripe's
+ * share of --state-max-users pushes out the least recently used user of its
+ * own stripe, and a sweeper thread spills users idle for longer than
+ * --state-idle-ttl seconds, oldest first, one stripe at a time.
+ * <p>
+ * The disk store is a MappedStateStore in --spill-file. A user faulted in is
+ * left there too and overwritten the next time it is spilled, so the disk copy
+ * is only read when the user is not resident.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class EvictingStateStore implements UserStateStore {
+
+    /**
+     * A resident user, with the time it was last asked for.
+     */
+    private static final class Resident {
+
+        final Status state; // state of the user */
+        long used; // System.nanoTime of the last request, guarded by the stripe lock */
+
+        /**
+         * Basic constructor for a resident user.
+         *
+         * @param state state of the user
+         * @param used time it was asked for
+         */
+        Resident(Status state, long used) {
+            this.state = state;
+            this.used = used;
+        }
+    }
+
+    /**
+     * One stripe of resident users and the lock guarding them.
+     */
+    private static final class Stripe {
+
+        final ReentrantLock lock = new ReentrantLock(); // guards users and every state in it */
+        final LinkedHashMap<String, Resident> users = new LinkedHashMap<>(16, 0.75f, true); // least recently used first */
+    }
+
+    private final Stripe[] stripes; // a power of two of them */
+    private final int mask; // stripe of a hash is hash & mask */
+    private final int perStripe; // resident users a stripe may hold, 0 for no limit */
+    private final long idleNanos; // idle time before a user is spilled, 0 for never */
+    private final UserStateStore spill; // users that are not resident */
+    private final AtomicInteger iterating = new AtomicInteger(); // forEach calls running, no eviction meanwhile */
+    private final LongAdder users = new LongAdder(); // users resident or spilled */
+    private final LongAdder changes = new LongAdder(); // changes made */
+    private final LongAdder hits = new LongAdder(); // requests for a resident user */
+    private final LongAdder misses = new LongAdder(); // requests for a user that was not resident */
+    private final LongAdder faults = new LongAdder(); // misses read back from the disk store */
+    private final LongAdder evictions = new LongAdder(); // users spilled for room */
+    private final LongAdder expired = new LongAdder(); // users spilled for being idle */
+    private final Thread sweeper; // spills idle users, null when there is no idle time */
+    private volatile StateLog log; // write-ahead log of the picks, null when off */
+    private volatile boolean closed; // set once the store is closed, stops the sweeper */
+
+    /**
+     * Basic constructor for the evicting store.
+     *
+     * @param spill store the users are spilled to
+     * @param maxUsers most resident users, 0 for no limit
+     * @param idleSeconds idle time before a user is spilled, 0 for never
+     * @param stripes number of lock stripes, rounded up to a power of two and
+     * kept at or under maxUsers
+     */
+    EvictingStateStore(UserStateStore spill, int maxUsers, int idleSeconds, int stripes) {
+        int n = 1;
+        while (n < stripes && (maxUsers == 0 || n * 2 <= maxUsers)) {
+            n <<= 1;
+        }
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        mask = n - 1;
+        perStripe = maxUsers == 0 ? 0 : (maxUsers + n - 1) / n;
+        idleNanos = idleSeconds * 1000000000L;
+        this.spill = spill;
+        users.add(spill.size());
+        if (idleSeconds > 0) {
+            long every = Math.max(1000, Math.min(idleSeconds * 250L, 60000));
+            sweeper = new Thread(() -> {
+                while (!closed) {
+                    try {
+                        Thread.sleep(every);
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    sweep();
+                }
+            }, "state-evictor");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        } else {
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Builds the evicting store from the startup options --state-max-users,
+     * --state-idle-ttl and --spill-file, which is sized by --state-capacity
+     * and --state-key-bytes like the mapped store.
+     *
+     * @param options startup options
+     * @return evicting store
+     * @throws IOException if the spill file cannot be mapped
+     */
+    static EvictingStateStore fromOptions(ServerOptions options) throws IOException {
+        int stripes = options.getInt("state-stripes", Striped.DEFAULT_STRIPES);
+        MappedStateStore spill = new MappedStateStore(Paths.get(options.getString("spill-file", "jokes.spill")),
+                options.getInt("state-capacity", 4000000), options.getInt("state-key-bytes", 48), stripes);
+        return new EvictingStateStore(spill, options.getInt("state-max-users", 0),
+                options.getInt("state-idle-ttl", 0), stripes);
+    }
+
+    /**
+     * Returns the stripe of a user.
+     *
+     * @param key key of the user
+     * @return stripe holding the user when it is resident
+     */
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * Returns the resident state of a user, faulting it in from the disk
+     * store or creating it if it is not resident. The stripe must be locked.
+     *
+     * @param stripe stripe of the user
+     * @param key key of the user
+     * @return Status of the user
+     */
+    private Status state(Stripe stripe, String key) {
+        long now = System.nanoTime();
+        Resident resident = stripe.users.get(key);
+        if (resident != null) {
+            hits.increment();
+            resident.used = now;
+            return resident.state;
+        }
+        misses.increment();
+        Status state = spill.get(key);
+        if (state != null) {
+            faults.increment();
+        } else {
+            state = new Status(key);
+            users.increment();
+        }
+        stripe.users.put(key, new Resident(state, now));
+        makeRoom(stripe);
+        return state;
+    }
+
+    /**
+     * Spills the least recently used users of a stripe until it is back to
+     * its share of the resident users. The stripe must be locked.
+     *
+     * @param stripe stripe that just took a user
+     */
+    private void makeRoom(Stripe stripe) {
+        if (perStripe == 0 || iterating.get() != 0) {
+            return;
+        }
+        Iterator<Map.Entry<String, Resident>> eldest = stripe.users.entrySet().iterator();
+        while (stripe.users.size() > perStripe) {
+            Map.Entry<String, Resident> entry = eldest.next();
+            spill.put(entry.getKey(), entry.getValue().state);
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Spills every user idle for longer than the idle time, one stripe at a
+     * time. Runs on the sweeper thread.
+     */
+    void sweep() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                if (iterating.get() != 0) {
+                    return;
+                }
+                long now = System.nanoTime();
+                Iterator<Map.Entry<String, Resident>> eldest = stripe.users.entrySet().iterator();
+                while (eldest.hasNext()) {
+                    Map.Entry<String, Resident> entry = eldest.next();
+                    if (now - entry.getValue().used < idleNanos) {
+                        break; // the rest were asked for later still */
+                    }
+                    spill.put(entry.getKey(), entry.getValue().state);
+                    eldest.remove();
+                    expired.increment();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(String userName) {
+        String key = UserStateStore.key(userName);
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            return stripe.users.containsKey(key) || spill.contains(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the state of a user, live if it is resident and a copy if it
+     * was spilled. It is not faulted in.
+     */
+    @Override
+    public Status get(String userName) {
+        String key = UserStateStore.key(userName);
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            Resident resident = stripe.users.get(key);
+            return resident != null ? resident.state : spill.get(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(String userName, Status state) {
+        String key = UserStateStore.key(userName);
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            changes.increment();
+            if (stripe.users.put(key, new Resident(state, System.nanoTime())) == null) {
+                if (!spill.contains(key)) {
+                    users.increment();
+                }
+                makeRoom(stripe);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public <R> R update(String userName, Function<Status, R> action) {
+        String key = UserStateStore.key(userName);
+        Stripe stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            changes.increment();
+            return action.apply(state(stripe, key));
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    @Override
+    public int takeNext(String userName, int category) {
+        String key = UserStateStore.key(userName);
+        Stripe stripe = stripeFor(key);
+        StateLog wal = log;
+        long logged = 0;
+        int count;
+        stripe.lock.lock();
+        try {
+            changes.increment();
+            Status state = state(stripe, key);
+            boolean reset = wal != null && state.unseenCount(category) == 0;
+            count = state.takeNext(category);
+            if (wal != null) {
+                logged = wal.append(key, category, reset, count);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (wal != null) {
+            wal.awaitDurable(logged);
+        }
+        return count;
+    }
+
+    @Override
+    public int[] takeBatch(String userName, int category, int size) {
+        String key = UserStateStore.key(userName);
+        Stripe stripe = stripeFor(key);
+        StateLog wal = log;
+        long logged = 0;
+        int[] picked;
+        stripe.lock.lock();
+        try {
+            changes.increment();
+            Status state = state(stripe, key);
+            boolean reset = wal != null && state.unseenCount(category) == 0;
+            picked = state.takeBatch(category, size);
+            if (wal != null) {
+                logged = wal.append(key, category, reset, picked, picked.length);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (wal != null) {
+            wal.awaitDurable(logged);
+        }
+        return picked;
+    }
+
+    /**
+     * Hands every user to the action, the spilled ones first and then the
+     * resident ones. Nothing is spilled while this runs. A user faulted in
+     * meanwhile can be handed over twice, the second time with its newer
+     * state, which is what a snapshot wants.
+     */
+    @Override
+    public void forEach(BiConsumer<String, Status> action) {
+        iterating.incrementAndGet();
+        try {
+            for (Stripe stripe : stripes) {
+                // wait out a spill that started before iterating was set */
+                stripe.lock.lock();
+                stripe.lock.unlock();
+            }
+            // the disk store calls back with its own lock held, so only try ours and come back to the rest */
+            List<String> busy = new ArrayList<>();
+            spill.forEach((key, state) -> {
+                Stripe stripe = stripeFor(key);
+                if (!stripe.lock.tryLock()) {
+                    busy.add(key);
+                    return;
+                }
+                try {
+                    if (!stripe.users.containsKey(key)) {
+                        action.accept(key, state);
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            });
+            for (String key : busy) {
+                Stripe stripe = stripeFor(key);
+                stripe.lock.lock();
+                try {
+                    if (!stripe.users.containsKey(key)) {
+                        action.accept(key, spill.get(key));
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+            for (Stripe stripe : stripes) {
+                stripe.lock.lock();
+                try {
+                    for (Map.Entry<String, Resident> entry : stripe.users.entrySet()) {
+                        action.accept(entry.getKey(), entry.getValue().state);
+                    }
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        } finally {
+            iterating.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, users.sum());
+    }
+
+    /**
+     * Returns the number of users on the heap.
+     *
+     * @return resident users
+     */
+    int resident() {
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                n += stripe.users.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public long changes() {
+        return changes.sum();
+    }
+
+    @Override
+    public void setLog(StateLog log) {
+        this.log = log;
+    }
+
+    @Override
+    public String stats() {
+        return "users=" + users.sum() + " resident=" + resident()
+                + " maxResident=" + (perStripe == 0 ? "none" : String.valueOf(perStripe * stripes.length))
+                + " hits=" + hits.sum() + " misses=" + misses.sum() + " faults=" + faults.sum()
+                + " evictions=" + evictions.sum() + " expired=" + expired.sum();
+    }
+
+    /**
+     * Stops the sweeper, spills every resident user and closes the disk
+     * store, so the spill file holds every user after a clean shutdown.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (sweeper != null) {
+            sweeper.interrupt();
+        }
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                for (Map.Entry<String, Resident> entry : stripe.users.entrySet()) {
+                    spill.put(entry.getKey(), entry.getValue().state);
+                }
+                stripe.users.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        spill.close();
+    }
+}
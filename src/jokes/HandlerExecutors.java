@@ -0,0 +1,171 @@
+/*
+ * HandlerExecutors.java
+ * Execution modes for the connection handlers of the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the executor that runs the Worker and AdminWorker tasks. There are
+ * three execution modes:
+ * <ul>
+ * <li>thread - a new platform thread per connection, the original behaviour</li>
+ * <li>virtual - a new virtual thread per connection (needs JDK 21 or later)</li>
+ * <li>pool - a bounded pool of platform threads</li>
+ * </ul>
+ *
+ * @author Kevin Patrick Westropp
+ */
+class HandlerExecutors {
+
+    /**
+     * Creates the executor for an execution mode.
+     *
+     * @param mode thread, virtual or pool
+     * @param poolSize number of threads in pool mode
+     * @param name prefix for the thread names
+     * @return executor to run connection handlers on
+     */
+    static ExecutorService create(String mode, int poolSize, String name) {
+        switch (mode) {
+            case "thread":
+                return new ThreadPerTaskExecutor(name);
+            case "virtual":
+                return virtualThreadPerTask();
+            case "pool":
+                return Executors.newFixedThreadPool(Math.max(1, poolSize), namedThreads(name));
+            default:
+                throw new IllegalArgumentException("Unknown --exec mode: " + mode + " (expected thread, virtual or pool)");
+        }
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor, which only exists
+     * from JDK 21 on. It is looked up by reflection so the project still
+     * builds and runs on older JDKs in the other modes.
+     *
+     * @return executor starting a virtual thread per task
+     */
+    static ExecutorService virtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException x) {
+            throw new IllegalStateException("--exec=virtual needs JDK 21 or later, running on "
+                    + System.getProperty("java.version"), x);
+        }
+    }
+
+    /**
+     * Thread factory giving pool threads readable names.
+     *
+     * @param name prefix for the thread names
+     * @return thread factory
+     */
+    static ThreadFactory namedThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-" + count.incrementAndGet());
+            }
+        };
+    }
+
+    /**
+     * Executor starting a new platform thread for every task, as the server
+     * always did. Shutdown only stops new tasks, running threads finish on
+     * their own; the threads still running are counted so awaitTermination
+     * can wait for them.
+     */
+    static final class ThreadPerTaskExecutor extends AbstractExecutorService {
+
+        private final ThreadFactory threads;
+        private boolean shutdown; // guarded by this */
+        private int running; // tasks started and not finished yet, guarded by this */
+
+        /**
+         * Basic constructor.
+         *
+         * @param name prefix for the thread names
+         */
+        ThreadPerTaskExecutor(String name) {
+            threads = namedThreads(name);
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            synchronized (this) {
+                if (shutdown) {
+                    throw new RejectedExecutionException("Executor has been shut down");
+                }
+                running++;
+            }
+            try {
+                threads.newThread(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        finished();
+                    }
+                }).start();
+            } catch (RuntimeException | Error x) {
+                finished(); // the thread never ran */
+                throw x;
+            }
+        }
+
+        /**
+         * Counts a task as finished, waking awaitTermination after the last.
+         */
+        private synchronized void finished() {
+            if (--running == 0) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public synchronized List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public synchronized boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public synchronized boolean isTerminated() {
+            return shutdown && running == 0;
+        }
+
+        @Override
+        public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (!(shutdown && running == 0)) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * HttpFrontEnd.java
+ * HTTP/1.1 front end for the Joke Server, by Westropp
+ */
+package jokes;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HttpFrontEnd serves the jokes/proverbs over HTTP/1.1 for load balancers,
+ * health checkers and anything else that does not speak the line protocol,
+ * on the JDK's built in HttpServer with its handlers run on a bounded pool:
+ * <pre>
+ *   GET /joke?user=name              the next joke of the user
+ *   GET /proverb?user=name           the next proverb of the user
+ *   GET /jokes?user=name&amp;n=5         a batch of up to n jokes, one per line
+ *   GET /proverbs?user=name&amp;n=5      a batch of up to n proverbs, one per line
+ *   GET /health                      200 while serving, 503 in maintenance or at shutdown
+ * </pre>
+ * HEAD is taken on /health only: the length of a joke/proverb is not known
+ * until one is picked, and a HEAD must not use up the next one of a user.
+ * The requests are served by the same store and catalogs as the Worker, a
+ * path naming its category whatever the mode is, except that maintenance
+ * mode answers 503 with the unavailable message. Every answer has a
+ * Content-Length, so connections are kept alive between requests.
+ * <p>
+ * The header values are built once, not per request, and every body is
+ * rendered into one ResponseBuffer per handler thread and written with one
+ * write. Small answers go out as the header write and the body write the
+ * JDK server makes, with TCP_NODELAY on so the second is not held back by
+ * Nagle's algorithm waiting on a delayed ack.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class HttpFrontEnd {
+
+    private static final List<String> TEXT_PLAIN
+            = Collections.singletonList("text/plain; charset=" + ResponseBuffer.CHARSET.name()); // Content-Type of every answer */
+    private static final List<String> RETRY_AFTER = Collections.singletonList("5"); // seconds to wait when unavailable */
+    private static final List<String> ALLOW = Collections.singletonList("GET, HEAD"); // methods taken */
+    private static final List<String> ALLOW_GET = Collections.singletonList("GET"); // methods taken by the pick paths */
+    private static final byte[] HEALTHY = "ok\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IN_MAINTENANCE = "maintenance\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SHUTTING_DOWN = "shutting down\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final HttpServer server;
+    private final ExecutorService handlers; // runs the exchanges */
+    private final ThreadLocal<ResponseBuffer> buffers = ThreadLocal.withInitial(ResponseBuffer::new); // one per handler thread */
+
+    /**
+     * Builds the front end from the server options --http-port (0, the
+     * default, leaves it off), --http-threads and --http-backlog.
+     *
+     * @param options server options
+     * @return front end, started, or null when it is off
+     * @throws IOException if the port cannot be bound
+     */
+    static HttpFrontEnd fromOptions(ServerOptions options) throws IOException {
+        int port = options.getInt("http-port", 0);
+        if (port <= 0) {
+            return null;
+        }
+        HttpFrontEnd http = new HttpFrontEnd(port, options.getInt("http-backlog", 64),
+                options.getInt("http-threads", 2 * Runtime.getRuntime().availableProcessors()));
+        ServerLog.info("HTTP front end listening at port " + port + ".");
+        return http;
+    }
+
+    /**
+     * Binds and starts the front end.
+     *
+     * @param port port to listen at
+     * @param backlog accept queue length
+     * @param threads handler threads
+     * @throws IOException if the port cannot be bound
+     */
+    HttpFrontEnd(int port, int backlog, int threads) throws IOException {
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            // read once by the JDK server, so set before it is first used */
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), backlog);
+        handlers = HandlerExecutors.create("pool", threads, "http-worker");
+        server.setExecutor(handlers);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Stops taking requests, giving the ones running a second to finish.
+     */
+    void close() {
+        server.stop(1);
+        handlers.shutdown();
+        try {
+            handlers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serves one exchange.
+     *
+     * @param exchange request and response
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        long started = System.nanoTime();
+        ResponseBuffer out = buffers.get();
+        out.reset();
+        try {
+            String method = exchange.getRequestMethod();
+            boolean head = method.equals("HEAD");
+            if (!head && !method.equals("GET")) {
+                exchange.getResponseHeaders().put("Allow", ALLOW);
+                send(exchange, 405, out, false);
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            ServerConfig config = ServerConfig.current();
+            if (path.equals("/health")) {
+                byte[] body = !config.controlSwitch ? SHUTTING_DOWN
+                        : config.mode == ServerConfig.MAINTENANCE_MODE ? IN_MAINTENANCE : HEALTHY;
+                out.append(body, 0, body.length);
+                send(exchange, body == HEALTHY ? 200 : 503, out, head);
+                return;
+            }
+            int mode = path.equals("/joke") || path.equals("/jokes") ? ServerConfig.JOKE_MODE
+                    : path.equals("/proverb") || path.equals("/proverbs") ? ServerConfig.PROVERB_MODE : 0;
+            if (mode == 0) {
+                out.line("no such path: " + path);
+                send(exchange, 404, out, head);
+                return;
+            }
+            if (head) {
+                exchange.getResponseHeaders().put("Allow", ALLOW_GET);
+                send(exchange, 405, out, true);
+                return;
+            }
+            String query = exchange.getRequestURI().getRawQuery();
+            String userName = parameter(query, "user");
+            boolean batch = path.endsWith("s");
+            int size = batch ? parseSize(parameter(query, "n")) : 1;
+            if (userName == null || userName.isEmpty() || size < 1) {
+                out.line(userName == null || userName.isEmpty() ? "no user named, add ?user=name"
+                        : "bad batch size, add &n=1 to " + ClientSession.maxBatch);
+                send(exchange, 400, out, false);
+                return;
+            }
+            String unavailable = Worker.unavailableMessage(config);
+            if (unavailable != null) {
+                exchange.getResponseHeaders().put("Retry-After", RETRY_AFTER);
+                out.line(unavailable);
+                send(exchange, 503, out, false);
+                return;
+            }
+            config = config.withMode(mode);
+            if (batch) {
+                long looking = System.nanoTime();
+                Worker.connected(userName);
+                ServerMetrics.since(config.mode, ServerMetrics.LOOKUP, looking);
+                out.setUser(userName);
+                int category = config.category();
+                long picking = System.nanoTime();
+                int[] picked = JokeServer.getStore().takeBatch(userName, category, size);
+                long selected = ServerMetrics.since(config.mode, ServerMetrics.SELECT, picking);
+                Catalog catalog = JokeServer.getCatalog(category);
+                for (int count : picked) {
+                    catalog.renderTo(count, out);
+                    out.endLine();
+                }
+                ServerMetrics.since(config.mode, ServerMetrics.RENDER, selected);
+            } else {
+                Worker.serve(userName, config, out);
+            }
+            long writing = System.nanoTime();
+            send(exchange, 200, out, false);
+            ServerMetrics.since(config.mode, ServerMetrics.WRITE, writing);
+            ServerMetrics.since(config.mode, ServerMetrics.TOTAL, started);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Sends the status and the prebuilt headers, then the rendered body as
+     * one write of its own.
+     *
+     * @param exchange request and response
+     * @param status HTTP status code
+     * @param out rendered body
+     * @param head true to send the headers only
+     */
+    private static void send(HttpExchange exchange, int status, ResponseBuffer out, boolean head) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.put("Content-Type", TEXT_PLAIN);
+        if (head) {
+            headers.put("Content-Length", Collections.singletonList(Integer.toString(out.length())));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, out.isEmpty() ? -1 : out.length());
+        if (!out.isEmpty()) {
+            OutputStream body = exchange.getResponseBody();
+            out.writeTo(body);
+            body.close();
+        }
+    }
+
+    /**
+     * Finds a parameter of a query string.
+     *
+     * @param query raw query, or null
+     * @param name parameter name
+     * @return decoded value, or null if it is not there
+     */
+    static String parameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.startsWith(name) && pair.length() > name.length() && pair.charAt(name.length()) == '=') {
+                return URLDecoder.decode(pair.substring(name.length() + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a batch size.
+     *
+     * @param value n parameter, or null
+     * @return the size, or -1 if missing, not a number or over --max-batch
+     */
+    private static int parseSize(String value) {
+        try {
+            int size = Integer.parseInt(value);
+            return size <= ClientSession.maxBatch ? size : -1;
+        } catch (NumberFormatException x) {
+            return -1;
+        }
+    }
+}
@@ -6,6 +6,10 @@ package jokes;
 
 import java.io.*;
 import java.net.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import javax.net.SocketFactory;
 
 /**
  * This class is to be used with the Joke Server - a multi-threader server, used
@@ -15,19 +19,47 @@ import java.net.*;
  */
 public class JokeClient {
 
+    static SocketFactory sockets = SocketFactory.getDefault(); // plain sockets, or TLS ones with --tls */
+
     /**
      * Main method for the client, this is where the bulk of the interaction
-     * with the user happens - prompting for user name and user input.
+     * with the user happens - prompting for user name and user input. The
+     * client asks through an AsyncJokeClient, which keeps its connection open
+     * for the whole run (--timeout-ms, --retries and --backoff-ms tune it, and
+     * --binary has it speak the BinaryProtocol). With --tls it connects over
+     * TLS and resumes its sessions, see TlsSupport. Start it with --oneshot
+     * to connect once per joke like older clients do. Answering with a number
+     * asks for that many jokes at once. Start it with --load to run
+     * the headless LoadGenerator instead of the prompt, see there for its
+     * options.
      */
     public static void main(String args[]) {
         // String variable for storing server name = localhost/IP address - whatever computer is running Server. */
-        String serverName;
-        if (args.length < 1) {
-            // if server is on the local machine */
-            serverName = "localhost";
-        } else {
-            // else whatever the IP address of the machine running the server */
-            serverName = args[0];
+        String serverName = "localhost";
+        // true to open a new connection for every joke */
+        boolean oneShot = false;
+        for (String arg : args) {
+            if (arg.equals("--oneshot")) {
+                oneShot = true;
+            } else if (!arg.startsWith("--")) {
+                // whatever the IP address of the machine running the server */
+                serverName = arg;
+            }
+        }
+        ServerOptions options = new ServerOptions(args);
+        try {
+            sockets = TlsSupport.clientSockets(options);
+        } catch (IOException x) {
+            System.out.println(x.getMessage());
+            return;
+        }
+        if (options.getBoolean("load", false)) {
+            try {
+                new LoadGenerator(options, serverName).run();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            return;
         }
         System.out.println("Kevin Westropp's Joke Client.\n");
         printLocalAddress();
@@ -44,18 +76,28 @@ public class JokeClient {
             userName = in.readLine();
             // String variable for saving user input. */
             String userInput;
+            // pooled keep-alive client, opens its connection on the first joke */
+            AsyncJokeClient client = oneShot ? null : new AsyncJokeClient(serverName, 1699, options);
             do {
                 // Prompt user to continue - hear a joke or quit. */
-                System.out.print("Would you like to hear a joke? 'yes' for a joke or 'no' to quit: ");
+                System.out.print("Would you like to hear a joke? 'yes' for a joke, a number for that many, or 'no' to quit: ");
                 // forces output to be written to System.out - good practice */
                 System.out.flush();
                 // reads the input/response from user */
                 userInput = in.readLine();
                 // if userinput is not to quit then we connect to server */
                 if (userInput.indexOf("no") < 0) {
-                    connectToServer(userName, serverName);
+                    int batch = batchSize(userInput);
+                    if (oneShot) {
+                        connectToServer(batch > 1 ? "@batch " + batch + " " + userName : userName, serverName);
+                    } else {
+                        nextFromClient(client, userName, batch);
+                    }
                 }
             } while (userInput.indexOf("no") < 0);
+            if (client != null) {
+                client.close();
+            }
             System.out.println("Cancelled by user request.");
         } catch (IOException x) {
             // prints Exception Stack Trace. */
@@ -63,6 +105,97 @@ public class JokeClient {
         }
     }
 
+    /**
+     * Reads how many jokes the user asked for.
+     *
+     * @param userInput answer typed by the user
+     * @return the number typed, or 1 for any other answer
+     */
+    static int batchSize(String userInput) {
+        try {
+            return Math.max(1, Integer.parseInt(userInput.trim()));
+        } catch (NumberFormatException x) {
+            return 1;
+        }
+    }
+
+    /**
+     * Asks for the next jokes/proverbs through the client library, which
+     * keeps the connection open between them and opens a fresh one, with a
+     * retry, if the server dropped it.
+     *
+     * @param client pooled client
+     * @param userName name of user
+     * @param batch number of jokes/proverbs to ask for
+     */
+    static void nextFromClient(AsyncJokeClient client, String userName, int batch) {
+        try {
+            List<String> lines = batch > 1 ? client.batch(userName, batch).get()
+                    : Collections.singletonList(client.next(userName).get());
+            for (String textFromServer : lines) {
+                System.out.println(textFromServer);
+            }
+        } catch (ExecutionException x) {
+            System.out.println("Socket error.");
+            // prints stack trace of the cause. */
+            x.getCause().printStackTrace();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One keep-alive connection to the Joke Server. The user name is sent once
+     * when the connection opens, after that each next() asks for one more
+     * joke/proverb on the same socket.
+     */
+    static class KeepAliveConnection {
+
+        private final Socket sock;
+        private final BufferedReader fromServer;
+        private final PrintStream toServer;
+
+        /**
+         * Opens the connection and starts a session for the user.
+         *
+         * @param serverName = local host
+         * @param port of the server
+         * @param userName name of user
+         */
+        KeepAliveConnection(String serverName, int port, String userName) throws IOException {
+            sock = sockets.createSocket(serverName, port);
+            fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            toServer = new PrintStream(sock.getOutputStream());
+            toServer.println("@session " + userName);
+            toServer.flush();
+        }
+
+        /**
+         * Asks for the next joke/proverb and waits for it.
+         *
+         * @return line from the server, or null if the server closed the
+         * connection
+         */
+        String next() throws IOException {
+            toServer.println("next");
+            toServer.flush();
+            return fromServer.readLine();
+        }
+
+        /**
+         * Ends the session and closes the socket.
+         */
+        void close() {
+            toServer.println("end");
+            toServer.flush();
+            try {
+                sock.close();
+            } catch (IOException x) {
+                System.out.println("Socket error.");
+            }
+        }
+    }
+
     /**
      * This method prints out the local IP address and name.
      */
@@ -111,7 +244,7 @@ public class JokeClient {
 
         try {
             /*Open a connection to server port */
-            sock = new Socket(serverName, 1699);
+            sock = sockets.createSocket(serverName, 1699);
 
             //Create filter I/O streams for the socket */
             fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
@@ -122,10 +255,14 @@ public class JokeClient {
             // good pratice to flush the stream so as not to lose data */ 
             toServer.flush();
 
-            // Read two or three lines of response from the server, and block while synchronously waiting. */
-            for (int i = 1; i <= 1; i++) {
+            // Read the response from the server, and block while synchronously waiting. A batch answer */
+            // starts with a header line giving the number of lines after it. */
+            int lines = 1;
+            for (int i = 1; i <= lines; i++) {
                 textFromServer = fromServer.readLine();
-                if (textFromServer != null) {
+                if (textFromServer != null && i == 1 && textFromServer.startsWith("@items ")) {
+                    lines += Integer.parseInt(textFromServer.substring("@items ".length()).trim());
+                } else if (textFromServer != null) {
                     System.out.println(textFromServer);
                 }
             }
@@ -6,24 +6,37 @@ package jokes;
 
 import java.io.*;
 import java.net.*;
+import javax.net.SocketFactory;
 
 /**
  * This class is to be used with the Joke Server - a multi-threader server, used
  * to provide jokes/proverbs to the Joke client, this class controls the
+ * server mode and shows its stats. Every answer is printed until the server
+ * closes the connection, however many lines it has. After 'watch [seconds]'
+ * the server pushes a stats line every interval until Enter is pressed.
+ * Start it with --tls to connect over TLS, see TlsSupport.
  *
  * @author Kevin Patrick Westropp
  */
 public class JokeClientAdmin {
 
+    static SocketFactory sockets = SocketFactory.getDefault(); // plain sockets, or TLS ones with --tls */
+
     public static void main(String args[]) {
         // String variable for storing server name = localhost - whatever computer is running the Server. */
-        String serverName;
-        if (args.length < 1) {
-            // if server is on the local machine */
-            serverName = "localhost";
-        } else {
-            // else whatever the IP address of the machine running the server */
-            serverName = args[0];
+        // if server is on the local machine */
+        String serverName = "localhost";
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                // else whatever the IP address of the machine running the server */
+                serverName = arg;
+            }
+        }
+        try {
+            sockets = TlsSupport.clientSockets(new ServerOptions(args));
+        } catch (IOException x) {
+            System.out.println(x.getMessage());
+            return;
         }
         System.out.println("Kevin Westropp's Joke Client Admin.\n");
         printLocalAddress();
@@ -32,7 +45,7 @@ public class JokeClientAdmin {
         try {
             String command; // String variable for saving user input. */
             do {
-                System.out.print("Enter server mode: (a): 'joke' (b): 'proverb' (c): 'maintenance' (to end client session): 'quit' (to shutdown server): 'shutdown' -: "); // Prompt admin for a server mode */
+                System.out.print("Enter server mode: (a): 'joke' (b): 'proverb' (c): 'maintenance' (stats): 'status' 'metrics' 'watch [seconds]' 'help' (to end client session): 'quit' (to shutdown server): 'shutdown' -: "); // Prompt admin for a server mode */
                 // forces output to be written to System.out */
                 System.out.flush();
                 // reads the input/response from user */
@@ -40,7 +53,7 @@ public class JokeClientAdmin {
                 // if command is not quit and the mode is valid, you send the command to the server */
                 if (command.indexOf("quit") < 0) {
                     if (command.indexOf("joke") < 0 || command.indexOf("proverb") < 0 || command.indexOf("maintenance") < 0 || command.indexOf("shutdown") < 0) {
-                        connectToServer(command, serverName);
+                        connectToServer(command, serverName, in);
                     } else {
                         System.out.println("Mode is not valid, please try again.");
                     }
@@ -90,10 +103,11 @@ public class JokeClientAdmin {
     /**
      * This method gets the Remote Address requested by the user.
      *
-     * @param name of input by user
+     * @param command input by user
      * @param serverName = local host
+     * @param console reader of the admin's input, to stop a watch with Enter
      */
-    static void connectToServer(String command, String serverName) {
+    static void connectToServer(String command, String serverName, BufferedReader console) {
         Socket adsock;
         BufferedReader fromServer;
         PrintStream toServer;
@@ -101,7 +115,7 @@ public class JokeClientAdmin {
 
         try {
             /*Open a connection to server port */
-            adsock = new Socket(serverName, 2565);
+            adsock = sockets.createSocket(serverName, 2565);
 
             //Create filter I/O streams for the socket */
             fromServer = new BufferedReader(new InputStreamReader(adsock.getInputStream()));
@@ -111,16 +125,38 @@ public class JokeClientAdmin {
             toServer.println(command);
             toServer.flush();
 
-            // Read two or three lines of response from the server,
-            // and block while synchronously waiting. */
-            for (int i = 1; i <= 3; i++) {
+            textFromServer = fromServer.readLine();
+            if (textFromServer != null && textFromServer.startsWith("watching")) {
+                System.out.println(textFromServer);
+                // print the pushed lines on a thread of their own until Enter is pressed */
+                final BufferedReader pushed = fromServer;
+                Thread printer = new Thread(() -> {
+                    try {
+                        String line;
+                        while ((line = pushed.readLine()) != null) {
+                            System.out.println(line);
+                        }
+                    } catch (IOException x) {
+                        // the socket was closed to stop watching */
+                    }
+                });
+                printer.start();
+                System.out.println("(press Enter to stop watching)");
+                console.readLine();
+                adsock.close();
+                printer.join();
+                return;
+            }
+            // Read every line of the response until the server closes the
+            // connection, and block while synchronously waiting. */
+            while (textFromServer != null) {
+                System.out.println(textFromServer);
                 textFromServer = fromServer.readLine();
-                if (textFromServer != null) {
-                    System.out.println(textFromServer);
-                }
             }
             // close the socket connection */
             adsock.close();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
         } catch (IOException x) {
             System.out.println("Socket error.");
             // prints stack trace of exception. */
@@ -8,64 +8,38 @@ import java.io.*;
 import java.net.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.net.ssl.SSLServerSocket;
 
 /**
- * Status class holds data elements for storing the state of the communication
- * between the client/user and the server.
+ * AdminLooper class which implements the Runnable class and loops waiting for
+ * an administration client connection.
  */
-class Status {
+class AdminLooper implements Runnable {
 
-    String userName; // string of user name */
-    Boolean[] userJokes; // Boolean array to hold what jokes have been sent */
-    Boolean[] userProverbs; // Boolean array to hold what proverbs have been sent */
+    private final ExecutorService handlers; // runs the AdminWorker tasks */
+    private final int q_len; // Number of requests for OpSys to queue */
 
     /**
-     * This is a basic constructor for a new Status object.
+     * Basic constructor for the Administration Looper.
      *
-     * @param user name
+     * @param handlers executor to run each AdminWorker on
+     * @param backlog number of requests for OpSys to queue
      */
-    Status(String user) {
-        userName = user;
-        userJokes = flushArray(new Boolean[5]);
-        userProverbs = flushArray(new Boolean[5]);
+    AdminLooper(ExecutorService handlers, int backlog) {
+        this.handlers = handlers;
+        this.q_len = backlog;
     }
 
-    /**
-     * Flushes/clears the array to false for storing the record.
-     *
-     * @param Boolean array to be setup for keeping record
-     */
-    static Boolean[] flushArray(Boolean[] record) {
-        for (int i = 0; i < 5; i++) {
-            record[i] = false;
-        }
-        return record;
-    }
-}
-
-/**
- * AdminLooper class which implements the Runnable class and loops waiting for
- * an administration client connection.
- */
-class AdminLooper implements Runnable {
-
-    public static boolean adminControlSwitch = true;
-
     /**
      * Sets the administration control switch for shutdown.
      *
      * @param control boolean false set to false for shutdown
      */
-    public static synchronized void setControl(boolean control) {
-        if (!control) {
-            adminControlSwitch = false;
-        } else {
-            adminControlSwitch = true;
-        }
+    public static void setControl(boolean control) {
+        ServerConfig.update(config -> config.withAdminControl(control));
     }
 
     /**
@@ -73,12 +47,8 @@ class AdminLooper implements Runnable {
      *
      * @return true for control switch not set, false otherwise
      */
-    public static synchronized boolean getControl() {
-        if (adminControlSwitch) {
-            return true;
-        } else {
-            return false;
-        }
+    public static boolean getControl() {
+        return ServerConfig.current().adminControlSwitch;
     }
 
     /**
@@ -87,33 +57,44 @@ class AdminLooper implements Runnable {
      */
     @Override
     public void run() {
-        System.out.println("Admin looper thread running.");
+        ServerLog.info("Admin looper thread running.");
 
-        int q_len = 6; // Number of requests for OpSys to queue */
         int port = 2565; // Listening in on different port for admins */
         Socket adsock;
 
         try {
-            ServerSocket servsock = new ServerSocket(port, q_len) {};
-            while (adminControlSwitch) {
+            ServerSocket servsock = JokeServer.listen(port, q_len);
+            while (ServerConfig.current().adminControlSwitch) {
                 //wait for the next ADMIN client connection */
                 adsock = servsock.accept();
-                // start a new admin worker thread when an admin client connects */
-                new AdminWorker(adsock).start();
+                // hand a new admin worker to the executor when an admin client connects */
+                handlers.execute(new AdminWorker(adsock));
             }
+            handlers.shutdown();
         } catch (IOException ioe) {
-            System.out.println("Server admin error");
-            // prints Exception Stack Trace. */
-            ioe.printStackTrace();
+            // logs the Exception Stack Trace. */
+            ServerLog.error("Server admin error", ioe);
         }
     }
 }
 
 /**
- * Administration Worker Thread which communicates with the Joke Administration
- * Client to set server mode and shutdown the server.
+ * Administration Worker task which communicates with the Joke Administration
+ * Client to set server mode and shutdown the server. It is run on whichever
+ * executor the server was started with.
+ * <p>
+ * Besides the mode names and shutdown it answers read-only commands, each
+ * with one or more lines before it closes the connection: status, metrics,
+ * pressure, users, log, tls and help. The command watch [seconds] keeps the
+ * connection and pushes a compact stats line every interval (1 second by
+ * default) until the admin client hangs up or the server shuts down. A watch
+ * runs on a thread of its own, so watchers never hold up the admin workers.
  */
-class AdminWorker extends Thread {
+class AdminWorker implements Runnable {
+
+    /* Commands the admin client can send, for help. */
+    static final String HELP = "joke | proverb | maintenance | shutdown | status | metrics | pressure | users | log"
+            + " | tls | watch [seconds] | help";
 
     Socket adSock; // Administration socket for incoming admin connection
 
@@ -127,8 +108,8 @@ class AdminWorker extends Thread {
     }
 
     /**
-     * Get I/O streams from the socket, override annotation to override Thread
-     * which is inherited from parent class.
+     * Get I/O streams from the socket, override annotation to override the
+     * Runnable run method.
      */
     @Override
     public void run() {
@@ -139,474 +120,354 @@ class AdminWorker extends Thread {
         try {
             out = new PrintStream(adSock.getOutputStream());
             in = new BufferedReader(new InputStreamReader(adSock.getInputStream()));
+            // true once a watch thread owns the connection */
+            boolean watching = false;
             // If the control switch for the server is false then the server is going to shutdown */
             if (AdminLooper.getControl() != true) {
-                System.out.println("Server is now shutting down as per admin request. Goodbye! ");
+                ServerLog.info("Server is now shutting down as per admin request. Goodbye! ");
                 out.println("Server is now shutting down. Goodbye!");
             } else {
                 try {
                     // local string to hold command from the admin client */
                     String mode;
                     mode = in.readLine();
-                    // if admin requests shutdown the joke server and the admin looper is set for shutdown */
-                    if (mode.indexOf("shutdown") > -1) {
-                        JokeServer.setControl(false);
-                        AdminLooper.setControl(false);
-                        System.out.println("Worker has captured a shutdown request.");
+                    if (mode == null) {
+                        // the admin client hung up without a command, nothing to do */
+                        ServerLog.warn("Admin connection closed without a command.");
+                    } else if (mode.indexOf("shutdown") > -1) {
+                        // if admin requests shutdown the joke server and the admin looper is set for shutdown */
+                        // both switches go off in one snapshot */
+                        ServerConfig.update(config -> config.withControl(false).withAdminControl(false));
+                        ServerLog.info("Worker has captured a shutdown request.");
                         out.println("Shutdown request has been noted by worker.");
                         out.println("Please send final shutdown request to server.");
+                    } else if (mode.equals("pressure")) {
+                        // report the backpressure counters back to the admin client */
+                        out.println(JokeServer.getAdmission().stats());
+                    } else if (mode.equals("users")) {
+                        // report the user state store counters back to the admin client */
+                        out.println(JokeServer.getStore().stats());
+                    } else if (mode.equals("metrics")) {
+                        // report the throughput and latency percentiles back to the admin client */
+                        out.println(ServerMetrics.report());
+                    } else if (mode.equals("log")) {
+                        // report the log counters back to the admin client */
+                        out.println(ServerLog.stats());
+                    } else if (mode.equals("tls")) {
+                        // report the handshake counters back to the admin client */
+                        out.println(JokeServer.getTls() == null ? "tls=off" : JokeServer.getTls().stats());
+                    } else if (mode.equals("status")) {
+                        // report the mode, connections, users and heap back to the admin client */
+                        out.println(ServerMetrics.status());
+                    } else if (mode.equals("help")) {
+                        out.println(HELP);
+                    } else if (mode.equals("watch") || mode.startsWith("watch ")) {
+                        // hand the connection to a watch thread of its own */
+                        watching = startWatch(adSock, out, mode.substring("watch".length()).trim());
                     } else {
                         // otherwise the mode will switch depending on the command */
-                        System.out.println("Server is now set to " + mode + " mode.");
+                        ServerLog.info("Server is now set to " + mode + " mode.");
                         JokeServer.changeServerMode(mode);
                     }
                 } catch (IOException x) {
-                    System.out.println("Server read error");
-                    // prints Exception Stack Trace. */
-                    x.printStackTrace();
+                    // logs the Exception Stack Trace. */
+                    ServerLog.error("Server read error", x);
                 }
             }
             // close this connection, but not the server. */
-            adSock.close();
-        } catch (IOException ioe) {
-            System.out.println(ioe);
-        }
-    }
-}
-
-/**
- * Class definition for worker class, extends the Java thread class. This class
- * handles the each thread created by the Server Class.
- *
- * @author Kevin Patrick Westropp
- */
-class Worker extends Thread {
-
-    /* Class member, socket, local to Worker. */
-    Socket sock;
-
-    /**
-     * Constructor to assign s to local socket
-     */
-    Worker(Socket s) {
-        sock = s;
-    }
-
-    /**
-     * Get I/O streams from the socket, override annotation to override Thread
-     * which is inherited from parent class. Handles reading userName from
-     * client, then finding the state if user is not new, then calling the
-     * service handler and finally updating the count to reflect the state of
-     * the jokes/proverbs sent.
-     */
-    @Override
-    public void run() {
-        // intialize and set new PrintStream out to null */
-        PrintStream out = null;
-        // intialize and set new BufferedReader in to null */
-        BufferedReader in = null;
-        try {
-            out = new PrintStream(sock.getOutputStream());
-            in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            if (JokeServer.getControl() != true) {
-                System.out.println("Server Shutdown mode.");
-                out.println("The server is shutting down, Goodbye!");
-            } else if (JokeServer.getServerMode() == 3) {
-                // if server is in maintenance mode just send back message to try back later */
-                System.out.println("Maintenance Mode: Request from Client.");
-                out.println("The server is temporarily unavailable -- check-back shortly.");
-            } else {
-                try {
-                    // local Status to hold status/state of user
-                    Status currentUser;
-                    // local count number to pick a joke/proverb to send to user */
-                    int count;
-                    // local copy of the userName sent over from the client. */
-                    String userName;
-                    userName = in.readLine();
-                    // checks if the server has a state stored if so it gets it from the server */
-                    if (JokeServer.checkUser(userName)) {
-                        System.out.println(userName + " has connected.");
-                        currentUser = JokeServer.getUserState(userName);
-                        if ((count = getCount(currentUser)) < 0) {
-                            currentUser = flushArray(currentUser);
-                            count = randomCount();
-                        }
-                    } else {
-                        // this is a new user and so a new state must be created to store what has been sent */
-                        System.out.println("New User: " + userName + " has connected.");
-                        count = randomCount();
-                        currentUser = new Status(userName);
-                    }
-                    // call the service handler with the count, username and printstream */
-                    serviceHandler(userName, count, out);
-                    // update the count in the users arrays of stored state */
-                    currentUser = updateCount(currentUser, count);
-                    // last thing to do is store state on the server before we close the socket */
-                    JokeServer.storeUserState(userName, currentUser);
-                } catch (IOException x) {
-                    System.out.println("Server read error");
-                    x.printStackTrace();    // prints Exception Stack Trace. */
-                }
+            if (!watching) {
+                adSock.close();
             }
-
-            sock.close();   // close this connection, but not the server. */
         } catch (IOException ioe) {
-            System.out.println(ioe);
+            ServerLog.warn(ioe.toString());
         }
     }
 
     /**
-     * Updates the count/index of the joke/proverb array to reflect that the
-     * joke/proverb has been sent.
+     * Starts a watch thread that writes ServerMetrics.watchLine to the admin
+     * client every interval, and closes the connection once the client hangs
+     * up or the server shuts down.
      *
-     * @param state status object
-     * @param count index of joke/proverb: true means it has been sent
-     */
-    static Status updateCount(Status state, int count) {
-        if (JokeServer.getServerMode() == 2) {
-            state.userProverbs[count] = true;
-        } else {
-            state.userJokes[count] = true;
+     * @param s socket of the admin connection
+     * @param out PrintStream of the admin connection
+     * @param seconds interval as sent by the admin client, empty for 1
+     * @return true if the thread was started and owns the connection, false
+     * if the interval was not understood and an error line was sent instead
+     */
+    static boolean startWatch(final Socket s, final PrintStream out, String seconds) {
+        final long interval;
+        try {
+            interval = seconds.isEmpty() ? 1 : Long.parseLong(seconds);
+        } catch (NumberFormatException x) {
+            out.println("Unknown watch interval: " + seconds + " (expected whole seconds)");
+            return false;
         }
-        return state;
-    }
-
-    /**
-     * Method looks through the array of jokes or proverbs to find a joke or
-     * proverb that hasn't been sent to the user yet. If all have been sent then
-     * it clears/flushes the array and starts over with another random number.
-     *
-     * @param state status object of the current user
-     * @return integer of the count - index of joke that hasn't been sent yet or
-     * a random joke to send.
-     */
-    static int getCount(Status state) {
-        int temp = randomCount();
-        int tempAlt = randomCount();
-        if (JokeServer.getServerMode() == 2) {
-            if (state.userProverbs[temp] == false) {
-                return temp;
-            } else if (state.userProverbs[tempAlt] == false) {
-                return tempAlt;
-            } else {
-                for (int i = 0; i < 5; i++) {
-                    if (state.userProverbs[i] == false) {
-                        return i;
-                    }
+        if (interval < 1 || interval > 3600) {
+            out.println("Watch interval must be 1 to 3600 seconds");
+            return false;
+        }
+        Thread watcher = new Thread(() -> {
+            ServerMetrics.Window window = new ServerMetrics.Window();
+            try {
+                out.println("watching every " + interval + "s, units=us");
+                while (!out.checkError() && ServerConfig.current().controlSwitch) {
+                    Thread.sleep(interval * 1000);
+                    out.println(ServerMetrics.watchLine(window));
                 }
-            }
-        } else {
-            if (state.userJokes[temp] == false) {
-                return temp;
-            } else if (state.userJokes[tempAlt] == false) {
-                return tempAlt;
-            } else {
-                for (int i = 0; i < 5; i++) {
-                    if (state.userJokes[i] == false) {
-                        return i;
-                    }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    s.close();
+                } catch (IOException x) {
+                    ServerLog.warn(x.toString());
                 }
             }
-        }
-        return -1;
-    }
-
-    /**
-     * Returns a random number between 0-4.
-     *
-     * @return random integer number
-     */
-    static int randomCount() {
-        double temp = Math.random() * 5;
-        int count = (int) temp;
-        return count;
+        }, "admin-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+        return true;
     }
+}
 
-    /**
-     * Flushes/clears the array to false for storing the record.
-     *
-     * @param Status state of user
-     * @return Status state of user
-     */
-    static Status flushArray(Status state) {
-        if (JokeServer.getServerMode() == 2) {
-            for (int i = 0; i < 5; i++) {
-                state.userProverbs[i] = false;
-            }
-        } else {
-            for (int i = 0; i < 5; i++) {
-                state.userJokes[i] = false;
-            }
-        }
-        return state;
-    }
+/**
+ * A multi-threaded server for the Joke Client and Joke Client Administration
+ * which can handle multiple requests from clients for jokes/proverbs, by using
+ * the worker classes above.
+ */
+public class JokeServer {
 
-    /**
-     * This method handles the servicing of the jokes/proverbs out to the
-     * client.
-     *
-     * @param userName of client receiving joke/proverb
-     * @param out PrintStream of client to be sent over the socket
-     * @param count random/or seemly somewhat random number for picking a
-     * joke/proverb
-     */
-    static void serviceHandler(String userName, int count, PrintStream out) {
-        String joke = "";
-        if (JokeServer.getServerMode() == 2) {
-            switch (count) {
-                case 0:
-                    joke = proverbD(userName);
-                    break;
-                case 1:
-                    joke = proverbE(userName);
-                    break;
-                case 2:
-                    joke = proverbA(userName);
-                    break;
-                case 3:
-                    joke = proverbC(userName);
-                    break;
-                case 4:
-                    joke = proverbB(userName);
-                    break;
-            }
-        } else {
-            switch (count) {
-                case 0:
-                    joke = jokeE(userName);
-                    break;
-                case 1:
-                    joke = jokeA(userName);
-                    break;
-                case 2:
-                    joke = jokeD(userName);
-                    break;
-                case 3:
-                    joke = jokeC(userName);
-                    break;
-                case 4:
-                    joke = jokeB(userName);
-                    break;
-            }
-        }
-        out.println(joke);
-        out.flush();
-    }
+    private static UserStateStore userStates = new UserStateStore.Striped(UserStateStore.Striped.DEFAULT_STRIPES); // userName to state object */
+    private static AdmissionControl admission = new AdmissionControl(0, 0, "reject"); // backpressure, off until main sets it */
+    private static TlsSupport tls; // TLS of the client and admin ports, null for plain sockets */
+    private static Catalog jokes = Catalog.builtInJokes(); // jokes handed out in joke mode */
+    private static Catalog proverbs = Catalog.builtInProverbs(); // proverbs handed out in proverb mode */
 
     /**
-     * Provides joke A to the user.
+     * This method checks the store of user States and reports back if it is a
+     * new user or not.
      *
-     * @param userName name of user
-     * @return joke A
+     * @param user name of user
+     * @return true for a stored user state, false if new user
      */
-    static String jokeA(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Joke A: %s, Do you know this one? Most people believe that if it ain't broke, don't fix it...Engineers believe that if it ain't broke, it doesn't have enough features yet.", userName));
-        return sb.toString();
+    public static boolean checkUser(String user) {
+        return userStates.contains(user);
     }
 
     /**
-     * Provides joke B to the user.
+     * This method simply stores the state into the store mapped to the user
+     * name, replacing the state stored for the user.
      *
-     * @param userName name of user
-     * @return joke A
+     * @param user name of user
+     * @param state object
      */
-    static String jokeB(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Joke B: %s, Why do they call it hyper text? Too much Java.", userName));
-        return sb.toString();
+    public static void storeUserState(String user, Status state) {
+        userStates.put(user, state);
     }
 
     /**
-     * Provides joke C to the user.
+     * Returns the stored user State. The state is live, change it only
+     * through the store.
      *
-     * @param userName name of user
-     * @return joke C
+     * @param user
+     * @return Status object of user state
      */
-    static String jokeC(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Joke C: So %s, How many IT guys does it take to screw in a light bulb? None, that's a Facilities problem.", userName));
-        return sb.toString();
+    public static Status getUserState(String user) {
+        return userStates.get(user);
     }
 
     /**
-     * Provides joke D to the user.
+     * Returns the store of user states.
      *
-     * @param userName name of user
-     * @return joke D
+     * @return user state store
      */
-    static String jokeD(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Joke D: I bet you haven't hear this one, %s? How many programmers does it take to screw in a light bulb? None, that's a hardware problem. ", userName));
-        return sb.toString();
+    static UserStateStore getStore() {
+        return userStates;
     }
 
     /**
-     * Provides joke E to the user.
+     * Sets the control switch for shutdown.
      *
-     * @param userName name of user
-     * @return joke E
+     * @param control boolean false set to false for shutdown
      */
-    static String jokeE(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Joke E: There are only 10 types of people in the world those that understand binary and those that don't. Which one are you, %s?", userName));
-        return sb.toString();
+    public static void setControl(boolean control) {
+        ServerConfig.update(config -> config.withControl(control));
     }
 
     /**
-     * Provides proverb A to the user.
+     * Queries for control switch setting.
      *
-     * @param userName name of user
-     * @return proverb A
+     * @return true for control switch not set, false otherwise
      */
-    static String proverbA(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Proverb A: %s, All good things come to those who wait.", userName));
-        return sb.toString();
+    public static boolean getControl() {
+        return ServerConfig.current().controlSwitch;
     }
 
     /**
-     * Provides proverb B to the user.
+     * Sets the server mode from the Administration client. Unknown modes are
+     * ignored.
      *
-     * @param userName name of user
-     * @return proverb B
+     * @param mode to set the server to 1:joke 2:proverb 3:maintenance
      */
-    static String proverbB(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Proverb B: Great starts make great finishes...%s", userName));
-        return sb.toString();
+    public static void changeServerMode(String mode) {
+        int newMode = ServerConfig.parseMode(mode);
+        if (newMode > 0) {
+            ServerConfig.update(config -> config.withMode(newMode));
+        }
     }
 
     /**
-     * Provides proverb C to the user.
+     * Sets the catalogs to serve from, and sizes the user records to them.
+     * Called once at startup before any user state exists.
      *
-     * @param userName name of user
-     * @return proverb C
+     * @param jokeCatalog jokes to serve
+     * @param proverbCatalog proverbs to serve
      */
-    static String proverbC(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Proverb C: %s, Practice makes perfect.", userName));
-        return sb.toString();
+    static void setCatalogs(Catalog jokeCatalog, Catalog proverbCatalog) {
+        if (jokeCatalog.size() == 0 || proverbCatalog.size() == 0) {
+            throw new IllegalArgumentException("Catalogs must not be empty");
+        }
+        jokes = jokeCatalog;
+        proverbs = proverbCatalog;
+        Status.jokeCount = jokeCatalog.size();
+        Status.proverbCount = proverbCatalog.size();
     }
 
     /**
-     * Provides proverb D to the user.
+     * Returns the catalog of a category.
      *
-     * @param userName name of user
-     * @return proverb D
+     * @param category Status.JOKES or Status.PROVERBS
+     * @return catalog of the category
      */
-    static String proverbD(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Proverb D: You're never too old to learn, %s!", userName));
-        return sb.toString();
+    static Catalog getCatalog(int category) {
+        return category == Status.PROVERBS ? proverbs : jokes;
     }
 
     /**
-     * Provides proverb E to the user.
+     * Returns the admission control of the server, for its counters.
      *
-     * @param userName name of user
-     * @return proverb E
+     * @return admission control
      */
-    static String proverbE(String userName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(String.format("Proverb E: Wise men/women think alike. Don't they, %s?", userName));
-        return sb.toString();
+    static AdmissionControl getAdmission() {
+        return admission;
     }
-}
-
-/**
- * A multi-threaded server for the Joke Client and Joke Client Administration
- * which can handle multiple requests from clients for jokes/proverbs, by using
- * the worker classes above.
- */
-public class JokeServer {
-
-    private static HashMap<String, Status> userStates = new HashMap<>(); // HashMap to store userName and state object */ 
-    private static boolean controlSwitch = true; // set to true on startup */
-    private static int serverMode = 1; // 1 joke mode; 2 proverb mode; 3 maintenance mode */
 
     /**
-     * This method checks the HashMap of user States and reports back if it is a
-     * new user or not.
+     * Returns the TLS of the server ports, for its counters.
      *
-     * @param user name of user
-     * @return true for a stored user state, false if new user
+     * @return TLS support, or null when the ports are plain
      */
-    public static synchronized boolean checkUser(String user) {
-        if (userStates.containsKey(user)) {
-            return true;
-        } else {
-            return false;
-        }
+    static TlsSupport getTls() {
+        return tls;
     }
 
     /**
-     * This method simply stores the state back onto the HashMap mapped to the
-     * user name.
+     * Opens a listening socket, with TLS if the server was started with
+     * --tls.
      *
-     * @param user name of user
-     * @param state object
+     * @param port port to listen at
+     * @param backlog accept queue length
+     * @return server socket
+     * @throws IOException if the port cannot be bound
      */
-    public static synchronized void storeUserState(String user, Status state) {
-        userStates.put(user, state);
+    static ServerSocket listen(int port, int backlog) throws IOException {
+        return listen(port, backlog, false);
     }
 
     /**
-     * Returns the user State back to the thread for handling.
+     * Opens a listening socket, with TLS if the server was started with
+     * --tls, and with SO_REUSEPORT so several can listen at one port.
      *
-     * @param user
-     * @return Status object of user state
-     */
-    public static synchronized Status getUserState(String user) {
-        Status state;
-        state = userStates.get(user);
-        return state;
+     * @param port port to listen at
+     * @param backlog accept queue length
+     * @param reusePort true to let other sockets bind the same port
+     * @return server socket
+     * @throws IOException if the port cannot be bound
+     */
+    static ServerSocket listen(int port, int backlog, boolean reusePort) throws IOException {
+        ServerSocket socket = tls != null ? tls.serverSocket() : new ServerSocket();
+        if (reusePort) {
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        socket.bind(new InetSocketAddress(port), backlog);
+        return socket;
     }
 
     /**
-     * Sets the control switch for shutdown.
+     * Reads --acceptors, the number of accept loops, each with a listening
+     * socket of its own at the client port. More than one needs
+     * SO_REUSEPORT, so without it the server falls back to one.
      *
-     * @param control boolean false set to false for shutdown
-     */
-    public static synchronized void setControl(boolean control) {
-        if (!control) {
-            controlSwitch = false;
-        } else {
-            controlSwitch = true;
+     * @param options server options
+     * @return number of acceptors
+     * @throws IOException if the support cannot be checked
+     */
+    static int acceptorCount(ServerOptions options) throws IOException {
+        int acceptors = Math.max(1, options.getInt("acceptors", 1));
+        if (acceptors > 1) {
+            try (ServerSocket probe = new ServerSocket()) {
+                if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    ServerLog.warn("SO_REUSEPORT is not supported here, using one acceptor instead of " + acceptors + ".");
+                    return 1;
+                }
+            }
         }
+        return acceptors;
     }
 
     /**
-     * Queries for control switch setting.
+     * Accept loop of one acceptor: accepts connections at its own listening
+     * socket and hands them to its own handler group until the server shuts
+     * down. The first acceptor to see the shutdown closes every listening
+     * socket, which wakes the others.
      *
-     * @return true for control switch not set, false otherwise
+     * @param listeners listening sockets of all the acceptors
+     * @param index which of them is this acceptor's
+     * @param handlers handler group of this acceptor
+     * @throws IOException if accepting fails
      */
-    public static synchronized boolean getControl() {
-        if (controlSwitch) {
-            return true;
-        } else {
-            return false;
+    private static void acceptLoop(ServerSocket[] listeners, int index, ExecutorService handlers) throws IOException {
+        try {
+            while (ServerConfig.current().controlSwitch) {
+                // wait for the next client connection */
+                Socket sock;
+                try {
+                    sock = listeners[index].accept();
+                } catch (SocketException x) {
+                    if (!ServerConfig.current().controlSwitch) {
+                        break; // closed by another acceptor at shutdown */
+                    }
+                    throw x;
+                }
+                if (tls != null) {
+                    // the handshake runs on its own pool, which hands the connection on */
+                    tls.handshake(sock, s -> dispatch(s, handlers));
+                } else {
+                    dispatch(sock, handlers);
+                }
+            }
+        } finally {
+            for (ServerSocket listener : listeners) {
+                listener.close();
+            }
         }
     }
 
     /**
-     * Sets the server mode from the Administration client.
+     * Hands a connection ready to be read to a Worker, or answers it right
+     * away if the server is saturated.
      *
-     * @param mode to set the server to 1:joke 2:proverb 3:maintenance
-     */
-    public static synchronized void changeServerMode(String mode) {
-        switch (mode) {
-            case "joke":
-                serverMode = 1;
-                break;
-            case "proverb":
-                serverMode = 2;
-                break;
-            case "maintenance":
-                serverMode = 3;
-                break;
+     * @param sock client connection, past its TLS handshake if any
+     * @param handlers executor of the Worker tasks
+     */
+    private static void dispatch(Socket sock, ExecutorService handlers) {
+        if (!admission.admit()) {
+            // saturated, so answer right away rather than take on work we cannot finish */
+            Worker.reject(sock);
+            return;
         }
+        // new worker task to handle client communication */
+        handlers.execute(admission.wrap(new Worker(sock)));
     }
 
     /**
@@ -614,63 +475,183 @@ public class JokeServer {
      *
      * @return integer of what the server mode is set to
      */
-    public static synchronized int getServerMode() {
-        int temp = serverMode;
-        return temp;
+    public static int getServerMode() {
+        return ServerConfig.current().mode;
     }
 
-    private static void writeToDisk(File toFile){
-        try{
-            OutputStream file = new FileOutputStream(toFile);
-            OutputStream buffer = new BufferedOutputStream(file);
-            ObjectOutput output = new ObjectOutputStream(buffer);
-            output.writeObject(userStates);
-        }catch(IOException x){
-            System.out.println("Error in writing to disk.");
-            x.printStackTrace();
-        }
-    }
-    
-    @SuppressWarnings("unchecked")
-    private static void readFromDisk(File fromFile) throws ClassNotFoundException {
-        try{
-            InputStream file = new FileInputStream(fromFile);
-            InputStream buffer = new BufferedInputStream(file);
-            ObjectInputStream input = new ObjectInputStream(buffer);
-            userStates = (HashMap<String, Status>) input.readObject();
-            input.close();
-        }catch(IOException x){
-            System.out.println("Error in writing to disk.");
-            x.printStackTrace();
-        }
-    }
-            
     /**
      * Main method which starts the server to loop and accept incoming
-     * connections.
+     * connections. Start with --io=nio to serve clients from a small set of
+     * non-blocking I/O loops (--io-loops=N) instead of a Worker thread per
+     * connection. In classic mode --exec=thread|virtual|pool picks how the
+     * Worker and AdminWorker tasks are run, with --pool-size=N threads for the
+     * pool. --backlog and --admin-backlog set the accept queues, and
+     * --max-in-flight, --queue-depth and --backpressure=reject|block limit how
+     * much work is taken on at once. --state-store=striped|locked and
+     * --state-stripes=N pick how user states are kept (--state-store=mapped
+     * keeps them off the heap in --state-file, --state-max-users=N and
+     * --state-idle-ttl=seconds spill idle users to --spill-file), and
+     * --max-batch=N the largest batch a client may ask for, and
+     * --session-idle-ms=N how long a keep-alive connection may wait between
+     * requests before it is closed. --jokes=file and --proverbs=file
+     * serve from catalog files instead of the built in jokes and proverbs.
+     * --snapshot=file restores the user states from a snapshot file at
+     * startup and saves them there every --snapshot-interval=seconds and at
+     * shutdown. --wal=prefix logs every pick to a write-ahead log, forced to
+     * disk as --wal-sync=batch|interval|never says, and replayed at startup.
+     * --log-level, --log-file, --log-buffer and --log-overflow=drop|block set
+     * up the asynchronous ServerLog, and --metrics=false turns off the
+     * ServerMetrics. --http-port=N also serves the jokes/proverbs and a health
+     * check over HTTP, see HttpFrontEnd. --tls puts TLS on the client and
+     * admin ports in classic mode, see TlsSupport. --acceptors=N listens at
+     * the client port with N sockets bound with SO_REUSEPORT, so the kernel
+     * spreads new connections across N accept loops, each handing them to a
+     * handler group (or nio loops) of its own.
      *
      * @param String array
      */
     public static void main(String a[]) throws IOException {
-        int q_len = 6; // Number of requests for OpSys to queue */
+        ServerOptions options = new ServerOptions(a);
+        ServerLog.start(options);
+        ServerMetrics.start(options);
+        int q_len = options.getInt("backlog", 6); // Number of requests for OpSys to queue */
         int port = 1699; // start listening on port 1699 */
-        Socket sock; // intialize Socket variable sock */
+        String io = options.getString("io", "classic"); // classic Worker threads or nio loops */
+        if (!io.equals("classic") && !io.equals("nio")) {
+            throw new IllegalArgumentException("Unknown --io mode: " + io + " (expected classic or nio)");
+        }
+        String exec = options.getString("exec", "thread"); // how Worker tasks are run */
+        int poolSize = options.getInt("pool-size", 4 * Runtime.getRuntime().availableProcessors());
+        int acceptors = acceptorCount(options);
+        // a handler group per acceptor, sharing the pool size, so no queue is shared between them */
+        ExecutorService[] groups = new ExecutorService[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            groups[i] = HandlerExecutors.create(exec, Math.max(1, poolSize / acceptors), acceptors == 1 ? "worker" : "worker-" + i);
+        }
+        admission = AdmissionControl.fromOptions(options);
+        ClientSession.maxBatch = options.getInt("max-batch", ClientSession.maxBatch);
+        ClientSession.idleMillis = Math.max(0, options.getInt("session-idle-ms", ClientSession.idleMillis));
+        tls = TlsSupport.fromOptions(options);
+        if (tls != null && io.equals("nio")) {
+            throw new IllegalArgumentException("--tls needs --io=classic, the nio loops serve plain sockets only");
+        }
+        setCatalogs(Catalog.open(options.getString("jokes", null), Catalog.builtInJokes()),
+                Catalog.open(options.getString("proverbs", null), Catalog.builtInProverbs()));
+        // the records of the user states are sized to the catalogs, so the store comes after them */
+        userStates = UserStateStore.fromOptions(options);
+        // the snapshot records are sized to the catalogs, so restore after they are set */
+        StateSnapshots snapshots = StateSnapshots.fromOptions(options, userStates);
+        if (snapshots != null) {
+            long started = System.nanoTime();
+            long restored = snapshots.restore();
+            ServerLog.info("Restored " + restored + " users from snapshot in "
+                    + (System.nanoTime() - started) / 1000000 + " ms.");
+        }
+        // the log is replayed on top of the snapshot, then logs every pick from here on */
+        StateLog wal = StateLog.fromOptions(options);
+        if (wal != null) {
+            long started = System.nanoTime();
+            long replayed = wal.open(userStates);
+            ServerLog.info("Replayed " + replayed + " logged picks in "
+                    + (System.nanoTime() - started) / 1000000 + " ms.");
+            userStates.setLog(wal);
+            if (snapshots != null) {
+                snapshots.setLog(wal);
+            }
+        }
+        if (snapshots != null) {
+            snapshots.start(options.getInt("snapshot-interval", 60));
+        }
         
         // create a different thread for admin clients */
-        AdminLooper AL = new AdminLooper();
+        AdminLooper AL = new AdminLooper(HandlerExecutors.create(exec, 2, "admin-worker"), options.getInt("admin-backlog", 6));
         Thread t = new Thread(AL);
         t.start(); // ...waiting for admin input
+        // HTTP front end for load balancers and health checks, null unless --http-port is given */
+        HttpFrontEnd http = HttpFrontEnd.fromOptions(options);
+
+        if (io.equals("nio")) {
+            // every acceptor needs a loop of its own */
+            int loops = Math.max(acceptors, options.getInt("io-loops", Runtime.getRuntime().availableProcessors()));
+            ServerLog.info("Kevin Westropp's Joke server starting up, listening at port 1699 with " + loops + " nio loops"
+                    + (acceptors > 1 ? " and " + acceptors + " acceptors" : "") + ".\n");
+            new NioServer(port, q_len, loops, acceptors, admission, wal).run();
+            if (http != null) {
+                http.close();
+            }
+            closeState(groups, snapshots, wal);
+            return;
+        }
+
+        //intialize and set a new server socket per acceptor, all at port 1699 */
+        final ServerSocket[] listeners = new ServerSocket[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            listeners[i] = listen(port, q_len, acceptors > 1);
+        }
 
-        //intialize and set a new server socket to servsock */
-        ServerSocket servsock = new ServerSocket(port, q_len);
+        ServerLog.info("Kevin Westropp's Joke server starting up, listening at port 1699 in " + exec + " mode"
+                + (acceptors > 1 ? " with " + acceptors + " acceptors" : "") + ".\n");
+        // the other acceptors get threads of their own, the first runs here */
+        Thread[] others = new Thread[acceptors - 1];
+        for (int i = 1; i < acceptors; i++) {
+            final int index = i;
+            others[i - 1] = new Thread(() -> {
+                try {
+                    acceptLoop(listeners, index, groups[index]);
+                } catch (IOException x) {
+                    ServerLog.error("Server acceptor error", x);
+                }
+            }, "acceptor-" + i);
+            others[i - 1].start();
+        }
+        acceptLoop(listeners, 0, groups[0]);
+        for (Thread other : others) {
+            try {
+                other.join();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (http != null) {
+            http.close();
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        closeState(groups, snapshots, wal);
+    }
 
-        System.out.println("Kevin Westropp's Joke server starting up, listening at port 1699.\n");
-        while (controlSwitch) {
-            // wait for the next client connection */
-            // accept/listen for incoming connections */
-            sock = servsock.accept();
-            // new worker thread to handle client communication */
-            new Worker(sock).start();
+    /**
+     * Saves the last snapshot, closes the write-ahead log and the store and
+     * writes out the log at shutdown, after giving the requests still running
+     * a few seconds to finish.
+     *
+     * @param groups executors of the Worker tasks, shut down here
+     * @param snapshots snapshots of the user states, or null when they are off
+     * @param wal write-ahead log, or null when it is off
+     */
+    private static void closeState(ExecutorService[] groups, StateSnapshots snapshots, StateLog wal) {
+        for (ExecutorService handlers : groups) {
+            handlers.shutdown();
+        }
+        try {
+            for (ExecutorService handlers : groups) {
+                if (!handlers.awaitTermination(5, TimeUnit.SECONDS)) {
+                    ServerLog.warn("Requests still running after 5 seconds, closing the user states anyway.");
+                }
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+        if (snapshots != null) {
+            snapshots.close();
+            ServerLog.info("Saved the user states to the snapshot.");
+        }
+        if (wal != null) {
+            userStates.setLog(null);
+            wal.close();
         }
+        userStates.close();
+        ServerLog.close();
     }
 }
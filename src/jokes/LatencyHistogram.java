@@ -0,0 +1,166 @@
+/*
+ * LatencyHistogram.java
+ * Striped latency histogram of the Joke Server metrics, by Westropp
+ */
+package jokes;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts durations in nanoseconds into log-linear buckets:
+ * every power of two is split into 16 buckets, so a percentile read back is
+ * within about 6% of the true value, from 1ns up to about 18 minutes, in 592
+ * buckets. Longer durations go into the last bucket.
+ * <p>
+ * The counts are kept in several stripes and a thread records into the
+ * stripe picked by its id, so threads on different cores seldom write the
+ * same cache line. Reading sums the stripes, which makes a read a little
+ * behind the recording threads but never blocks them.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4; // each power of two is split into 1 << SUB_BITS buckets */
+    private static final int SUB = 1 << SUB_BITS; // buckets per power of two */
+    private static final int MAX_EXPONENT = 39; // highest power of two counted */
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB; // buckets per stripe */
+
+    private final AtomicLongArray counts; // stripes one after the other, BUCKETS each */
+    private final int mask; // stripe of a thread is its mixed id & mask */
+
+    /**
+     * Basic constructor for a histogram.
+     *
+     * @param stripes number of stripes, rounded up to a power of two
+     */
+    LatencyHistogram(int stripes) {
+        int n = 1;
+        while (n < stripes) {
+            n <<= 1;
+        }
+        counts = new AtomicLongArray(n * BUCKETS);
+        mask = n - 1;
+    }
+
+    /**
+     * Returns the bucket a duration is counted in.
+     *
+     * @param nanos duration
+     * @return bucket index
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        return (exponent - SUB_BITS + 1) * SUB + (int) ((nanos >>> (exponent - SUB_BITS)) & (SUB - 1));
+    }
+
+    /**
+     * Returns the highest duration counted in a bucket.
+     *
+     * @param bucket bucket index
+     * @return upper bound in nanoseconds
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        int shift = bucket / SUB - 1;
+        long lower = (long) (SUB + bucket % SUB) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Returns the number of stripes the counts are kept in.
+     *
+     * @return stripes
+     */
+    int stripes() {
+        return mask + 1;
+    }
+
+    /**
+     * Counts one duration.
+     *
+     * @param nanos duration
+     */
+    void record(long nanos) {
+        long id = Thread.currentThread().getId() * 0x9e3779b97f4a7c15L;
+        int stripe = (int) (id >>> 40) & mask;
+        counts.incrementAndGet(stripe * BUCKETS + bucket(nanos));
+    }
+
+    /**
+     * Sums the stripes into one set of bucket counts.
+     *
+     * @param into counts to add to, BUCKETS long
+     * @return number of durations counted
+     */
+    long addTo(long[] into) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long n = counts.get(i);
+            into[i % BUCKETS] += n;
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Adds the samples a closed-loop measurement missed while it waited on a
+     * slow answer, the way HdrHistogram corrects for coordinated omission: a
+     * duration longer than the expected interval between requests stands for
+     * the requests that would have been sent meanwhile, which would have
+     * waited that long less one, two, ... intervals.
+     *
+     * @param buckets counts summed by addTo
+     * @param expected expected interval between requests in nanoseconds
+     * @param into counts to add the measured and the missed samples to
+     * @return number of samples added
+     */
+    static long correct(long[] buckets, long expected, long[] into) {
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            long count = buckets[i];
+            if (count == 0) {
+                continue;
+            }
+            into[i] += count;
+            total += count;
+            if (expected <= 0) {
+                continue;
+            }
+            for (long missed = upperBound(i) - expected; missed >= expected; missed -= expected) {
+                into[bucket(missed)] += count;
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Reads a percentile out of summed bucket counts.
+     *
+     * @param buckets counts summed by addTo
+     * @param total number of durations counted
+     * @param fraction percentile as a fraction, 0.99 for p99
+     * @return upper bound of the bucket the percentile falls in, 0 if
+     * nothing was counted
+     */
+    static long percentile(long[] buckets, long total, double fraction) {
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * LoadGenerator.java
+ * Headless load generation mode of the Joke Client, by Westropp
+ */
+package jokes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator is the headless mode of the Joke Client, started with
+ * JokeClient --load. A number of simulated users (--users) each run on a
+ * thread of their own and ask for jokes over a keep-alive session
+ * (--reuse=true, the default) or with a new connection per joke
+ * (--reuse=false). The run ends after --duration seconds, or after
+ * --requests requests when that is given.
+ * <p>
+ * With --rate=N the load is open-loop: the users send N requests a second
+ * between them on a fixed schedule whether or not the server keeps up, and
+ * every latency is taken from when the request was due rather than when it
+ * was sent, so a stall of the server counts against every request that
+ * should have gone out during it. Without --rate the load is closed-loop:
+ * every user sends its next request as soon as it has the answer, and the
+ * corrected percentiles add back the requests the stall kept it from sending,
+ * at the mean latency of the run (or --expected-us) apart, as HdrHistogram
+ * does. Both the corrected and the uncorrected percentiles are printed.
+ * <p>
+ * --names=reused draws every session or request's user name from a pool of
+ * --pool names, so users share their state on the server; --names=unique
+ * gives every simulated user its own name, and every one-shot request a new
+ * one. Answers that are the unavailable message are counted apart from
+ * errors, which are failed connections and closed or empty answers.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class LoadGenerator {
+
+    private final String serverName; // host of the server */
+    private final int port; // client port of the server */
+    private final int users; // simulated users, a thread each */
+    private final boolean reuse; // true for keep-alive sessions */
+    private final boolean uniqueNames; // true for a name per user or request, false for a shared pool */
+    private final int pool; // names in the shared pool */
+    private final long durationNanos; // length of the run when requests is 0 */
+    private final long requests; // requests to send in all, 0 to run for the duration */
+    private final double rate; // requests a second in all, 0 for closed-loop */
+    private final long expectedNanos; // interval for the closed-loop correction, 0 for the mean latency */
+    private final String runId = Long.toString(System.currentTimeMillis(), 36); // keeps unique names unique across runs */
+
+    private final LatencyHistogram latencies; // from when a request was due, or sent in closed-loop */
+    private final LatencyHistogram serviceTimes; // from when a request was sent */
+    private final LongAdder completed = new LongAdder(); // requests answered */
+    private final LongAdder errors = new LongAdder(); // requests failed */
+    private final LongAdder unavailable = new LongAdder(); // requests answered with the unavailable message */
+    private final LongAdder connects = new LongAdder(); // connections opened */
+    private final LongAdder serviceTotal = new LongAdder(); // sum of the service times, for the mean */
+
+    /**
+     * Builds a load generator from the client options.
+     *
+     * @param options client options
+     * @param serverName host of the server
+     */
+    LoadGenerator(ServerOptions options, String serverName) {
+        this.serverName = serverName;
+        this.port = options.getInt("port", 1699);
+        this.users = Math.max(1, options.getInt("users", 16));
+        this.reuse = options.getBoolean("reuse", true);
+        String names = options.getString("names", "reused");
+        if (!names.equals("unique") && !names.equals("reused")) {
+            throw new IllegalArgumentException("Unknown --names: " + names + " (expected unique or reused)");
+        }
+        this.uniqueNames = names.equals("unique");
+        this.pool = Math.max(1, options.getInt("pool", 100));
+        this.durationNanos = options.getInt("duration", 10) * 1000000000L;
+        this.requests = Math.max(0, options.getInt("requests", 0));
+        this.rate = Math.max(0, options.getInt("rate", 0));
+        this.expectedNanos = options.getInt("expected-us", 0) * 1000L;
+        int stripes = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+        this.latencies = new LatencyHistogram(stripes);
+        this.serviceTimes = new LatencyHistogram(stripes);
+    }
+
+    /**
+     * Runs the load and prints the report.
+     *
+     * @throws InterruptedException if interrupted while waiting for the users
+     */
+    void run() throws InterruptedException {
+        System.out.println("Load: " + users + " users, " + (rate > 0 ? "open-loop at " + (long) rate + "/s" : "closed-loop")
+                + ", " + (reuse ? "keep-alive" : "one-shot") + ", " + (uniqueNames ? "unique" : pool + " reused")
+                + " names, " + (requests > 0 ? requests + " requests" : durationNanos / 1000000000L + "s")
+                + " against " + serverName + ":" + port);
+        final CountDownLatch done = new CountDownLatch(users);
+        final long start = System.nanoTime() + 10000000L; // give every thread time to start */
+        for (int u = 0; u < users; u++) {
+            final int user = u;
+            Thread thread = new Thread(() -> {
+                try {
+                    runUser(user, start);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-user-" + u);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        report(System.nanoTime() - start);
+    }
+
+    /**
+     * Loop of one simulated user.
+     *
+     * @param user index of the user
+     * @param start when the run starts
+     */
+    private void runUser(int user, long start) {
+        long quota = requests > 0 ? requests / users + (user < requests % users ? 1 : 0) : Long.MAX_VALUE;
+        long deadline = requests > 0 ? Long.MAX_VALUE : start + durationNanos;
+        // open-loop users share the rate, each on its own phase of the schedule */
+        long interval = rate > 0 ? (long) (users * 1e9 / rate) : 0;
+        long due = start + (interval * user) / users;
+        JokeClient.KeepAliveConnection session = null;
+        String sessionName = null;
+        try {
+            for (long i = 0; i < quota; i++) {
+                long now = System.nanoTime();
+                if (rate > 0) {
+                    while (now < due) {
+                        LockSupport.parkNanos(due - now);
+                        now = System.nanoTime();
+                    }
+                } else {
+                    due = now;
+                }
+                if (due >= deadline) {
+                    break;
+                }
+                String answer;
+                long sent = System.nanoTime();
+                try {
+                    if (reuse) {
+                        if (session == null) {
+                            sessionName = userName(user, i);
+                            session = new JokeClient.KeepAliveConnection(serverName, port, sessionName);
+                            connects.increment();
+                        }
+                        answer = session.next();
+                    } else {
+                        answer = oneShot(userName(user, i));
+                        connects.increment();
+                    }
+                } catch (IOException x) {
+                    answer = null;
+                }
+                long finished = System.nanoTime();
+                if (answer == null || answer.isEmpty()) {
+                    errors.increment();
+                    if (session != null) {
+                        session.close();
+                        session = null;
+                    }
+                } else {
+                    if (answer.equals(Worker.UNAVAILABLE)) {
+                        unavailable.increment();
+                        if (session != null) {
+                            // the server hangs up after this answer, so open a new session next time */
+                            session.close();
+                            session = null;
+                        }
+                    }
+                    completed.increment();
+                    latencies.record(finished - due);
+                    serviceTimes.record(finished - sent);
+                    serviceTotal.add(finished - sent);
+                }
+                due += interval;
+            }
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Picks the user name of a session or one-shot request.
+     *
+     * @param user index of the simulated user
+     * @param i index of the request of that user
+     * @return user name to send
+     */
+    private String userName(int user, long i) {
+        if (!uniqueNames) {
+            return "load" + ThreadLocalRandom.current().nextInt(pool);
+        }
+        return reuse ? "load-" + runId + "-" + user : "load-" + runId + "-" + user + "-" + i;
+    }
+
+    /**
+     * Sends one one-shot request and reads its answer to the end.
+     *
+     * @param userName name of user
+     * @return first line of the answer, or null if there was none
+     * @throws IOException if the connection fails
+     */
+    private String oneShot(String userName) throws IOException {
+        try (Socket sock = JokeClient.sockets.createSocket(serverName, port)) {
+            PrintStream toServer = new PrintStream(sock.getOutputStream());
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            toServer.println(userName);
+            toServer.flush();
+            String first = fromServer.readLine();
+            while (first != null && fromServer.readLine() != null) {
+                // read to the end of the answer */
+            }
+            return first;
+        }
+    }
+
+    /**
+     * Prints the throughput, the counters and the percentiles.
+     *
+     * @param elapsed length of the run in nanoseconds
+     */
+    private void report(long elapsed) {
+        long answered = completed.sum();
+        double seconds = elapsed / 1e9;
+        System.out.println("requests=" + (answered + errors.sum()) + " answered=" + answered
+                + " errors=" + errors.sum() + " unavailable=" + unavailable.sum() + " connects=" + connects.sum()
+                + String.format(" seconds=%.2f throughput=%.1f/s", seconds, answered / seconds)
+                + (rate > 0 ? " target=" + (long) rate + "/s" : ""));
+        long[] measured = new long[LatencyHistogram.BUCKETS];
+        long count = latencies.addTo(measured);
+        long[] service = new long[LatencyHistogram.BUCKETS];
+        serviceTimes.addTo(service);
+        if (count == 0) {
+            return;
+        }
+        if (rate > 0) {
+            // measured from when each request was due, so already corrected */
+            System.out.println(percentiles("corrected", measured, count));
+        } else {
+            long expected = expectedNanos > 0 ? expectedNanos : serviceTotal.sum() / count;
+            long[] corrected = new long[LatencyHistogram.BUCKETS];
+            long total = LatencyHistogram.correct(measured, expected, corrected);
+            System.out.println(percentiles("corrected", corrected, total)
+                    + String.format(" expected=%.1f", expected / 1000.0));
+        }
+        System.out.println(percentiles("uncorrected", service, count));
+    }
+
+    /**
+     * Formats one line of percentiles in microseconds.
+     *
+     * @param label name of the line
+     * @param buckets bucket counts
+     * @param total samples counted
+     * @return the line
+     */
+    private static String percentiles(String label, long[] buckets, long total) {
+        StringBuilder line = new StringBuilder(label).append(" samples=").append(total);
+        String[] names = {"p50", "p90", "p99", "p999", "p9999", "max"};
+        double[] fractions = {0.50, 0.90, 0.99, 0.999, 0.9999, 1.0};
+        for (int i = 0; i < names.length; i++) {
+            line.append(' ').append(names[i]).append('=')
+                    .append(String.format("%.1f", LatencyHistogram.percentile(buckets, total, fractions[i]) / 1000.0));
+        }
+        return line.append(" units=us").toString();
+    }
+}
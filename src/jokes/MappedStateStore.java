@@ -0,0 +1,753 @@
+/*
+ * MappedStateStore.java
+ * Off-heap user state store of the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * MappedStateStore keeps the user states off the heap, in a memory-mapped
+ * file, so the heap stays the same size however many users there are and the
+ * collector never has to walk them. The file is an open-addressing hash table
+ * of fixed size records, found by linear probing from the hash of the user
+ * name. A restart just maps the file again.
+ * <p>
+ * The file layout, all numbers big-endian, is
+ * <pre>
+ *   header   4096 bytes: magic "JKMS", version, jokeCount, proverbCount,
+ *            keyBytes, recordBytes, slots (long), users (long), clean
+ *   slots    slots records of recordBytes each, a multiple of 8:
+ *              hash       int, 0 for a free slot
+ *              keyLength  short
+ *              key        keyBytes bytes of UTF-8 user name
+ *              jokes      (jokeCount + 7) / 8 bytes of seen jokes
+ *              proverbs   (proverbCount + 7) / 8 bytes of seen proverbs
+ *              walks      key and position (longs) of the walk of each category
+ *                         of more than 64 items, jokes first
+ * </pre>
+ * The seen bytes are laid out just like a snapshot record. The walks keep the
+ * order of the round, so a pick goes on from where the last one stopped
+ * rather than walking a new order past every item already sent; version 1
+ * files have no walks and start a new order on every pick. A slot is claimed
+ * by a compare-and-set of its hash, so lookups take no lock and users of
+ * different stripes can be added at once. Changes to a user are serialized
+ * by the same lock stripes as the striped store.
+ * <p>
+ * clean is set by close and cleared again when the file is mapped. A file
+ * that was not closed cleanly has its slots looked over when it is mapped:
+ * a slot left claimed by a crash between the claim and the write of its key
+ * is freed, since lookups would wait on it for ever, and the users are
+ * counted again, since a crash may also have come before the count.
+ * <p>
+ * The table does not grow. Names longer than keyBytes, and new users once the
+ * table is 90% full, go to a small striped store on the heap instead, which
+ * the snapshots and the write-ahead log keep as usual. Size the table with
+ * --state-capacity. A file made for catalogs of other sizes is refused.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class MappedStateStore implements UserStateStore {
+
+    static final int MAGIC = 0x4a4b4d53; // "JKMS" */
+    static final int VERSION = 2; // version of the file layout, 1 is still read */
+    private static final int HEADER = 4096; // header bytes, keeps the slots page aligned */
+    private static final int USERS = 32; // offset of the user count in the header */
+    private static final int CLEAN = 40; // offset of the clean flag in the header, 1 once closed */
+    private static final int FREE = 0; // hash of a free slot */
+    private static final int CLAIMED = 1; // hash of a slot whose key is being written */
+    private static final int KEY = 6; // offset of the key in a record */
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final MappedByteBuffer header; // the header, users is kept up to date in it */
+    private final MappedByteBuffer[] chunks; // the slots, mapped a chunk at a time to stay under 2GB each */
+    private final int chunkShift; // slots per chunk is 1 << chunkShift */
+    private final long slots; // number of slots, a power of two */
+    private final long limit; // users allowed in the table, 90% of the slots */
+    private final int keyBytes; // longest user name kept in the table */
+    private final int recordBytes; // bytes per slot */
+    private final int jokeOffset; // offset of the seen jokes in a record */
+    private final int proverbOffset; // offset of the seen proverbs in a record */
+    private final int walkOffset; // offset of the walks in a record, -1 for a version 1 file */
+    private final ReentrantLock[] locks; // stripes, a power of two of them */
+    private final int mask; // stripe of a hash is hash & mask */
+    private final UserStateStore overflow; // users that do not fit the table */
+    private final LongAdder changes = new LongAdder(); // changes made */
+    private final ThreadLocal<Status> scratch; // state a record is worked on in, one per thread */
+    private final ThreadLocal<byte[]> keys; // encoded user name, one buffer per thread */
+    private final ThreadLocal<Status.Walk[]> walks; // walk per category a record is picked in, one pair per thread */
+    private volatile StateLog log; // write-ahead log of the picks, null when off */
+    private volatile boolean full; // true once new users go to the overflow store */
+
+    /**
+     * Maps a state file, creating it if it does not exist yet.
+     *
+     * @param file path of the state file
+     * @param capacity users the table should hold, used for a new file
+     * @param keyBytes longest user name kept in the table, used for a new file
+     * @param stripes number of lock stripes
+     * @throws IOException if the file cannot be mapped or was made for other
+     * catalogs
+     */
+    MappedStateStore(Path file, long capacity, int keyBytes, int stripes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean fresh = channel.size() == 0;
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            if (fresh) {
+                long wanted = 1;
+                while (wanted * 9 < capacity * 10) {
+                    wanted <<= 1; // keep the table at most 90% full */
+                }
+                int bits = ((Status.jokeCount + 7) / 8) + ((Status.proverbCount + 7) / 8) + walkBytes();
+                header.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, Status.jokeCount).putInt(12, Status.proverbCount)
+                        .putInt(16, keyBytes).putInt(20, (KEY + keyBytes + bits + 7) & ~7).putLong(24, wanted)
+                        .putLong(USERS, 0L);
+            } else if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a state file");
+            } else if (header.getInt(4) != VERSION && header.getInt(4) != 1) {
+                throw new IOException("State file " + file + " has unknown version " + header.getInt(4));
+            } else if (header.getInt(8) != Status.jokeCount || header.getInt(12) != Status.proverbCount) {
+                throw new IOException("State file " + file + " was made for catalogs of " + header.getInt(8)
+                        + " jokes and " + header.getInt(12) + " proverbs, move it away to start over");
+            }
+            this.keyBytes = header.getInt(16);
+            this.recordBytes = header.getInt(20);
+            this.slots = header.getLong(24);
+            this.limit = slots / 10 * 9;
+            int shift = 63 - Long.numberOfLeadingZeros(Math.max(1, (1L << 30) / recordBytes));
+            this.chunkShift = Math.min(shift, Long.numberOfTrailingZeros(slots));
+            int chunkCount = (int) (slots >>> chunkShift);
+            long chunkBytes = (long) recordBytes << chunkShift;
+            chunks = new MappedByteBuffer[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + i * chunkBytes, chunkBytes);
+            }
+            if (!fresh && header.getInt(CLEAN) != 1) {
+                recover(file);
+            }
+            header.putInt(CLEAN, 0);
+            header.force();
+        }
+        jokeOffset = KEY + this.keyBytes;
+        proverbOffset = jokeOffset + (Status.jokeCount + 7) / 8;
+        walkOffset = header.getInt(4) == 1 ? -1 : proverbOffset + (Status.proverbCount + 7) / 8;
+        int n = 1;
+        while (n < stripes) {
+            n <<= 1;
+        }
+        locks = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = n - 1;
+        overflow = new UserStateStore.Striped(stripes);
+        scratch = ThreadLocal.withInitial(() -> new Status(null));
+        final int longest = this.keyBytes;
+        keys = ThreadLocal.withInitial(() -> new byte[longest]);
+        walks = ThreadLocal.withInitial(() -> new Status.Walk[]{
+            Status.jokeCount > 64 ? new Status.Walk(Status.jokeCount) : null,
+            Status.proverbCount > 64 ? new Status.Walk(Status.proverbCount) : null});
+        full = users() >= limit;
+    }
+
+    /**
+     * Returns the bytes the walks take in a record, 16 for each category of
+     * more than 64 items.
+     *
+     * @return bytes of the walks
+     */
+    private static int walkBytes() {
+        return (Status.jokeCount > 64 ? 16 : 0) + (Status.proverbCount > 64 ? 16 : 0);
+    }
+
+    /**
+     * Frees the slots a crash left claimed and counts the users again, for a
+     * file that was not closed cleanly.
+     *
+     * @param file path of the state file, for the log
+     */
+    private void recover(Path file) {
+        long freed = 0;
+        long users = 0;
+        for (long slot = 0; slot < slots; slot++) {
+            ByteBuffer chunk = chunk(slot);
+            int at = offset(slot);
+            int hash = chunk.getInt(at);
+            if (hash == CLAIMED) {
+                chunk.putInt(at, FREE);
+                freed++;
+            } else if (hash != FREE) {
+                users++;
+            }
+        }
+        if (freed > 0 || users != header.getLong(USERS)) {
+            ServerLog.warn("State file " + file + " was not closed cleanly, freed " + freed
+                    + " half added slots and counted " + users + " users.");
+            header.putLong(USERS, users);
+        }
+    }
+
+    /**
+     * Builds the mapped store from the startup options --state-file,
+     * --state-capacity and --state-key-bytes.
+     *
+     * @param options startup options
+     * @return mapped store
+     * @throws IOException if the state file cannot be mapped
+     */
+    static MappedStateStore fromOptions(ServerOptions options) throws IOException {
+        return new MappedStateStore(Paths.get(options.getString("state-file", "jokes.state")),
+                options.getInt("state-capacity", 4000000), options.getInt("state-key-bytes", 48),
+                options.getInt("state-stripes", Striped.DEFAULT_STRIPES));
+    }
+
+    /**
+     * Returns the hash of a user name as kept in its slot, never FREE or
+     * CLAIMED.
+     *
+     * @param key key of the user
+     * @return slot hash
+     */
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        h ^= h >>> 16;
+        return (h == FREE || h == CLAIMED) ? h + 2 : h;
+    }
+
+    /**
+     * Returns the lock stripe of a hash.
+     *
+     * @param hash slot hash of the user
+     * @return lock guarding the user
+     */
+    private ReentrantLock lockFor(int hash) {
+        return locks[(hash ^ (hash >>> 8)) & mask];
+    }
+
+    /**
+     * Encodes a user name into the key buffer of this thread.
+     *
+     * @param key key of the user
+     * @return number of bytes, or -1 if the name does not fit a slot
+     */
+    private int encode(String key) {
+        byte[] bytes = keys.get();
+        int n = key.length();
+        if (n > keyBytes) {
+            return -1;
+        }
+        for (int i = 0; i < n; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                // not plain ASCII, let the charset do the work */
+                byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
+                if (utf8.length > keyBytes) {
+                    return -1;
+                }
+                System.arraycopy(utf8, 0, bytes, 0, utf8.length);
+                return utf8.length;
+            }
+            bytes[i] = (byte) c;
+        }
+        return n;
+    }
+
+    /**
+     * Finds the slot of a user, or claims a free one for a new user. The
+     * stripe of the user must be locked when create is true, so the same
+     * user is never added twice.
+     *
+     * @param key key of the user
+     * @param hash slot hash of the key
+     * @param create true to claim a slot if the user is not there
+     * @return slot number, or -1 if the user is not in the table and was not
+     * added
+     */
+    private long find(String key, int hash, boolean create) {
+        int length = encode(key);
+        if (length < 0) {
+            return -1;
+        }
+        byte[] bytes = keys.get();
+        for (long slot = hash & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+            ByteBuffer chunk = chunk(slot);
+            int at = offset(slot);
+            int seen = (int) INTS.getAcquire(chunk, at);
+            while (seen == CLAIMED) {
+                Thread.onSpinWait(); // another stripe is writing its key here */
+                seen = (int) INTS.getAcquire(chunk, at);
+            }
+            if (seen == FREE) {
+                if (!create || full) {
+                    return -1;
+                }
+                if (!INTS.compareAndSet(chunk, at, FREE, CLAIMED)) {
+                    slot = (slot - 1) & (slots - 1); // lost the slot, look at it again */
+                    continue;
+                }
+                chunk.putShort(at + 4, (short) length);
+                chunk.put(at + KEY, bytes, 0, length);
+                INTS.setRelease(chunk, at, hash);
+                if ((long) LONGS.getAndAdd(header, USERS, 1L) + 1 >= limit) {
+                    full = true;
+                    ServerLog.warn("State file is 90% full, new users are kept on the heap.");
+                }
+                return slot;
+            }
+            if (seen == hash && chunk.getShort(at + 4) == length && keyEquals(chunk, at + KEY, bytes, length)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Compares the key of a slot with encoded bytes.
+     *
+     * @param chunk chunk holding the slot
+     * @param at offset of the key
+     * @param bytes encoded user name
+     * @param length number of bytes
+     * @return true if they are the same
+     */
+    private static boolean keyEquals(ByteBuffer chunk, int at, byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            if (chunk.get(at + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the chunk holding a slot.
+     *
+     * @param slot slot number
+     * @return chunk buffer
+     */
+    private ByteBuffer chunk(long slot) {
+        return chunks[(int) (slot >>> chunkShift)];
+    }
+
+    /**
+     * Returns where a slot starts in its chunk.
+     *
+     * @param slot slot number
+     * @return offset of the record
+     */
+    private int offset(long slot) {
+        return (int) ((slot & ((1L << chunkShift) - 1)) * recordBytes);
+    }
+
+    /**
+     * Copies the record of a slot into a state.
+     *
+     * @param slot slot number
+     * @param state state to fill, cleared first
+     */
+    private void load(long slot, Status state) {
+        ByteBuffer chunk = chunk(slot);
+        int at = offset(slot);
+        if (walkOffset < 0) {
+            state.clear(Status.JOKES);
+            state.clear(Status.PROVERBS);
+        } else {
+            state.clearSeen(Status.JOKES);
+            state.clearSeen(Status.PROVERBS);
+        }
+        state.loadFrom(Status.JOKES, chunk.duplicate().position(at + jokeOffset));
+        state.loadFrom(Status.PROVERBS, chunk.duplicate().position(at + proverbOffset));
+        if (walkOffset >= 0) {
+            ByteBuffer walks = chunk.duplicate().position(at + walkOffset);
+            if (Status.jokeCount > 64) {
+                state.loadWalk(Status.JOKES, walks);
+            }
+            if (Status.proverbCount > 64) {
+                state.loadWalk(Status.PROVERBS, walks);
+            }
+        }
+    }
+
+    /**
+     * Copies a state back into the record of a slot.
+     *
+     * @param slot slot number
+     * @param state state to write
+     */
+    private void store(long slot, Status state) {
+        ByteBuffer chunk = chunk(slot);
+        int at = offset(slot);
+        state.saveTo(Status.JOKES, chunk.duplicate().position(at + jokeOffset));
+        state.saveTo(Status.PROVERBS, chunk.duplicate().position(at + proverbOffset));
+        if (walkOffset >= 0) {
+            ByteBuffer walks = chunk.duplicate().position(at + walkOffset);
+            if (Status.jokeCount > 64) {
+                state.saveWalk(Status.JOKES, walks);
+            }
+            if (Status.proverbCount > 64) {
+                state.saveWalk(Status.PROVERBS, walks);
+            }
+        }
+    }
+
+    /**
+     * Tells whether picks of a category are made in place, walking the
+     * record, rather than on a copy of it.
+     *
+     * @param category JOKES or PROVERBS
+     * @return true for a catalog of more than 64 items in a file that keeps
+     * the walks
+     */
+    private boolean walked(int category) {
+        return walkOffset >= 0 && Status.size(category) > 64;
+    }
+
+    /**
+     * Returns where the walk of a category is kept in a record.
+     *
+     * @param at offset of the record
+     * @param category JOKES or PROVERBS
+     * @return offset of its key, followed by its position
+     */
+    private int walkAt(int at, int category) {
+        return at + walkOffset + (category == Status.PROVERBS && Status.jokeCount > 64 ? 16 : 0);
+    }
+
+    /**
+     * Sets the walk of this thread to the one kept in a record, or to a new
+     * round if that one has not started.
+     *
+     * @param chunk chunk holding the slot
+     * @param at offset of the record
+     * @param category JOKES or PROVERBS
+     * @return the walk
+     */
+    private Status.Walk resumeWalk(ByteBuffer chunk, int at, int category) {
+        Status.Walk walk = walks.get()[category];
+        int where = walkAt(at, category);
+        long position = chunk.getLong(where + 8);
+        if (position == 0) {
+            walk.restart();
+        } else {
+            walk.resume(chunk.getLong(where), position);
+        }
+        return walk;
+    }
+
+    /**
+     * Writes a walk back to its record.
+     *
+     * @param chunk chunk holding the slot
+     * @param at offset of the record
+     * @param category JOKES or PROVERBS
+     * @param walk the walk
+     */
+    private void saveWalk(ByteBuffer chunk, int at, int category, Status.Walk walk) {
+        int where = walkAt(at, category);
+        chunk.putLong(where, walk.key()).putLong(where + 8, walk.position());
+    }
+
+    /**
+     * Walks on to the next unseen item of a record and marks it as sent,
+     * touching one byte of the seen bits per step. Every item the walk has
+     * passed is seen, so once it runs out the round is over.
+     *
+     * @param chunk chunk holding the slot
+     * @param at offset of the record
+     * @param category JOKES or PROVERBS
+     * @param walk walk of the record
+     * @return index of the item, or -1 if the round is over
+     */
+    private int pickInPlace(ByteBuffer chunk, int at, int category, Status.Walk walk) {
+        int bits = at + (category == Status.PROVERBS ? proverbOffset : jokeOffset);
+        int count;
+        while ((count = walk.next()) >= 0) {
+            int b = bits + (count >>> 3);
+            byte seen = chunk.get(b);
+            if ((seen & (1 << (count & 7))) == 0) {
+                chunk.put(b, (byte) (seen | (1 << (count & 7))));
+                return count;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts a record over once everything has been sent: clears its seen
+     * bits and starts a new round of its walk.
+     *
+     * @param chunk chunk holding the slot
+     * @param at offset of the record
+     * @param category JOKES or PROVERBS
+     * @param walk walk of the record
+     */
+    private void restartInPlace(ByteBuffer chunk, int at, int category, Status.Walk walk) {
+        int bits = at + (category == Status.PROVERBS ? proverbOffset : jokeOffset);
+        for (int i = (Status.size(category) + 7) >>> 3; i > 0; i--) {
+            chunk.put(bits++, (byte) 0);
+        }
+        walk.restart();
+        ServerMetrics.roundRestarted();
+    }
+
+    @Override
+    public boolean contains(String userName) {
+        String key = UserStateStore.key(userName);
+        return find(key, hash(key), false) >= 0 || overflow.contains(key);
+    }
+
+    /**
+     * Returns a copy of the state of a user. Changing it does not change the
+     * store, use update for that.
+     */
+    @Override
+    public Status get(String userName) {
+        String key = UserStateStore.key(userName);
+        int hash = hash(key);
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            long slot = find(key, hash, false);
+            if (slot >= 0) {
+                Status state = new Status(key);
+                load(slot, state);
+                return state;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return overflow.get(key);
+    }
+
+    @Override
+    public void put(String userName, Status state) {
+        String key = UserStateStore.key(userName);
+        int hash = hash(key);
+        ReentrantLock lock = lockFor(hash);
+        long slot;
+        lock.lock();
+        try {
+            changes.increment();
+            slot = find(key, hash, true);
+            if (slot >= 0) {
+                store(slot, state);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (slot < 0) {
+            overflow.put(key, state);
+        }
+    }
+
+    @Override
+    public <R> R update(String userName, Function<Status, R> action) {
+        String key = UserStateStore.key(userName);
+        int hash = hash(key);
+        ReentrantLock lock = lockFor(hash);
+        lock.lock();
+        try {
+            changes.increment();
+            long slot = find(key, hash, true);
+            if (slot >= 0) {
+                Status state = scratch.get();
+                state.userName = key;
+                load(slot, state);
+                R result = action.apply(state);
+                store(slot, state);
+                return result;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // a user that is not in the table never will be, the table only fills up */
+        return overflow.update(key, action);
+    }
+
+    @Override
+    public int takeNext(String userName, int category) {
+        String key = UserStateStore.key(userName);
+        int hash = hash(key);
+        ReentrantLock lock = lockFor(hash);
+        StateLog wal = log;
+        long logged = 0;
+        long slot;
+        int count = -1;
+        lock.lock();
+        try {
+            changes.increment();
+            slot = find(key, hash, true);
+            if (slot >= 0 && walked(category)) {
+                ByteBuffer chunk = chunk(slot);
+                int at = offset(slot);
+                Status.Walk walk = resumeWalk(chunk, at, category);
+                count = pickInPlace(chunk, at, category, walk);
+                boolean reset = count < 0;
+                if (reset) {
+                    restartInPlace(chunk, at, category, walk);
+                    count = pickInPlace(chunk, at, category, walk);
+                }
+                saveWalk(chunk, at, category, walk);
+                if (wal != null) {
+                    logged = wal.append(key, category, reset, count);
+                }
+            } else if (slot >= 0) {
+                Status state = scratch.get();
+                load(slot, state);
+                boolean reset = wal != null && state.unseenCount(category) == 0;
+                count = state.takeNext(category);
+                store(slot, state);
+                if (wal != null) {
+                    logged = wal.append(key, category, reset, count);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (slot < 0) {
+            return overflow.takeNext(key, category);
+        }
+        if (wal != null) {
+            wal.awaitDurable(logged);
+        }
+        return count;
+    }
+
+    @Override
+    public int[] takeBatch(String userName, int category, int size) {
+        String key = UserStateStore.key(userName);
+        int hash = hash(key);
+        ReentrantLock lock = lockFor(hash);
+        StateLog wal = log;
+        long logged = 0;
+        long slot;
+        int[] picked = null;
+        lock.lock();
+        try {
+            changes.increment();
+            slot = find(key, hash, true);
+            if (slot >= 0 && walked(category)) {
+                ByteBuffer chunk = chunk(slot);
+                int at = offset(slot);
+                Status.Walk walk = resumeWalk(chunk, at, category);
+                picked = new int[Math.min(size, Status.size(category))];
+                int count = pickInPlace(chunk, at, category, walk);
+                boolean reset = count < 0;
+                if (reset) {
+                    restartInPlace(chunk, at, category, walk);
+                    count = pickInPlace(chunk, at, category, walk);
+                }
+                int n = 0;
+                picked[n++] = count;
+                // a batch does not run into the next round, just as Status.takeBatch */
+                while (n < picked.length && (count = pickInPlace(chunk, at, category, walk)) >= 0) {
+                    picked[n++] = count;
+                }
+                if (n < picked.length) {
+                    picked = Arrays.copyOf(picked, n);
+                }
+                saveWalk(chunk, at, category, walk);
+                if (wal != null) {
+                    logged = wal.append(key, category, reset, picked, picked.length);
+                }
+            } else if (slot >= 0) {
+                Status state = scratch.get();
+                load(slot, state);
+                boolean reset = wal != null && state.unseenCount(category) == 0;
+                picked = state.takeBatch(category, size);
+                store(slot, state);
+                if (wal != null) {
+                    logged = wal.append(key, category, reset, picked, picked.length);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (slot < 0) {
+            return overflow.takeBatch(key, category, size);
+        }
+        if (wal != null) {
+            wal.awaitDurable(logged);
+        }
+        return picked;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Status> action) {
+        for (long slot = 0; slot < slots; slot++) {
+            ByteBuffer chunk = chunk(slot);
+            int at = offset(slot);
+            int hash = (int) INTS.getAcquire(chunk, at);
+            if (hash == FREE || hash == CLAIMED) {
+                continue;
+            }
+            byte[] bytes = new byte[chunk.getShort(at + 4)];
+            chunk.get(at + KEY, bytes);
+            String key = new String(bytes, StandardCharsets.UTF_8);
+            ReentrantLock lock = lockFor(hash);
+            lock.lock();
+            try {
+                Status state = new Status(key);
+                load(slot, state);
+                action.accept(key, state);
+            } finally {
+                lock.unlock();
+            }
+        }
+        overflow.forEach(action);
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, users() + overflow.size());
+    }
+
+    /**
+     * Returns the number of users in the table, not counting the overflow.
+     *
+     * @return users in the file
+     */
+    long users() {
+        return (long) LONGS.getAcquire(header, USERS);
+    }
+
+    @Override
+    public long changes() {
+        return changes.sum();
+    }
+
+    @Override
+    public void setLog(StateLog log) {
+        this.log = log;
+        overflow.setLog(log);
+    }
+
+    /**
+     * Forces the mapped records to disk, at shutdown, and then marks the file
+     * as closed cleanly.
+     */
+    @Override
+    public void close() {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        header.putInt(CLEAN, 1);
+        header.force();
+    }
+}
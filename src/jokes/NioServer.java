@@ -0,0 +1,687 @@
+/*
+ * NioServer.java
+ * Non-blocking front end for the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A non-blocking server for the Joke Client. Instead of starting a Worker
+ * thread for every connection, accepted channels are handed round robin to a
+ * small fixed set of I/O loops, each with its own Selector. A loop reads the
+ * user name line, runs the same request logic as the Worker and writes the
+ * joke/proverb line back before closing the connection, so clients cannot tell
+ * the two modes apart. Keep-alive sessions stay registered with their loop
+ * until the client ends them, and so do BinaryProtocol clients, told apart by
+ * their first byte. They give back their admission once they turn out to be
+ * keep-alive, take it again for each request, and are closed once idle for
+ * ClientSession.idleMillis.
+ * <p>
+ * Under --wal-sync=batch a loop does not wait for the write-ahead log on
+ * its thread, which would hold up every connection of the loop for a disk
+ * force and leave the group commit nothing to gather from them. The answers
+ * of a connection are held back, with the connection parked, until the log
+ * has their picks on disk, and the loop serves its other connections
+ * meanwhile (see StateLog.deferWaits).
+ * <p>
+ * With more than one acceptor every one has a listening channel of its own,
+ * all bound to the port with SO_REUSEPORT so the kernel spreads the new
+ * connections across them, and hands its connections to its own share of
+ * the loops: acceptor k to loops k, k + acceptors and so on.
+ *
+ * @author Kevin Patrick Westropp
+ */
+class NioServer {
+
+    private static final int MAX_LINE = 8192; // longest user name line we will buffer */
+
+    private final int port; // port to listen on */
+    private final int backlog; // number of requests for OpSys to queue */
+    private final IoLoop[] loops; // fixed set of I/O loops */
+    private final int acceptors; // accept threads, each with its own listening channel */
+    private final AdmissionControl admission; // backpressure on accepted connections */
+    private final StateLog wal; // write-ahead log the answers may wait for, null when off */
+
+    /**
+     * Basic constructor for a non-blocking server.
+     *
+     * @param port to listen on
+     * @param backlog number of requests for OpSys to queue
+     * @param loopCount number of I/O loops to run, at least one per acceptor
+     * @param acceptors number of accept threads, more than one needs
+     * SO_REUSEPORT
+     * @param admission backpressure on accepted connections
+     * @param wal write-ahead log of the picks, or null when it is off
+     */
+    NioServer(int port, int backlog, int loopCount, int acceptors, AdmissionControl admission, StateLog wal) {
+        this.port = port;
+        this.backlog = backlog;
+        this.acceptors = Math.max(1, acceptors);
+        this.loops = new IoLoop[Math.max(this.acceptors, loopCount)];
+        this.admission = admission;
+        this.wal = wal;
+    }
+
+    /**
+     * Starts the I/O loops and the acceptors past the first, then accepts
+     * connections on the calling thread until the server is shut down,
+     * handing each one to the next loop of its share.
+     *
+     * @throws IOException if the listening sockets cannot be opened
+     */
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(i, admission, wal);
+            loops[i].start();
+        }
+        final ServerSocketChannel[] servers = new ServerSocketChannel[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            servers[i] = ServerSocketChannel.open();
+            if (acceptors > 1) {
+                servers[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            servers[i].bind(new InetSocketAddress(port), backlog);
+        }
+        Thread[] others = new Thread[acceptors - 1];
+        for (int i = 1; i < acceptors; i++) {
+            final int index = i;
+            others[i - 1] = new Thread(() -> {
+                try {
+                    accept(servers, index);
+                } catch (IOException x) {
+                    ServerLog.error("Server acceptor error", x);
+                }
+            }, "nio-acceptor-" + i);
+            others[i - 1].start();
+        }
+        try {
+            accept(servers, 0);
+            for (Thread other : others) {
+                other.join();
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (IoLoop loop : loops) {
+                loop.close();
+            }
+        }
+    }
+
+    /**
+     * Accept loop of one acceptor, handing its connections round robin to
+     * its share of the loops until the server shuts down. The first acceptor
+     * to see the shutdown closes every listening channel, which wakes the
+     * others.
+     *
+     * @param servers listening channels of all the acceptors
+     * @param index which of them is this acceptor's
+     * @throws IOException if accepting fails
+     */
+    private void accept(ServerSocketChannel[] servers, int index) throws IOException {
+        int next = index;
+        try {
+            while (ServerConfig.current().controlSwitch) {
+                // wait for the next client connection */
+                SocketChannel channel;
+                try {
+                    channel = servers[index].accept();
+                } catch (ClosedChannelException x) {
+                    if (!ServerConfig.current().controlSwitch) {
+                        break; // closed by another acceptor at shutdown */
+                    }
+                    throw x;
+                }
+                loops[next].register(channel, admission.admit());
+                next += acceptors;
+                if (next >= loops.length) {
+                    next = index;
+                }
+            }
+        } finally {
+            for (ServerSocketChannel server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Per connection state kept on the selection key.
+     */
+    static final class Connection {
+
+        ByteBuffer in = ByteBuffer.allocate(256); // bytes of request lines read so far */
+        ByteBuffer out = ByteBuffer.allocate(0); // responses still to be written, ready to drain */
+        boolean admitted; // true if admission control let this connection in */
+        String unavailable; // answer owed once the first byte tells the protocol, null to serve the client */
+        ClientSession session; // keep-alive session, null for a one-shot client */
+        boolean binary; // true once the client has opened with the BinaryProtocol hello */
+        boolean closing; // true once the connection closes after the last write */
+        boolean open; // true while counted among the open connections of the metrics */
+        long lastRead; // System.nanoTime of the last bytes read, for the idle timeout */
+        long owed; // log record the queued answers wait for, 0 for none */
+        boolean parked; // true while the answers wait for the log */
+    }
+
+    /**
+     * One I/O loop, a thread running a Selector over its share of the
+     * connections.
+     */
+    static final class IoLoop extends Thread {
+
+        private final Selector selector;
+        private final AdmissionControl admission;
+        private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<SocketChannel> rejected = new ConcurrentLinkedQueue<>();
+        private final ResponseBuffer response = new ResponseBuffer(); // response of the request being served */
+        private final StateLog wal; // write-ahead log, null when off */
+        private final long[] owed = new long[1]; // log record the response being served waits for, see StateLog.deferWaits */
+        private final List<SelectionKey> parked = new ArrayList<>(); // connections whose answers wait for the log */
+        private volatile boolean waitingForLog; // true while parked connections want a wake up on the next commit */
+        private volatile boolean running = true;
+        private long lastSweep = System.nanoTime(); // when idle connections were last looked for */
+
+        /**
+         * Basic constructor for an I/O loop.
+         *
+         * @param id number of this loop, used in the thread name
+         * @param admission backpressure on accepted connections
+         * @param wal write-ahead log, or null when it is off
+         */
+        IoLoop(int id, AdmissionControl admission, StateLog wal) throws IOException {
+            super("nio-loop-" + id);
+            selector = Selector.open();
+            this.admission = admission;
+            this.wal = wal;
+            if (wal != null) {
+                wal.onCommit(() -> {
+                    if (waitingForLog) {
+                        selector.wakeup();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Hands a freshly accepted channel over to this loop.
+         *
+         * @param channel accepted connection
+         * @param admitted false if the server is saturated and the connection
+         * only gets the unavailable answer
+         */
+        void register(SocketChannel channel, boolean admitted) {
+            (admitted ? pending : rejected).add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to stop once the connections it holds are done.
+         */
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+
+        /**
+         * Selects and services ready connections until closed.
+         */
+        @Override
+        public void run() {
+            StateLog.deferWaits(owed);
+            try {
+                while (running || !selector.keys().isEmpty() || !pending.isEmpty() || !rejected.isEmpty()) {
+                    // once closed, stop blocking so cancelled keys drain and the loop can end */
+                    selector.select(running ? sweepMillis() : 100);
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (key.isReadable()) {
+                                read(key);
+                            } else if (key.isWritable()) {
+                                write(key);
+                            }
+                        } catch (IOException | UncheckedIOException x) {
+                            // a failed read or write, or a pick the write-ahead log could not make durable */
+                            ServerLog.warn(x.toString());
+                            closeKey(key);
+                        }
+                    }
+                    closeIdle();
+                    releaseParked();
+                }
+                selector.close();
+            } catch (IOException x) {
+                ServerLog.error("Server nio loop error", x);
+            }
+        }
+
+        /**
+         * Sends the held back answers whose picks the log now has on disk, and
+         * closes the connections whose picks it failed to write. Asks for a
+         * wake up on the next commit while any are left.
+         */
+        private void releaseParked() {
+            if (parked.isEmpty()) {
+                return;
+            }
+            waitingForLog = true; // before looking, so a commit from here on wakes the select */
+            Iterator<SelectionKey> keys = parked.iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                Connection conn = (Connection) key.attachment();
+                try {
+                    if (!key.isValid()) {
+                        keys.remove();
+                    } else if (wal.durable(conn.owed)) {
+                        keys.remove();
+                        conn.parked = false;
+                        conn.owed = 0;
+                        flush(key, conn);
+                    }
+                } catch (IOException | UncheckedIOException x) {
+                    keys.remove();
+                    ServerLog.warn(x.toString());
+                    closeKey(key);
+                }
+            }
+            waitingForLog = !parked.isEmpty();
+        }
+
+        /**
+         * Returns how long a select may block, so idle connections are looked
+         * for often enough.
+         *
+         * @return milliseconds, 0 to block until something happens
+         */
+        private long sweepMillis() {
+            int idle = ClientSession.idleMillis;
+            return idle > 0 ? Math.min(idle, 1000) : 0;
+        }
+
+        /**
+         * Closes the keep-alive connections that have sent nothing for the
+         * idle timeout, at most once per sweep interval.
+         */
+        private void closeIdle() {
+            long idle = ClientSession.idleMillis * 1000000L;
+            long now = System.nanoTime();
+            if (idle <= 0 || now - lastSweep < sweepMillis() * 1000000L) {
+                return;
+            }
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (key.isValid() && (conn.session != null || conn.binary) && !conn.out.hasRemaining()
+                        && now - conn.lastRead > idle) {
+                    ServerLog.info("Closing a session idle for " + ClientSession.idleMillis + " ms.");
+                    closeKey(key);
+                }
+            }
+        }
+
+        /**
+         * Registers the channels handed over since the last select. If the
+         * server is not serving right now, or the connection was not admitted,
+         * the answer is owed until the first byte shows whether the client
+         * speaks the BinaryProtocol, just like the Worker does.
+         */
+        private void registerPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                if (admission.startInline()) {
+                    register(channel, true, Worker.unavailableMessage(ServerConfig.current()));
+                } else {
+                    register(channel, false, Worker.UNAVAILABLE);
+                }
+            }
+            while ((channel = rejected.poll()) != null) {
+                register(channel, false, Worker.UNAVAILABLE);
+            }
+        }
+
+        /**
+         * Registers one channel with the selector.
+         *
+         * @param channel accepted connection
+         * @param admitted true if admission control let the connection in
+         * @param unavailable answer to send once the first byte is read, or
+         * null to serve the client
+         */
+        private void register(SocketChannel channel, boolean admitted, String unavailable) throws IOException {
+            Connection conn = new Connection();
+            conn.admitted = admitted;
+            conn.unavailable = unavailable;
+            conn.lastRead = System.nanoTime();
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, conn);
+                conn.open = true;
+                ServerMetrics.opened();
+            } catch (ClosedChannelException x) {
+                channel.close();
+                if (admitted) {
+                    admission.finishInline();
+                }
+            }
+        }
+
+        /**
+         * Reads what is available from the client and serves every complete
+         * request line in it. Pipelined requests are all answered with one
+         * write.
+         *
+         * @param key selection key of the connection
+         */
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection conn = (Connection) key.attachment();
+            int n = channel.read(conn.in);
+            if (n > 0) {
+                conn.lastRead = System.nanoTime();
+            }
+            if (n >= 0 && !conn.binary && conn.session == null && BinaryProtocol.awaitsVersion(conn.in)) {
+                return; // the byte after the magic tells binary from text, wait for it */
+            }
+            if (conn.unavailable != null && (n < 0 || conn.in.position() > 0)) {
+                boolean binary = BinaryProtocol.isHello(conn.in);
+                if (!binary) {
+                    respond(key, conn, conn.unavailable);
+                    return;
+                }
+                if (!conn.admitted) {
+                    // turned away, an UNAVAILABLE numbered 0 stands for every request of the connection */
+                    BinaryProtocol.reply(response, BinaryProtocol.UNAVAILABLE, 0, ServerConfig.current().mode, conn.unavailable);
+                    queue(conn);
+                    conn.closing = true;
+                    flush(key, conn);
+                    return;
+                }
+                conn.unavailable = null; // its frames are answered UNAVAILABLE one by one, as the Worker does */
+            }
+            if (conn.binary || conn.session == null && BinaryProtocol.isHello(conn.in)) {
+                readFrames(key, conn, n);
+                return;
+            }
+            String line;
+            while (!conn.closing && (line = takeLine(conn)) != null) {
+                handle(conn, line);
+            }
+            if (n < 0 && !conn.closing) {
+                if (conn.session == null && conn.in.position() > 0) {
+                    handle(conn, takeRest(conn)); // one-shot client hung up after a last line without line end */
+                } else if (conn.session != null) {
+                    conn.session.end();
+                }
+                conn.closing = true;
+            } else if (!conn.closing && !conn.in.hasRemaining()) {
+                if (conn.in.capacity() >= MAX_LINE) {
+                    conn.closing = true; // line too long, give up on this client */
+                } else {
+                    ByteBuffer bigger = ByteBuffer.allocate(conn.in.capacity() * 2);
+                    conn.in.flip();
+                    bigger.put(conn.in);
+                    conn.in = bigger;
+                }
+            }
+            flush(key, conn);
+        }
+
+        /**
+         * Serves every complete frame of a BinaryProtocol client, after
+         * checking its hello on the first read. Pipelined frames are all
+         * answered with one write, as lines are.
+         *
+         * @param key selection key of the connection
+         * @param conn state of the connection
+         * @param n bytes read, negative once the client hung up
+         */
+        private void readFrames(SelectionKey key, Connection conn, int n) throws IOException {
+            if (!conn.binary && conn.in.position() >= 2) {
+                conn.binary = true;
+                conn.in.flip();
+                conn.in.get(); // the magic byte */
+                conn.closing = !BinaryProtocol.hello(conn.in.get() & 0xff, response);
+                conn.in.compact();
+                keepAlive(conn);
+            }
+            if (conn.binary && !conn.closing) {
+                conn.in.flip();
+                if (BinaryProtocol.hasFrame(conn.in)) {
+                    // the frames of this read are one request for admission */
+                    boolean admitted = admission.startRequest(false);
+                    conn.closing = !BinaryProtocol.serveFrames(conn.in, response, admitted);
+                    if (admitted) {
+                        admission.finishRequest();
+                    }
+                }
+                conn.in.compact();
+            }
+            if (n < 0) {
+                conn.closing = true;
+            } else if (!conn.closing && !conn.in.hasRemaining()) {
+                // a frame longer than the buffer, serveFrames has checked it is not over the limit */
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(conn.in.capacity() * 2, BinaryProtocol.MAX_FRAME + 4));
+                conn.in.flip();
+                bigger.put(conn.in);
+                conn.in = bigger;
+            }
+            if (!response.isEmpty()) {
+                queue(conn);
+            }
+            flush(key, conn);
+        }
+
+        /**
+         * Serves one request line of a connection.
+         *
+         * @param conn state of the connection
+         * @param line request line, without line end
+         */
+        private void handle(Connection conn, String line) {
+            long started = System.nanoTime();
+            if (conn.session == null) {
+                if (ClientSession.isStart(line)) {
+                    conn.session = ClientSession.start(line);
+                    keepAlive(conn);
+                    return;
+                }
+                ClientSession.oneShot(line, ServerConfig.current(), response);
+                conn.closing = true;
+            } else {
+                boolean end = line.equals(ClientSession.END);
+                if (end || admission.startRequest(false)) {
+                    conn.session.handle(line, response);
+                    if (!end) {
+                        admission.finishRequest();
+                    }
+                } else {
+                    response.line(Worker.UNAVAILABLE); // saturated, turn this request away but keep the session */
+                }
+                if (!conn.session.isOpen()) {
+                    conn.closing = true;
+                }
+            }
+            queue(conn);
+            // the write is timed apart, when the loop gets to it */
+            ServerMetrics.since(ServerConfig.current().mode, ServerMetrics.TOTAL, started);
+        }
+
+        /**
+         * Gives back the admission of a connection that turned out to be
+         * keep-alive, which takes it for each request from then on.
+         *
+         * @param conn state of the connection
+         */
+        private void keepAlive(Connection conn) {
+            if (conn.admitted) {
+                conn.admitted = false;
+                admission.finishInline();
+            }
+        }
+
+        /**
+         * Queues a line to be sent back to the client and closes the
+         * connection once it is out.
+         *
+         * @param key selection key of the connection
+         * @param conn state of the connection
+         * @param line response to send, without line separator
+         */
+        private void respond(SelectionKey key, Connection conn, String line) throws IOException {
+            long started = System.nanoTime();
+            response.line(line);
+            queue(conn);
+            conn.closing = true;
+            flush(key, conn);
+            ServerMetrics.since(ServerConfig.current().mode, ServerMetrics.TOTAL, started);
+        }
+
+        /**
+         * Moves the rendered response over to the output of the connection,
+         * and empties the response buffer for the next request.
+         *
+         * @param conn state of the connection
+         */
+        private void queue(Connection conn) {
+            int needed = conn.out.remaining() + response.length();
+            if (needed > conn.out.capacity()) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, 2 * conn.out.capacity()));
+                bigger.put(conn.out);
+                conn.out = bigger;
+            } else {
+                conn.out.compact();
+            }
+            conn.out.put(response.array(), 0, response.length()).flip();
+            response.reset();
+            if (owed[0] > conn.owed) {
+                conn.owed = owed[0];
+            }
+            owed[0] = 0;
+        }
+
+        /**
+         * Writes out what is queued, then either goes back to reading, waits
+         * for the socket to take more, or closes the connection. Answers
+         * whose picks the log does not have on disk yet are held back with
+         * the connection parked, until releaseParked sends them.
+         *
+         * @param key selection key of the connection
+         * @param conn state of the connection
+         */
+        private void flush(SelectionKey key, Connection conn) throws IOException {
+            if (conn.owed > 0 && !conn.parked) {
+                if (!wal.durable(conn.owed)) {
+                    // hold the answers back, and read nothing more, until the log has the picks */
+                    conn.parked = true;
+                    parked.add(key);
+                    key.interestOps(0);
+                    return;
+                }
+                conn.owed = 0;
+            }
+            if (conn.parked) {
+                return;
+            }
+            if (conn.out.hasRemaining()) {
+                long started = System.nanoTime();
+                ((SocketChannel) key.channel()).write(conn.out);
+                ServerMetrics.since(ServerConfig.current().mode, ServerMetrics.WRITE, started);
+            }
+            if (conn.out.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (conn.closing) {
+                closeKey(key); // close this connection, but not the server. */
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Writes more of the queued output once the socket has room.
+         *
+         * @param key selection key of the connection
+         */
+        private void write(SelectionKey key) throws IOException {
+            flush(key, (Connection) key.attachment());
+        }
+
+        /**
+         * Takes the first complete line out of the input buffer.
+         *
+         * @param conn state of the connection
+         * @return line without its line end, or null if there is none yet
+         */
+        private String takeLine(Connection conn) {
+            byte[] bytes = conn.in.array();
+            for (int i = 0; i < conn.in.position(); i++) {
+                if (bytes[i] == '\n') {
+                    int len = (i > 0 && bytes[i - 1] == '\r') ? i - 1 : i;
+                    String line = new String(bytes, 0, len, ResponseBuffer.CHARSET);
+                    conn.in.flip().position(i + 1);
+                    conn.in.compact();
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Takes whatever is left in the input buffer as the last line.
+         *
+         * @param conn state of the connection
+         * @return rest of the input
+         */
+        private String takeRest(Connection conn) {
+            int len = conn.in.position();
+            if (len > 0 && conn.in.get(len - 1) == '\r') {
+                len--;
+            }
+            String line = new String(conn.in.array(), 0, len, ResponseBuffer.CHARSET);
+            conn.in.clear();
+            return line;
+        }
+
+        /**
+         * Cancels the key and closes its channel, giving back its admission.
+         *
+         * @param key selection key of the connection
+         */
+        private void closeKey(SelectionKey key) {
+            Connection conn = (Connection) key.attachment();
+            if (conn.session != null) {
+                conn.session.end();
+            }
+            if (conn.admitted) {
+                conn.admitted = false; // give the admission back only once */
+                admission.finishInline();
+            }
+            if (conn.open) {
+                conn.open = false;
+                ServerMetrics.closed();
+            }
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException x) {
+                ServerLog.warn(x.toString());
+            }
+        }
+    }
+}
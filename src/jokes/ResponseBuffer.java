@@ -0,0 +1,285 @@
+/*
+ * ResponseBuffer.java
+ * Reusable response buffer for the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * ResponseBuffer collects the response lines of one request as bytes, ready to
+ * be written to the socket. Each connection (or nio loop) keeps one and reuses
+ * it, so once it has grown to the size of the largest response the request
+ * path allocates nothing: the user name is encoded once per request, and
+ * jokes/proverbs are copied in from their pre-compiled templates.
+ * <p>
+ * Bytes come out exactly as PrintStream.println wrote them before: encoded in
+ * the platform charset and ended with the platform line separator. Binary
+ * frames carry UTF-8 whatever the platform charset is, their user name is set
+ * with setUserUtf8 and their items rendered with Catalog.renderUtf8.
+ *
+ * @author Kevin Patrick Westropp
+ */
+class ResponseBuffer {
+
+    static final Charset CHARSET = Charset.defaultCharset(); // charset PrintStream encodes with */
+    static final byte[] LINE_END = System.lineSeparator().getBytes(CHARSET); // what println ends a line with */
+    static final boolean ASCII_COMPATIBLE = CHARSET.equals(StandardCharsets.UTF_8)
+            || CHARSET.equals(StandardCharsets.US_ASCII) || CHARSET.equals(StandardCharsets.ISO_8859_1);
+
+    private byte[] bytes = new byte[512]; // response bytes */
+    private int length; // number of response bytes */
+    private byte[] name = new byte[64]; // user name of the request, encoded */
+    private int nameLength; // number of user name bytes */
+
+    /**
+     * Empties the buffer for the next request.
+     */
+    void reset() {
+        length = 0;
+    }
+
+    /**
+     * Encodes the user name of the request once, for every item rendered after
+     * it. A null name is written as "null", just like String.format did.
+     *
+     * @param userName name of user
+     */
+    void setUser(String userName) {
+        encodeUser(userName, CHARSET, ASCII_COMPATIBLE);
+    }
+
+    /**
+     * Encodes the user name of the request in UTF-8, for binary frames.
+     *
+     * @param userName name of user
+     */
+    void setUserUtf8(String userName) {
+        encodeUser(userName, StandardCharsets.UTF_8, true);
+    }
+
+    /**
+     * Encodes the user name, copying plain ASCII names char by char when the
+     * charset writes ASCII as itself.
+     *
+     * @param userName name of user
+     * @param charset charset of the response
+     * @param asciiCompatible true if ASCII encodes as itself in the charset
+     */
+    private void encodeUser(String userName, Charset charset, boolean asciiCompatible) {
+        String text = String.valueOf(userName);
+        int n = text.length();
+        if (asciiCompatible) {
+            if (name.length < n) {
+                name = new byte[Math.max(n, 2 * name.length)];
+            }
+            int i = 0;
+            while (i < n) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                name[i++] = (byte) c;
+            }
+            if (i == n) {
+                nameLength = n;
+                return;
+            }
+        }
+        // not plain ASCII, let the charset do the work */
+        byte[] encoded = text.getBytes(charset);
+        if (encoded.length > name.length) {
+            name = encoded;
+        } else {
+            System.arraycopy(encoded, 0, name, 0, encoded.length);
+        }
+        nameLength = encoded.length;
+    }
+
+    /**
+     * Appends the user name set by setUser.
+     */
+    void appendUser() {
+        append(name, 0, nameLength);
+    }
+
+    /**
+     * Appends raw bytes.
+     *
+     * @param src bytes to append
+     * @param off offset of the first byte
+     * @param len number of bytes
+     */
+    void append(byte[] src, int off, int len) {
+        ensure(len);
+        System.arraycopy(src, off, bytes, length, len);
+        length += len;
+    }
+
+    /**
+     * Appends the bytes of a buffer between two indexes, without moving its
+     * position.
+     *
+     * @param src buffer to copy from
+     * @param from first index to copy
+     * @param to index after the last one to copy
+     */
+    void append(ByteBuffer src, int from, int to) {
+        int len = to - from;
+        ensure(len);
+        src.get(from, bytes, length, len);
+        length += len;
+    }
+
+    /**
+     * Ends the current line.
+     */
+    void endLine() {
+        append(LINE_END, 0, LINE_END.length);
+    }
+
+    /**
+     * Appends a whole line of text, for protocol lines that are not
+     * jokes/proverbs.
+     *
+     * @param text line without line end
+     */
+    void line(String text) {
+        byte[] encoded = text.getBytes(CHARSET);
+        append(encoded, 0, encoded.length);
+        endLine();
+    }
+
+    /**
+     * Appends a protocol line of a fixed prefix and a number, without building
+     * a String for it.
+     *
+     * @param prefix ASCII text before the number
+     * @param number non-negative number
+     */
+    void line(byte[] prefix, int number) {
+        append(prefix, 0, prefix.length);
+        ensure(11);
+        if (number == 0) {
+            bytes[length++] = '0';
+        } else {
+            int digits = 0;
+            for (int n = number; n > 0; n /= 10) {
+                digits++;
+            }
+            for (int i = length + digits - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + number % 10);
+                number /= 10;
+            }
+            length += digits;
+        }
+        endLine();
+    }
+
+    /**
+     * Appends one byte, for binary frames.
+     *
+     * @param value byte to append, the low 8 bits
+     */
+    void putByte(int value) {
+        ensure(1);
+        bytes[length++] = (byte) value;
+    }
+
+    /**
+     * Appends a big-endian 16 bit number, for binary frames.
+     *
+     * @param value number to append, the low 16 bits
+     */
+    void putShort(int value) {
+        ensure(2);
+        bytes[length++] = (byte) (value >>> 8);
+        bytes[length++] = (byte) value;
+    }
+
+    /**
+     * Appends a big-endian 32 bit number, for binary frames.
+     *
+     * @param value number to append
+     */
+    void putInt(int value) {
+        ensure(4);
+        setInt(length, value);
+        length += 4;
+    }
+
+    /**
+     * Overwrites a big-endian 32 bit number already appended, to fill in the
+     * length of a binary frame once its payload is rendered.
+     *
+     * @param at index of the first byte
+     * @param value number to write
+     */
+    void setInt(int at, int value) {
+        bytes[at] = (byte) (value >>> 24);
+        bytes[at + 1] = (byte) (value >>> 16);
+        bytes[at + 2] = (byte) (value >>> 8);
+        bytes[at + 3] = (byte) value;
+    }
+
+    /**
+     * Returns the number of response bytes.
+     *
+     * @return length of the response
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Tells whether nothing has been appended since the last reset.
+     *
+     * @return true if empty
+     */
+    boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Returns the backing array, valid from 0 to length().
+     *
+     * @return response bytes
+     */
+    byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * Writes the response to a stream, with no flush.
+     *
+     * @param out stream of the client socket
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * Returns the response as text, for callers that need a String.
+     *
+     * @return response decoded in the platform charset
+     */
+    String text() {
+        return new String(bytes, 0, length, CHARSET);
+    }
+
+    /**
+     * Makes room for more bytes.
+     *
+     * @param more number of bytes about to be appended
+     */
+    private void ensure(int more) {
+        if (length + more > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + more, 2 * bytes.length));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * ServerConfig.java
+ * Server mode and control switches of the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * ServerConfig is an immutable snapshot of what the admin client controls: the
+ * server mode and the control switches of the client and admin loops. The
+ * current snapshot is published through one atomic reference, so reading it
+ * is a single volatile read with no lock, and an admin change swaps in a new
+ * snapshot that every worker sees on its next read.
+ * <p>
+ * A request reads the snapshot once and carries it through its whole
+ * pipeline, so the mode it picks a joke/proverb in is the mode it records and
+ * renders it in, even if the admin switches mode halfway through.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class ServerConfig {
+
+    static final int JOKE_MODE = 1; // serving jokes */
+    static final int PROVERB_MODE = 2; // serving proverbs */
+    static final int MAINTENANCE_MODE = 3; // answering every request with the maintenance message */
+
+    private static final AtomicReference<ServerConfig> current
+            = new AtomicReference<>(new ServerConfig(JOKE_MODE, true, true)); // snapshot in force */
+
+    final int mode; // 1 joke mode; 2 proverb mode; 3 maintenance mode */
+    final boolean controlSwitch; // false once the server is shutting down */
+    final boolean adminControlSwitch; // false once the admin looper is shutting down */
+
+    /**
+     * Basic constructor for a snapshot.
+     *
+     * @param mode server mode
+     * @param controlSwitch control switch of the server
+     * @param adminControlSwitch control switch of the admin looper
+     */
+    private ServerConfig(int mode, boolean controlSwitch, boolean adminControlSwitch) {
+        this.mode = mode;
+        this.controlSwitch = controlSwitch;
+        this.adminControlSwitch = adminControlSwitch;
+    }
+
+    /**
+     * Returns the snapshot in force.
+     *
+     * @return current snapshot
+     */
+    static ServerConfig current() {
+        return current.get();
+    }
+
+    /**
+     * Publishes a change to the snapshot. The change is retried on a fresh
+     * snapshot if another change got in first, so none is lost.
+     *
+     * @param change builds the new snapshot from the current one
+     * @return the snapshot now in force
+     */
+    static ServerConfig update(UnaryOperator<ServerConfig> change) {
+        return current.updateAndGet(change);
+    }
+
+    /**
+     * Returns a copy with another server mode.
+     *
+     * @param newMode 1:joke 2:proverb 3:maintenance
+     * @return new snapshot
+     */
+    ServerConfig withMode(int newMode) {
+        return new ServerConfig(newMode, controlSwitch, adminControlSwitch);
+    }
+
+    /**
+     * Returns a copy with another server control switch.
+     *
+     * @param control false for shutdown
+     * @return new snapshot
+     */
+    ServerConfig withControl(boolean control) {
+        return new ServerConfig(mode, control, adminControlSwitch);
+    }
+
+    /**
+     * Returns a copy with another admin control switch.
+     *
+     * @param control false for shutdown
+     * @return new snapshot
+     */
+    ServerConfig withAdminControl(boolean control) {
+        return new ServerConfig(mode, controlSwitch, control);
+    }
+
+    /**
+     * Returns the server mode for a mode name sent by the admin client.
+     *
+     * @param name joke, proverb or maintenance
+     * @return the mode, or -1 for an unknown name
+     */
+    static int parseMode(String name) {
+        switch (name) {
+            case "joke":
+                return JOKE_MODE;
+            case "proverb":
+                return PROVERB_MODE;
+            case "maintenance":
+                return MAINTENANCE_MODE;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the name of the mode, as the admin client sends it.
+     *
+     * @return joke, proverb or maintenance
+     */
+    String modeName() {
+        switch (mode) {
+            case PROVERB_MODE:
+                return "proverb";
+            case MAINTENANCE_MODE:
+                return "maintenance";
+            default:
+                return "joke";
+        }
+    }
+
+    /**
+     * Returns the category served in this mode.
+     *
+     * @return Status.PROVERBS in proverb mode, Status.JOKES otherwise
+     */
+    int category() {
+        return mode == PROVERB_MODE ? Status.PROVERBS : Status.JOKES;
+    }
+}
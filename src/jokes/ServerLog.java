@@ -0,0 +1,433 @@
+/*
+ * ServerLog.java
+ * Asynchronous log of the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ServerLog takes the server's log lines off the request path. A thread that
+ * logs claims a slot of a bounded ring buffer with one compare-and-set, fills
+ * it in and publishes it; a single writer thread drains the ring in batches,
+ * formats the lines and writes them to stdout or a file with one flush per
+ * batch. Nothing on the request path takes a lock or touches the console.
+ * <p>
+ * The ring is a bounded multi-producer queue in the style of Vyukov: every
+ * slot carries a sequence number that tells the producers when it is free
+ * and the writer when it is filled. The parts of a line are kept as they
+ * were given and only joined by the writer, so logging "alice" and " has
+ * connected." costs no string building on the request path.
+ * <p>
+ * When the ring is full a line is dropped and counted (--log-overflow=drop,
+ * the default) or the thread waits for the writer to make room
+ * (--log-overflow=block). The writer reports the drops it has seen. Pick the
+ * lowest level written with --log-level=debug|info|warn|error, the output
+ * with --log-file and the ring size with --log-buffer. Lines above info are
+ * written with their level, and lines to a file with the time as well.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class ServerLog {
+
+    static final int DEBUG = 0; // per request detail */
+    static final int INFO = 1; // what the server is doing */
+    static final int WARN = 2; // something went wrong and was dealt with */
+    static final int ERROR = 3; // something went wrong */
+
+    private static final String[] NAMES = {"DEBUG", "INFO", "WARN", "ERROR"}; // level names */
+
+    private static volatile ServerLog current = new ServerLog(INFO, 8192, false, null); // log in force */
+
+    /**
+     * A slot of the ring, filled in by the thread that claimed it.
+     */
+    private static final class Entry {
+
+        int level; // level of the line */
+        long time; // System.currentTimeMillis when it was logged */
+        String first; // first part of the line */
+        String second; // second part of the line, or null */
+        String third; // third part of the line, or null */
+        Throwable error; // stack trace to add, or null */
+    }
+
+    private final int threshold; // lowest level written */
+    private final boolean block; // true to wait for room, false to drop */
+    private final Entry[] entries; // slots of the ring, a power of two of them */
+    private final AtomicLongArray sequences; // per slot: position it is free for, or that position + 1 once filled */
+    private final int mask; // slot of a position is position & mask */
+    private final AtomicLong tail = new AtomicLong(); // next position to claim */
+    private long head; // next position to write, writer thread only */
+    private final LongAdder dropped = new LongAdder(); // lines dropped on a full ring */
+    private final LongAdder written = new LongAdder(); // lines written */
+    private final Writer out; // where the lines go */
+    private final boolean timed; // true to start lines with the time */
+    private final Thread writer; // drains the ring */
+    private volatile boolean closing; // set to stop the writer once the ring is empty */
+
+    /**
+     * Basic constructor for the log, starts its writer thread.
+     *
+     * @param threshold lowest level written
+     * @param size slots in the ring, rounded up to a power of two
+     * @param block true to wait for room when the ring is full
+     * @param file file to append to, or null for stdout
+     * @throws IllegalArgumentException if the file cannot be opened
+     */
+    ServerLog(int threshold, int size, boolean block, String file) {
+        this.threshold = threshold;
+        this.block = block;
+        int n = 2;
+        while (n < size) {
+            n <<= 1;
+        }
+        entries = new Entry[n];
+        sequences = new AtomicLongArray(n);
+        for (int i = 0; i < n; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = n - 1;
+        if (file == null) {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                    StandardCharsets.UTF_8), 1 << 16);
+            timed = false;
+        } else {
+            try {
+                out = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException x) {
+                throw new IllegalArgumentException("Cannot open --log-file " + file + ": " + x);
+            }
+            timed = true;
+        }
+        writer = new Thread(this::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replaces the log in force with one built from the startup options
+     * --log-level, --log-buffer, --log-overflow and --log-file. Lines already
+     * logged are written out by the old log first. Call it while only the
+     * starting thread logs.
+     *
+     * @param options startup options
+     */
+    static void start(ServerOptions options) {
+        String level = options.getString("log-level", "info");
+        int threshold = -1;
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(level)) {
+                threshold = i;
+            }
+        }
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Unknown --log-level: " + level + " (expected debug, info, warn or error)");
+        }
+        String overflow = options.getString("log-overflow", "drop");
+        if (!overflow.equals("drop") && !overflow.equals("block")) {
+            throw new IllegalArgumentException("Unknown --log-overflow: " + overflow + " (expected drop or block)");
+        }
+        ServerLog log = new ServerLog(threshold, options.getInt("log-buffer", 8192), overflow.equals("block"),
+                options.getString("log-file", null));
+        current.stop();
+        current = log;
+    }
+
+    /**
+     * Writes out what is left in the ring and stops the writer, at shutdown.
+     */
+    static void close() {
+        current.stop();
+    }
+
+    /**
+     * Checks whether lines of a level are written, so a caller can skip
+     * building a costly line.
+     *
+     * @param level DEBUG, INFO, WARN or ERROR
+     * @return true if they are written
+     */
+    static boolean enabled(int level) {
+        return level >= current.threshold;
+    }
+
+    /**
+     * Logs a line at info level.
+     *
+     * @param line the line
+     */
+    static void info(String line) {
+        current.log(INFO, line, null, null, null);
+    }
+
+    /**
+     * Logs a line of two parts at info level, joined by the writer.
+     *
+     * @param first first part of the line
+     * @param second second part of the line
+     */
+    static void info(String first, String second) {
+        current.log(INFO, first, second, null, null);
+    }
+
+    /**
+     * Logs a line of three parts at info level, joined by the writer.
+     *
+     * @param first first part of the line
+     * @param second second part of the line
+     * @param third third part of the line
+     */
+    static void info(String first, String second, String third) {
+        current.log(INFO, first, second, third, null);
+    }
+
+    /**
+     * Logs a line at warn level.
+     *
+     * @param line the line
+     */
+    static void warn(String line) {
+        current.log(WARN, line, null, null, null);
+    }
+
+    /**
+     * Logs a line and the stack trace of an error at error level.
+     *
+     * @param line the line
+     * @param error what went wrong
+     */
+    static void error(String line, Throwable error) {
+        current.log(ERROR, line, null, null, error);
+    }
+
+    /**
+     * Returns the counters of the log for the admin client.
+     *
+     * @return one line of counters
+     */
+    static String stats() {
+        ServerLog log = current;
+        return "level=" + NAMES[log.threshold].toLowerCase() + " buffer=" + log.entries.length
+                + " overflow=" + (log.block ? "block" : "drop") + " queued=" + (log.tail.get() - log.head)
+                + " written=" + log.written.sum() + " dropped=" + log.dropped.sum();
+    }
+
+    /**
+     * Returns the number of lines dropped on a full ring.
+     *
+     * @return lines dropped
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Puts a line in the ring, or drops it if the ring is full and the
+     * overflow policy is drop.
+     *
+     * @param level level of the line
+     * @param first first part of the line
+     * @param second second part of the line, or null
+     * @param third third part of the line, or null
+     * @param error stack trace to add, or null
+     */
+    void log(int level, String first, String second, String third, Throwable error) {
+        if (level < threshold) {
+            return;
+        }
+        if (closing) {
+            // the writer is gone or going, so write it here; only the last lines at shutdown come this way */
+            writeNow(level, first, second, third, error);
+            return;
+        }
+        long position = tail.get();
+        for (int waits = 0; ; ) {
+            int slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    Entry entry = entries[slot];
+                    entry.level = level;
+                    entry.time = timed ? System.currentTimeMillis() : 0L;
+                    entry.first = first;
+                    entry.second = second;
+                    entry.third = third;
+                    entry.error = error;
+                    sequences.lazySet(slot, position + 1);
+                    return;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // the ring is full */
+                if (!block) {
+                    dropped.increment();
+                    return;
+                }
+                if (++waits < 16) {
+                    Thread.yield(); // give the writer the core, it is the one that makes room */
+                } else {
+                    LockSupport.parkNanos(50000L);
+                }
+                position = tail.get();
+            } else {
+                position = tail.get(); // another thread took this slot */
+            }
+        }
+    }
+
+    /**
+     * Writer loop: writes every filled slot, flushes once the ring is empty,
+     * and sleeps a little when there is nothing to write.
+     */
+    private void drain() {
+        long reported = 0;
+        PrintWriter traces = new PrintWriter(out);
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int batch = 0;
+            while (true) {
+                int slot = (int) head & mask;
+                if (sequences.get(slot) != head + 1) {
+                    break;
+                }
+                Entry entry = entries[slot];
+                format(line, entry.level, entry.time, entry.first, entry.second, entry.third);
+                Throwable error = entry.error;
+                entry.first = null;
+                entry.second = null;
+                entry.third = null;
+                entry.error = null;
+                sequences.lazySet(slot, head + mask + 1);
+                head++;
+                try {
+                    out.append(line).append(System.lineSeparator());
+                    if (error != null) {
+                        error.printStackTrace(traces);
+                        traces.flush();
+                    }
+                } catch (IOException x) {
+                    // nowhere left to report it, keep draining so nobody waits */
+                }
+                batch++;
+            }
+            long drops = dropped.sum();
+            try {
+                if (drops != reported) {
+                    out.append("WARN " + (drops - reported) + " log lines dropped, the log buffer was full")
+                            .append(System.lineSeparator());
+                    reported = drops;
+                }
+                if (batch > 0) {
+                    out.flush();
+                }
+            } catch (IOException x) {
+                // as above */
+            }
+            written.add(batch);
+            if (batch == 0) {
+                if (closing) {
+                    break;
+                }
+                LockSupport.parkNanos(1000000L);
+            }
+        }
+        try {
+            out.flush();
+        } catch (IOException x) {
+            // as above */
+        }
+    }
+
+    /**
+     * Formats a line the way the writer writes it.
+     *
+     * @param line builder to format into, emptied first
+     * @param level level of the line
+     * @param time when it was logged
+     * @param first first part of the line
+     * @param second second part of the line, or null
+     * @param third third part of the line, or null
+     */
+    private void format(StringBuilder line, int level, long time, String first, String second, String third) {
+        line.setLength(0);
+        if (timed) {
+            line.append(Instant.ofEpochMilli(time)).append(' ');
+        }
+        if (timed || level != INFO) {
+            line.append(NAMES[level]).append(' ');
+        }
+        line.append(first);
+        if (second != null) {
+            line.append(second);
+        }
+        if (third != null) {
+            line.append(third);
+        }
+    }
+
+    /**
+     * Writes a line straight out once the writer has been stopped.
+     *
+     * @param level level of the line
+     * @param first first part of the line
+     * @param second second part of the line, or null
+     * @param third third part of the line, or null
+     * @param error stack trace to add, or null
+     */
+    private void writeNow(int level, String first, String second, String third, Throwable error) {
+        try {
+            writer.join();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        format(line, level, System.currentTimeMillis(), first, second, third);
+        synchronized (this) {
+            try {
+                out.append(line).append(System.lineSeparator());
+                if (error != null) {
+                    PrintWriter traces = new PrintWriter(out);
+                    error.printStackTrace(traces);
+                    traces.flush();
+                }
+                out.flush();
+                written.increment();
+            } catch (IOException x) {
+                // nowhere left to report it */
+            }
+        }
+    }
+
+    /**
+     * Stops the writer once it has written everything logged so far. Lines
+     * logged after that are written straight out by the thread logging them.
+     */
+    void stop() {
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * ServerMetrics.java
+ * Request counters and latency histograms of the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ServerMetrics times every stage of a request, split by the server mode the
+ * request was served in, into a LatencyHistogram per mode and stage. The
+ * stages are
+ * <pre>
+ *   accept   from accept to a Worker taking the connection (classic I/O)
+ *   read     reading the user name line (classic I/O, one-shot requests)
+ *   lookup   checking whether the user is new
+ *   select   picking the joke/proverb and marking it as seen in the store
+ *   render   rendering the joke/proverb into the response buffer
+ *   write    writing the response to the socket
+ *   total    the whole request, from accept for a one-shot request
+ * </pre>
+ * so the count of total is the number of requests in each mode. The counter
+ * of rounds restarted counts how often a user had seen everything and their
+ * record was flushed.
+ * <p>
+ * Recording is an increment of a striped counter, with no lock, so the
+ * workers do not contend over it. Turn it off with --metrics=false. The admin
+ * command metrics prints the throughput and the p50/p99/p999 of every stage
+ * with report, status prints the gauges of the server with status, and watch
+ * prints a compact line per interval with watchLine.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class ServerMetrics {
+
+    static final int ACCEPT = 0; // stage from accept to a Worker taking the connection */
+    static final int READ = 1; // stage reading the user name */
+    static final int LOOKUP = 2; // stage checking for a new user */
+    static final int SELECT = 3; // stage picking and marking the joke/proverb */
+    static final int RENDER = 4; // stage rendering the response */
+    static final int WRITE = 5; // stage writing the response */
+    static final int TOTAL = 6; // the whole request */
+
+    private static final String[] STAGES = {"accept", "read", "lookup", "select", "render", "write", "total"};
+    private static final String[] MODES = {"joke", "proverb", "maintenance"};
+
+    private static final LatencyHistogram[][] histograms = new LatencyHistogram[MODES.length][STAGES.length];
+    private static final LongAdder roundsRestarted = new LongAdder(); // users that had seen everything */
+    private static final LongAdder connections = new LongAdder(); // client connections open now */
+    private static final LongAdder connectionsTotal = new LongAdder(); // client connections opened since start */
+    private static final long started = System.nanoTime(); // when the metrics started counting */
+    private static volatile boolean enabled = true; // false to skip recording */
+    private static long lastReport = started; // time of the last report, guarded by the class */
+    private static long lastRequests; // requests at the last report, guarded by the class */
+
+    /**
+     * What a watcher saw of the whole requests at its last line, so the next
+     * line covers only the interval in between.
+     */
+    static final class Window {
+
+        private long[] buckets = new long[LatencyHistogram.BUCKETS]; // total buckets of every mode */
+        private long count; // requests counted */
+        private long time = System.nanoTime(); // when it was taken */
+    }
+
+    static {
+        int stripes = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+        for (LatencyHistogram[] mode : histograms) {
+            for (int stage = 0; stage < mode.length; stage++) {
+                mode[stage] = new LatencyHistogram(stripes);
+            }
+        }
+    }
+
+    /**
+     * Turns recording on or off from the startup option --metrics.
+     *
+     * @param options startup options
+     */
+    static void start(ServerOptions options) {
+        enabled = options.getBoolean("metrics", true);
+    }
+
+    /**
+     * Records how long a stage of a request took.
+     *
+     * @param mode server mode of the request, ServerConfig.JOKE_MODE and on
+     * @param stage ACCEPT to TOTAL
+     * @param nanos time taken
+     */
+    static void record(int mode, int stage, long nanos) {
+        if (enabled && mode >= ServerConfig.JOKE_MODE && mode <= ServerConfig.MAINTENANCE_MODE) {
+            histograms[mode - ServerConfig.JOKE_MODE][stage].record(nanos);
+        }
+    }
+
+    /**
+     * Records the time from a start time to now.
+     *
+     * @param mode server mode of the request
+     * @param stage ACCEPT to TOTAL
+     * @param since System.nanoTime when the stage started
+     * @return now, to start the next stage from
+     */
+    static long since(int mode, int stage, long since) {
+        long now = System.nanoTime();
+        record(mode, stage, now - since);
+        return now;
+    }
+
+    /**
+     * Counts a user whose record was flushed for having seen everything.
+     */
+    static void roundRestarted() {
+        roundsRestarted.increment();
+    }
+
+    /**
+     * Counts a client connection taken on, for the gauge of open connections.
+     * Every call is matched by one call of closed.
+     */
+    static void opened() {
+        connections.increment();
+        connectionsTotal.increment();
+    }
+
+    /**
+     * Counts a client connection done with.
+     */
+    static void closed() {
+        connections.decrement();
+    }
+
+    /**
+     * Reports the gauges of the server: the mode, the connections open and
+     * in flight, the users held by the store and the heap in use.
+     *
+     * @return one line of name=value pairs
+     */
+    static String status() {
+        Runtime runtime = Runtime.getRuntime();
+        return "mode=" + ServerConfig.current().modeName()
+                + " connections=" + connections.sum() + " connectionsTotal=" + connectionsTotal.sum()
+                + " " + JokeServer.getAdmission().stats()
+                + " " + JokeServer.getStore().stats()
+                + " heapUsedMB=" + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)
+                + " heapMaxMB=" + runtime.maxMemory() / (1024 * 1024);
+    }
+
+    /**
+     * Reports the interval since a watcher's last line in one compact line:
+     * the time, mode, open connections, users held, request rate and the
+     * p50/p99/p999 of whole requests in the interval, in microseconds. Moves
+     * the window on to now.
+     *
+     * @param window what the watcher saw last, updated
+     * @return the line
+     */
+    static String watchLine(Window window) {
+        long now = System.nanoTime();
+        long[] buckets = new long[LatencyHistogram.BUCKETS];
+        long count = 0;
+        for (LatencyHistogram[] mode : histograms) {
+            count += mode[TOTAL].addTo(buckets);
+        }
+        long[] interval = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            interval[i] = buckets[i] - window.buckets[i];
+        }
+        long requests = count - window.count;
+        double seconds = Math.max((now - window.time) / 1e9, 1e-3);
+        window.buckets = buckets;
+        window.count = count;
+        window.time = now;
+        return LocalTime.now().truncatedTo(ChronoUnit.SECONDS) + " mode=" + ServerConfig.current().modeName()
+                + " conns=" + connections.sum() + " users=" + JokeServer.getStore().size()
+                + " rate=" + Math.round(requests / seconds) + "/s"
+                + " p50=" + micros(LatencyHistogram.percentile(interval, requests, 0.50))
+                + " p99=" + micros(LatencyHistogram.percentile(interval, requests, 0.99))
+                + " p999=" + micros(LatencyHistogram.percentile(interval, requests, 0.999));
+    }
+
+    /**
+     * Reports the throughput since the start and since the last report, the
+     * store and backpressure counters, and a line per mode and stage that has
+     * been recorded with its count and p50/p99/p999 in microseconds.
+     *
+     * @return the report, lines separated by \n
+     */
+    static synchronized String report() {
+        long now = System.nanoTime();
+        StringBuilder rows = new StringBuilder();
+        long requests = 0;
+        long[] buckets = new long[LatencyHistogram.BUCKETS];
+        for (int mode = 0; mode < MODES.length; mode++) {
+            for (int stage = 0; stage < STAGES.length; stage++) {
+                Arrays.fill(buckets, 0L);
+                long count = histograms[mode][stage].addTo(buckets);
+                if (count == 0) {
+                    continue;
+                }
+                if (stage == TOTAL) {
+                    requests += count;
+                }
+                rows.append('\n').append(MODES[mode]).append(' ').append(STAGES[stage])
+                        .append(" count=").append(count)
+                        .append(" p50=").append(micros(LatencyHistogram.percentile(buckets, count, 0.50)))
+                        .append(" p99=").append(micros(LatencyHistogram.percentile(buckets, count, 0.99)))
+                        .append(" p999=").append(micros(LatencyHistogram.percentile(buckets, count, 0.999)))
+                        .append(" max=").append(micros(LatencyHistogram.percentile(buckets, count, 1.0)));
+            }
+        }
+        double uptime = (now - started) / 1e9;
+        double recent = (now - lastReport) / 1e9;
+        String head = "uptime=" + Math.round(uptime) + "s requests=" + requests
+                + " rate=" + Math.round(requests / Math.max(uptime, 1e-3)) + "/s"
+                + " recentRate=" + Math.round((requests - lastRequests) / Math.max(recent, 1e-3)) + "/s"
+                + " users=" + JokeServer.getStore().size() + " roundsRestarted=" + roundsRestarted.sum()
+                + " rejected=" + JokeServer.getAdmission().rejected() + " units=us";
+        lastReport = now;
+        lastRequests = requests;
+        return head + rows;
+    }
+
+    /**
+     * Formats nanoseconds as microseconds with one decimal.
+     *
+     * @param nanos duration
+     * @return microseconds
+     */
+    private static String micros(long nanos) {
+        return String.valueOf(Math.round(nanos / 100.0) / 10.0);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * ServerOptions.java
+ * Startup options for the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.util.HashMap;
+
+/**
+ * ServerOptions holds the startup options handed to the Joke Server on the
+ * command line. Options are given as --name=value pairs, and any option not on
+ * the command line falls back to the system property jokes.name, then to the
+ * default supplied by the caller.
+ *
+ * @author Kevin Patrick Westropp
+ */
+class ServerOptions {
+
+    private final HashMap<String, String> options = new HashMap<>(); // parsed --name=value pairs */
+
+    /**
+     * Parses the command line arguments into options. Arguments that are not
+     * in the --name=value form are ignored, a bare --name is taken as true.
+     *
+     * @param args command line arguments
+     */
+    ServerOptions(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+    }
+
+    /**
+     * Returns the string value of an option.
+     *
+     * @param name of option
+     * @param def default value when the option is not set
+     * @return value of the option
+     */
+    String getString(String name, String def) {
+        String value = options.get(name);
+        if (value == null) {
+            value = System.getProperty("jokes." + name);
+        }
+        return value != null ? value : def;
+    }
+
+    /**
+     * Returns the integer value of an option.
+     *
+     * @param name of option
+     * @param def default value when the option is not set
+     * @return value of the option
+     */
+    int getInt(String name, int def) {
+        String value = getString(name, null);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException x) {
+            throw new IllegalArgumentException("Option --" + name + " expects a number, got: " + value);
+        }
+    }
+
+    /**
+     * Returns the boolean value of an option.
+     *
+     * @param name of option
+     * @param def default value when the option is not set
+     * @return value of the option
+     */
+    boolean getBoolean(String name, boolean def) {
+        String value = getString(name, null);
+        if (value == null) {
+            return def;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
+}
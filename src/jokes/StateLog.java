@@ -0,0 +1,600 @@
+/*
+ * StateLog.java
+ * Write-ahead log of the user states of the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * StateLog is the write-ahead log of the user state store. Every joke/proverb
+ * the store hands out is appended as a record of the user, the category,
+ * whether the record was started over first and the items marked as seen.
+ * Appending only copies the record into a memory buffer, under a lock held
+ * for just that copy. A flusher thread swaps the buffer out, writes it to the
+ * log file and forces it to disk as one group commit for every record
+ * gathered meanwhile.
+ * <p>
+ * The sync policy sets when the log is forced to disk:
+ * <ul>
+ * <li>batch: every group commit, and a request only gets its answer once its
+ * record is on disk, so a crash loses nothing that was answered</li>
+ * <li>interval: every --wal-sync-ms, without making requests wait, so a crash
+ * loses at most that much</li>
+ * <li>never: written every --wal-sync-ms and left to the OS to force</li>
+ * </ul>
+ * The log is kept as numbered segment files, prefix.000001 and on. When a
+ * snapshot starts the log moves on to a new segment, and once the snapshot
+ * is in place the older segments are deleted, since everything in them
+ * happened before the snapshot started. At startup the segments left are
+ * replayed, in order, on top of the snapshot. Replaying a record the snapshot
+ * already holds does no harm: marks are idempotent, and a start over is
+ * always followed by the marks made after it.
+ * <p>
+ * A segment starts with the magic "JKWL", the version and the two catalog
+ * sizes, and each record is framed by its length and CRC32 so a record torn
+ * by a crash ends the replay of that segment.
+ * <p>
+ * A write that fails stops the log until the server is restarted, since the
+ * records after a torn one could not be replayed. Nothing written after the
+ * failure counts as durable: the batch policy fails the requests waiting on
+ * it, and the other policies go on serving with nothing logged.
+ * <p>
+ * An nio loop serves many connections on one thread and must not wait for a
+ * group commit. It calls deferWaits once, and from then on awaitDurable only
+ * notes the record its answer owes; the loop holds that answer back, goes on
+ * with its other connections meanwhile, and sends it once durable says the
+ * record is on disk. onCommit tells the loop when to look again.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class StateLog {
+
+    static final int MAGIC = 0x4a4b574c; // "JKWL" */
+    static final int VERSION = 1; // version of the log layout */
+    private static final int HEADER = 16; // magic, version and both catalog sizes */
+    private static final int RESET = 2; // flag of a record started over before its marks */
+
+    private final Path prefix; // segments are prefix.NNNNNN */
+    private final String policy; // batch, interval or never */
+    private final long syncMillis; // flush interval of the interval and never policies */
+    private final ReentrantLock appendLock = new ReentrantLock(); // guards the fields below */
+    private final Condition appended = appendLock.newCondition(); // signalled when records are waiting */
+    private final Condition durable = appendLock.newCondition(); // signalled after every group commit */
+    private final CRC32 crc = new CRC32(); // checksum of the record being appended */
+    private ByteBuffer active = ByteBuffer.allocate(1 << 16); // records not handed to the flusher yet */
+    private ByteBuffer flushing = ByteBuffer.allocate(1 << 16); // records the flusher is writing */
+    private byte[] name = new byte[64]; // user name being appended, encoded */
+    private final int[] single = new int[1]; // index of a one item record */
+    private long appendedSeq; // number of records appended */
+    private long durableSeq; // number of records written by the policy */
+    private int segment; // number of the segment being written */
+    private boolean rotate; // true when the flusher should move on to a new segment */
+    private boolean closed; // true once the log is closed */
+    private FileChannel channel; // segment being written, used by the flusher only */
+    private Thread flusher; // writes the group commits */
+    private volatile IOException failure; // write failure that stopped the log, if any */
+    private final List<Runnable> committed = new CopyOnWriteArrayList<>(); // told after every group commit */
+    private static final ThreadLocal<long[]> owed = new ThreadLocal<>(); // of a thread that must not wait, see deferWaits */
+
+    /**
+     * Basic constructor for the log.
+     *
+     * @param prefix path prefix of the segment files
+     * @param policy batch, interval or never
+     * @param syncMillis flush interval of the interval and never policies
+     */
+    StateLog(Path prefix, String policy, long syncMillis) {
+        if (!policy.equals("batch") && !policy.equals("interval") && !policy.equals("never")) {
+            throw new IllegalArgumentException("Unknown --wal-sync policy: " + policy + " (expected batch, interval or never)");
+        }
+        this.prefix = prefix;
+        this.policy = policy;
+        this.syncMillis = Math.max(1, syncMillis);
+    }
+
+    /**
+     * Builds the log the startup options ask for: --wal=prefix turns it on,
+     * --wal-sync=batch|interval|never and --wal-sync-ms=N set the policy.
+     *
+     * @param options startup options
+     * @return the log, or null when it is off
+     */
+    static StateLog fromOptions(ServerOptions options) {
+        String file = options.getString("wal", null);
+        return file == null ? null : new StateLog(Paths.get(file),
+                options.getString("wal-sync", "interval"), options.getInt("wal-sync-ms", 100));
+    }
+
+    /**
+     * Replays the segments left on disk into a store, then opens a new
+     * segment and starts the flusher. Call it once the snapshot is restored.
+     *
+     * @param store store to replay into
+     * @return number of records replayed
+     * @throws IOException if a segment cannot be read or the new one created
+     */
+    long open(UserStateStore store) throws IOException {
+        long records = 0;
+        List<Path> segments = segments();
+        for (Path file : segments) {
+            records += replay(file, store);
+        }
+        segment = segments.isEmpty() ? 1 : number(segments.get(segments.size() - 1)) + 1;
+        channel = newSegment(segment);
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.start();
+        return records;
+    }
+
+    /**
+     * Appends a record of items marked as seen. Call it while the user is
+     * locked in the store, so the log holds each user's changes in the order
+     * they were made.
+     *
+     * @param userName key of the user
+     * @param category Status.JOKES or Status.PROVERBS
+     * @param reset true if the record was started over first
+     * @param counts indexes marked as seen, the first count of them
+     * @param count number of indexes
+     * @return sequence number of the record, for awaitDurable
+     */
+    long append(String userName, int category, boolean reset, int[] counts, int count) {
+        appendLock.lock();
+        try {
+            return appendLocked(userName, category, reset, counts, count);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a record of one item marked as seen.
+     *
+     * @param userName key of the user
+     * @param category Status.JOKES or Status.PROVERBS
+     * @param reset true if the record was started over first
+     * @param index index marked as seen
+     * @return sequence number of the record, for awaitDurable
+     */
+    long append(String userName, int category, boolean reset, int index) {
+        appendLock.lock();
+        try {
+            single[0] = index;
+            return appendLocked(userName, category, reset, single, 1);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Encodes a record into the active buffer. The append lock must be held.
+     *
+     * @param userName key of the user
+     * @param category Status.JOKES or Status.PROVERBS
+     * @param reset true if the record was started over first
+     * @param counts indexes marked as seen
+     * @param count number of indexes
+     * @return sequence number of the record
+     */
+    private long appendLocked(String userName, int category, boolean reset, int[] counts, int count) {
+        int nameLength = encode(userName);
+        int max = 8 + 5 + nameLength + 1 + 5 + 5 * count;
+        if (active.remaining() < max) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * active.capacity(), active.position() + max));
+            active.flip();
+            active = bigger.put(active);
+        }
+        int start = active.position();
+        active.position(start + 8);
+        StateSnapshots.putVarint(active, nameLength);
+        active.put(name, 0, nameLength);
+        active.put((byte) (category | (reset ? RESET : 0)));
+        StateSnapshots.putVarint(active, count);
+        for (int i = 0; i < count; i++) {
+            StateSnapshots.putVarint(active, counts[i]);
+        }
+        int end = active.position();
+        crc.reset();
+        crc.update(active.array(), start + 8, end - start - 8);
+        active.putInt(start, end - start - 8).putInt(start + 4, (int) crc.getValue());
+        if (start == 0) {
+            appended.signal(); // the flusher may be waiting for work */
+        }
+        return ++appendedSeq;
+    }
+
+    /**
+     * Waits until a record is durable, under the batch policy. The other
+     * policies never make a request wait.
+     *
+     * @param seq sequence number returned by append
+     * @throws UncheckedIOException if the log failed before the record was
+     * written, so the request must not be answered
+     */
+    void awaitDurable(long seq) {
+        if (!policy.equals("batch")) {
+            return;
+        }
+        long[] deferred = owed.get();
+        if (deferred != null) {
+            if (seq > deferred[0]) {
+                deferred[0] = seq;
+            }
+            return;
+        }
+        appendLock.lock();
+        try {
+            while (durableSeq < seq && failure == null && !closed) {
+                durable.awaitUninterruptibly();
+            }
+            if (durableSeq < seq && failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed, the pick is not durable", failure);
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Lets the calling thread go on instead of waiting in awaitDurable, for
+     * an nio loop. awaitDurable then keeps the highest sequence number it is
+     * given in owed[0], and the thread must hold back the answers it served
+     * meanwhile until durable says that record is on disk.
+     *
+     * @param owed where the record owed is kept, the thread clears it once
+     * it has taken it
+     */
+    static void deferWaits(long[] owed) {
+        StateLog.owed.set(owed);
+    }
+
+    /**
+     * Tells whether a record is durable, without waiting, for an answer held
+     * back by a thread that deferred its waits.
+     *
+     * @param seq sequence number returned by append
+     * @return true if the answer may be sent: the record is on disk, the
+     * policy does not wait for it, or the log is closed
+     * @throws UncheckedIOException if the log failed before the record was
+     * written, so the answer must not be sent
+     */
+    boolean durable(long seq) {
+        if (!policy.equals("batch")) {
+            return true;
+        }
+        appendLock.lock();
+        try {
+            if (durableSeq < seq && failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed, the pick is not durable", failure);
+            }
+            return durableSeq >= seq || closed;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a listener told after every group commit, and after the log has
+     * failed or closed, on the flusher thread. It must not block.
+     *
+     * @param listener the listener
+     */
+    void onCommit(Runnable listener) {
+        committed.add(listener);
+    }
+
+    /**
+     * Moves the log on to a new segment, before a snapshot starts.
+     *
+     * @return number of the new segment, every older one is covered by the
+     * snapshot once it is in place
+     */
+    int rotate() {
+        appendLock.lock();
+        try {
+            rotate = true;
+            appended.signal();
+            while (rotate && !closed) {
+                durable.awaitUninterruptibly();
+            }
+            return segment;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments older than a given one, once a snapshot covering
+     * them is in place.
+     *
+     * @param first oldest segment to keep
+     * @return number of segments deleted
+     */
+    int dropBefore(int first) {
+        int dropped = 0;
+        try {
+            for (Path file : segments()) {
+                if (number(file) < first && Files.deleteIfExists(file)) {
+                    dropped++;
+                }
+            }
+        } catch (IOException x) {
+            ServerLog.warn("Could not compact the log: " + x);
+        }
+        return dropped;
+    }
+
+    /**
+     * Writes out the records still buffered, forces them to disk and stops
+     * the flusher.
+     */
+    void close() {
+        appendLock.lock();
+        try {
+            closed = true;
+            appended.signal();
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the group commits until the log is closed.
+     */
+    private void flushLoop() {
+        boolean last = false;
+        while (!last) {
+            long seq;
+            boolean newSegment;
+            appendLock.lock();
+            try {
+                long waitUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(syncMillis);
+                // the batch policy commits as soon as there is anything, the others on their interval */
+                while (!closed && !rotate) {
+                    long left = waitUntil - System.nanoTime();
+                    if (policy.equals("batch") ? active.position() > 0 : left <= 0) {
+                        break;
+                    }
+                    if (policy.equals("batch")) {
+                        appended.awaitUninterruptibly();
+                    } else {
+                        try {
+                            appended.awaitNanos(left);
+                        } catch (InterruptedException x) {
+                            // only close stops the flusher, it goes on waiting */
+                        }
+                    }
+                }
+                last = closed;
+                newSegment = rotate;
+                ByteBuffer full = active;
+                active = flushing;
+                flushing = full;
+                seq = appendedSeq;
+            } finally {
+                appendLock.unlock();
+            }
+            IOException failed = null;
+            try {
+                // once a write has failed the records are dropped, they could not be replayed past it */
+                if (failure == null) {
+                    boolean wrote = flushing.position() > 0;
+                    flushing.flip();
+                    while (flushing.hasRemaining()) {
+                        channel.write(flushing);
+                    }
+                    if ((wrote && !policy.equals("never")) || last || newSegment) {
+                        channel.force(false);
+                    }
+                }
+                if (newSegment || last) {
+                    channel.close();
+                }
+                if (newSegment && !last && failure == null) {
+                    channel = newSegment(segment + 1);
+                }
+            } catch (IOException x) {
+                failed = x;
+                ServerLog.error("Write-ahead log write failed, logging stops until restart", x);
+            } finally {
+                // empty whatever happened, it is the active buffer after the next swap */
+                flushing.clear();
+            }
+            appendLock.lock();
+            try {
+                if (failed != null && failure == null) {
+                    failure = failed;
+                }
+                if (failure == null) {
+                    durableSeq = seq;
+                }
+                if (newSegment) {
+                    segment++;
+                    rotate = false;
+                }
+                durable.signalAll();
+            } finally {
+                appendLock.unlock();
+            }
+            for (Runnable listener : committed) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * Returns the write failure that stopped the log, for the admin client.
+     *
+     * @return the failure, or null if every write went through
+     */
+    IOException failure() {
+        return failure;
+    }
+
+    /**
+     * Encodes a user name into the name buffer, plain ASCII without going
+     * through the charset.
+     *
+     * @param userName key of the user
+     * @return number of bytes
+     */
+    private int encode(String userName) {
+        int n = userName.length();
+        if (name.length < n) {
+            name = new byte[Math.max(n, 2 * name.length)];
+        }
+        for (int i = 0; i < n; i++) {
+            char c = userName.charAt(i);
+            if (c >= 0x80) {
+                name = userName.getBytes(StandardCharsets.UTF_8);
+                return name.length;
+            }
+            name[i] = (byte) c;
+        }
+        return n;
+    }
+
+    /**
+     * Creates a new segment file and writes its header.
+     *
+     * @param number number of the segment
+     * @return channel to append to
+     * @throws IOException if the file cannot be created
+     */
+    private FileChannel newSegment(int number) throws IOException {
+        FileChannel file = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).putInt(VERSION).putInt(Status.jokeCount).putInt(Status.proverbCount).flip();
+        while (header.hasRemaining()) {
+            file.write(header);
+        }
+        return file;
+    }
+
+    /**
+     * Replays one segment into a store. A record cut short or failing its
+     * checksum ends the segment, as the tail of a crash.
+     *
+     * @param file segment file
+     * @param store store to replay into
+     * @return number of records replayed
+     * @throws IOException if the segment cannot be read or is not a log
+     */
+    static long replay(Path file, UserStateStore store) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (in.remaining() < HEADER || in.getInt() != MAGIC) {
+            throw new IOException(file + " is not a write-ahead log segment");
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+            throw new IOException("Log segment " + file + " has unknown version " + version);
+        }
+        int[] sizes = {in.getInt(), in.getInt()};
+        CRC32 check = new CRC32();
+        long records = 0;
+        while (in.remaining() >= 8) {
+            int length = in.getInt();
+            int sum = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                break;
+            }
+            check.reset();
+            check.update(in.array(), in.position(), length);
+            if ((int) check.getValue() != sum) {
+                break;
+            }
+            ByteBuffer record = in.slice();
+            record.limit(length);
+            in.position(in.position() + length);
+            int nameLength = StateSnapshots.getVarint(record);
+            String userName = new String(record.array(), record.arrayOffset() + record.position(),
+                    nameLength, StandardCharsets.UTF_8);
+            record.position(record.position() + nameLength);
+            int flags = record.get();
+            int category = flags & 1;
+            int count = StateSnapshots.getVarint(record);
+            int[] counts = new int[count];
+            for (int i = 0; i < count; i++) {
+                counts[i] = StateSnapshots.getVarint(record);
+            }
+            records++;
+            if (sizes[category] != Status.size(category)) {
+                continue; // taken with another catalog, like the snapshot it is started over */
+            }
+            store.update(userName, state -> {
+                if ((flags & RESET) != 0) {
+                    state.clear(category);
+                }
+                for (int index : counts) {
+                    state.markSeen(category, index);
+                }
+                return null;
+            });
+        }
+        return records;
+    }
+
+    /**
+     * Lists the segment files, oldest first.
+     *
+     * @return segment paths
+     * @throws IOException if the directory cannot be read
+     */
+    private List<Path> segments() throws IOException {
+        Path dir = prefix.toAbsolutePath().getParent();
+        String base = prefix.getFileName() + ".";
+        List<Path> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, base + "[0-9][0-9][0-9][0-9][0-9][0-9]")) {
+            for (Path file : files) {
+                found.add(file);
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    /**
+     * Returns the path of a segment.
+     *
+     * @param number number of the segment
+     * @return path prefix.NNNNNN
+     */
+    private Path segmentPath(int number) {
+        return prefix.resolveSibling(prefix.getFileName() + String.format(".%06d", number));
+    }
+
+    /**
+     * Returns the number of a segment from its path.
+     *
+     * @param file segment path
+     * @return number of the segment
+     */
+    private static int number(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(name.length() - 6));
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * StateSnapshots.java
+ * Snapshots of the user states of the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * StateSnapshots saves the user state store to a snapshot file in the
+ * background and restores it when the server starts, so users keep what they
+ * have seen across restarts.
+ * <p>
+ * A snapshot walks the store one user at a time, copying each state while
+ * only that user's stripe is locked, so requests keep being served while it
+ * runs. Each user is saved as it was at one moment, the snapshot as a whole
+ * is not a single point in time. A snapshot is skipped when the store has not
+ * changed since the last one. It is written to a temp file next to the
+ * snapshot, forced to disk and renamed over it, so a crash leaves the old
+ * snapshot or the new one, never half of one. The layout, all numbers
+ * big-endian, is
+ * <pre>
+ *   magic         4 bytes "JKSS"
+ *   version       int, 1
+ *   jokeCount     int, jokes in the catalog the snapshot was taken with
+ *   proverbCount  int, proverbs in the catalog the snapshot was taken with
+ *   users         long, number of user records
+ *   records       per user: the name length as a varint, the UTF-8 name,
+ *                 then (jokeCount + 7) / 8 bytes of seen jokes and
+ *                 (proverbCount + 7) / 8 bytes of seen proverbs, lowest
+ *                 index in the lowest bit of the first byte
+ * </pre>
+ * With a write-ahead log, the log segments older than a snapshot are deleted
+ * once the snapshot is in place.
+ * <p>
+ * A catalog of another size than the snapshot was taken with makes the seen
+ * record of that category meaningless, so it is started over for every user.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class StateSnapshots {
+
+    static final int MAGIC = 0x4a4b5353; // "JKSS" */
+    static final int VERSION = 1; // version of the snapshot layout */
+    private static final int HEADER = 24; // magic, version, both counts and the number of users */
+    private static final int CHUNK = 1 << 20; // bytes written or read at a time */
+
+    private final UserStateStore store; // store to save and restore */
+    private final Path file; // the snapshot file */
+    private final ReentrantLock saving = new ReentrantLock(); // one snapshot at a time */
+    private ScheduledExecutorService timer; // runs the periodic snapshots, null until started */
+    private long savedChanges = -1; // store changes at the last snapshot */
+    private StateLog log; // write-ahead log compacted by each snapshot, null when off */
+
+    /**
+     * Basic constructor for the snapshots of a store.
+     *
+     * @param store store to save and restore
+     * @param file path of the snapshot file
+     */
+    StateSnapshots(UserStateStore store, Path file) {
+        this.store = store;
+        this.file = file;
+    }
+
+    /**
+     * Builds the snapshots the startup options ask for: --snapshot=file turns
+     * them on.
+     *
+     * @param options startup options
+     * @param store store to save and restore
+     * @return snapshots, or null when they are off
+     */
+    static StateSnapshots fromOptions(ServerOptions options, UserStateStore store) {
+        String file = options.getString("snapshot", null);
+        return file == null ? null : new StateSnapshots(store, Paths.get(file));
+    }
+
+    /**
+     * Sets the write-ahead log to compact: each snapshot moves the log on to
+     * a new segment before it starts, and deletes the older segments once it
+     * is in place.
+     *
+     * @param log write-ahead log of the store
+     */
+    void setLog(StateLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Starts saving a snapshot every interval on a background thread.
+     *
+     * @param intervalSeconds seconds between snapshots
+     */
+    void start(long intervalSeconds) {
+        timer = Executors.newSingleThreadScheduledExecutor(HandlerExecutors.namedThreads("snapshot"));
+        timer.scheduleWithFixedDelay(this::saveQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the background snapshots and saves a last one.
+     */
+    void close() {
+        if (timer != null) {
+            timer.shutdown();
+            try {
+                timer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        saveQuietly();
+    }
+
+    /**
+     * Saves a snapshot from the background, logging rather than throwing a
+     * failure so the next one is still tried.
+     */
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | RuntimeException x) {
+            ServerLog.warn("Snapshot to " + file + " failed: " + x);
+        }
+    }
+
+    /**
+     * Saves a snapshot of the store, unless nothing changed since the last
+     * one.
+     *
+     * @return number of users saved, or -1 if the snapshot was skipped
+     * @throws IOException if the snapshot cannot be written
+     */
+    long save() throws IOException {
+        saving.lock();
+        try {
+            long changes = store.changes();
+            if (changes == savedChanges) {
+                return -1;
+            }
+            int keep = log == null ? 0 : log.rotate();
+            long users = write(store, file);
+            savedChanges = changes;
+            if (log != null) {
+                log.dropBefore(keep);
+            }
+            return users;
+        } finally {
+            saving.unlock();
+        }
+    }
+
+    /**
+     * Restores the store from the snapshot file, if there is one.
+     *
+     * @return number of users restored, 0 when there is no snapshot
+     * @throws IOException if the snapshot cannot be read or is broken
+     */
+    long restore() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long users = read(file, store);
+        savedChanges = store.changes();
+        return users;
+    }
+
+    /**
+     * Writes every state of a store to a snapshot file, through a temp file
+     * renamed over it.
+     *
+     * @param store store to save
+     * @param file path of the snapshot file
+     * @return number of users written
+     * @throws IOException if the file cannot be written
+     */
+    static long write(UserStateStore store, Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int jokeCount = Status.jokeCount;
+        int proverbCount = Status.proverbCount;
+        long users;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ChunkWriter out = new ChunkWriter(channel);
+            ByteBuffer header = out.room(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putInt(jokeCount).putInt(proverbCount).putLong(0L);
+            // the user count is only known at the end, it is patched in then */
+            int recordBits = (jokeCount + 7) / 8 + (proverbCount + 7) / 8;
+            long[] count = new long[1];
+            try {
+                store.forEach((userName, state) -> {
+                    byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer record = out.room(5 + name.length + recordBits);
+                    putVarint(record, name.length);
+                    record.put(name);
+                    state.saveTo(Status.JOKES, record);
+                    state.saveTo(Status.PROVERBS, record);
+                    count[0]++;
+                });
+                out.flush();
+            } catch (UncheckedIOException x) {
+                throw x.getCause();
+            }
+            users = count[0];
+            ByteBuffer patch = ByteBuffer.allocate(8).putLong(0, users);
+            channel.write(patch, HEADER - 8);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return users;
+    }
+
+    /**
+     * Reads a snapshot file into a store, streaming it a chunk at a time.
+     *
+     * @param file path of the snapshot file
+     * @param store store to put the states in
+     * @return number of users read
+     * @throws IOException if the file cannot be read or is broken
+     */
+    static long read(Path file, UserStateStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ChunkReader in = new ChunkReader(channel);
+            ByteBuffer header = in.need(HEADER, file);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a snapshot file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Snapshot " + file + " has unknown version " + version);
+            }
+            int jokeCount = header.getInt();
+            int proverbCount = header.getInt();
+            long users = header.getLong();
+            boolean jokesMatch = jokeCount == Status.jokeCount;
+            boolean proverbsMatch = proverbCount == Status.proverbCount;
+            if (!jokesMatch || !proverbsMatch) {
+                ServerLog.warn("Snapshot " + file + " was taken with other catalogs, starting their records over.");
+            }
+            int jokeBytes = (jokeCount + 7) / 8;
+            int proverbBytes = (proverbCount + 7) / 8;
+            for (long i = 0; i < users; i++) {
+                int nameLength = getVarint(in.need(5, null));
+                ByteBuffer record = in.need(nameLength + jokeBytes + proverbBytes, file);
+                String userName = new String(record.array(), record.arrayOffset() + record.position(),
+                        nameLength, StandardCharsets.UTF_8);
+                record.position(record.position() + nameLength);
+                Status state = new Status(userName);
+                if (jokesMatch) {
+                    state.loadFrom(Status.JOKES, record);
+                } else {
+                    record.position(record.position() + jokeBytes);
+                }
+                if (proverbsMatch) {
+                    state.loadFrom(Status.PROVERBS, record);
+                } else {
+                    record.position(record.position() + proverbBytes);
+                }
+                store.put(userName, state);
+            }
+            return users;
+        }
+    }
+
+    /**
+     * Writes a non-negative int in 7 bit groups, lowest first.
+     *
+     * @param out buffer to write to
+     * @param value number to write
+     */
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads an int written by putVarint.
+     *
+     * @param in buffer to read from
+     * @return number read
+     * @throws IOException if the number is broken
+     */
+    static int getVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Broken length in snapshot");
+    }
+
+    /**
+     * Gathers small writes into one big buffer, written out to the channel
+     * whenever it fills up.
+     */
+    private static final class ChunkWriter {
+
+        private final FileChannel channel; // file being written */
+        private ByteBuffer buffer = ByteBuffer.allocate(CHUNK); // bytes not written yet */
+
+        ChunkWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Makes room for a record, writing out what is buffered if needed.
+         *
+         * @param size most bytes the record will take
+         * @return buffer to put the record in
+         */
+        ByteBuffer room(int size) {
+            if (buffer.remaining() < size) {
+                flush();
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocate(size);
+                }
+            }
+            return buffer;
+        }
+
+        /**
+         * Writes out everything buffered.
+         */
+        void flush() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException x) {
+                // forEach takes no checked exceptions, write hands it back as thrown */
+                throw new UncheckedIOException(x);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads a channel a big chunk at a time and hands out its records.
+     */
+    private static final class ChunkReader {
+
+        private final FileChannel channel; // file being read */
+        private ByteBuffer buffer = ByteBuffer.allocate(CHUNK); // bytes read, not handed out yet */
+        private boolean atEnd; // true once the whole file is read */
+
+        ChunkReader(FileChannel channel) {
+            this.channel = channel;
+            buffer.flip();
+        }
+
+        /**
+         * Makes sure the next bytes of the file are in the buffer.
+         *
+         * @param size bytes needed
+         * @param file path for the error, or null if fewer bytes will do near
+         * the end of the file
+         * @return buffer positioned at the next byte
+         * @throws IOException if the file cannot be read or ends too soon
+         */
+        ByteBuffer need(int size, Path file) throws IOException {
+            if (buffer.remaining() < size && !atEnd) {
+                buffer.compact();
+                if (buffer.capacity() < size) {
+                    ByteBuffer bigger = ByteBuffer.allocate(size);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+                while (buffer.hasRemaining() && !atEnd) {
+                    atEnd = channel.read(buffer) < 0;
+                }
+                buffer.flip();
+            }
+            if (buffer.remaining() < size && file != null) {
+                throw new IOException("Snapshot " + file + " is cut short");
+            }
+            return buffer;
+        }
+    }
+}
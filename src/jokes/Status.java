@@ -0,0 +1,508 @@
+/*
+ * Status.java
+ * Attributed to Elliott, after Hughes, Shoffner, Winslow with alterations by Westropp
+ */
+package jokes;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Status class holds data elements for storing the state of the communication
+ * between the client/user and the server. What has been sent is kept as one bit
+ * per joke/proverb: in a single long while the catalog has at most 64 items,
+ * and in a packed long[] bitset for bigger catalogs, so checks, resets and the
+ * search for the next unseen item work a whole word at a time.
+ */
+class Status {
+
+    static final int JOKES = 0; // category of the jokes */
+    static final int PROVERBS = 1; // category of the proverbs */
+
+    static volatile int jokeCount = 5; // number of jokes in the catalog */
+    static volatile int proverbCount = 5; // number of proverbs in the catalog */
+
+    String userName; // string of user name */
+    private long jokesSeen; // bit per joke that has been sent, for up to 64 jokes */
+    private long proverbsSeen; // bit per proverb that has been sent, for up to 64 proverbs */
+    private long[] jokeWords; // bitset of jokes sent for bigger catalogs, null otherwise */
+    private long[] proverbWords; // bitset of proverbs sent for bigger catalogs, null otherwise */
+    private int jokeWordsSeen; // bits set in jokeWords */
+    private int proverbWordsSeen; // bits set in proverbWords */
+    private Walk jokeWalk; // order the jokes are handed out in this round, made on the first pick */
+    private Walk proverbWalk; // order the proverbs are handed out in this round, made on the first pick */
+
+    /**
+     * Walk is a random permutation of the items of a bigger catalog, made up
+     * one item at a time, so picking the next unseen item takes the same time
+     * whatever the size of the catalog and no list of items is kept. It is a
+     * keyed four round Feistel network over the smallest power of four at or
+     * above the catalog size, walked in order of its input: the outputs past
+     * the end of the catalog are skipped, fewer than three in four on average.
+     * The key comes from the random generator of the thread, so there is no
+     * generator shared by the workers. The MappedStateStore walks its records
+     * in place with one of these.
+     */
+    static final class Walk {
+
+        private final int size; // items in the catalog */
+        private final int half; // bits in each half of a Feistel block */
+        private long key; // key of this round */
+        private long position; // next input of the permutation */
+
+        /**
+         * Basic constructor for a walk over a catalog.
+         *
+         * @param size number of items in the catalog
+         */
+        Walk(int size) {
+            this.size = size;
+            int bits = 2;
+            while ((1L << bits) < size) {
+                bits += 2;
+            }
+            half = bits >>> 1;
+            restart();
+        }
+
+        /**
+         * Starts a new round with a new order.
+         */
+        void restart() {
+            key = ThreadLocalRandom.current().nextLong();
+            position = 0;
+        }
+
+        /**
+         * Carries on a round saved by saveWalk.
+         *
+         * @param key key of the round
+         * @param position next input of the permutation
+         */
+        void resume(long key, long position) {
+            this.key = key;
+            this.position = position;
+        }
+
+        /**
+         * Returns the key of the round, to save it.
+         *
+         * @return key of the round
+         */
+        long key() {
+            return key;
+        }
+
+        /**
+         * Returns the next input of the permutation, to save it.
+         *
+         * @return position in the round, 0 if nothing has been walked
+         */
+        long position() {
+            return position;
+        }
+
+        /**
+         * Returns the next item of the round.
+         *
+         * @return index of the item, or -1 once the round is over
+         */
+        int next() {
+            int mask = (1 << half) - 1;
+            while (position >>> (half << 1) == 0) {
+                int block = (int) position++;
+                int left = block >>> half;
+                int right = block & mask;
+                for (int round = 0; round < 4; round++) {
+                    int mixed = left ^ (mix(right, round) & mask);
+                    left = right;
+                    right = mixed;
+                }
+                int item = (left << half) | right;
+                if (item < size) {
+                    return item;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Round function of the Feistel network.
+         *
+         * @param right right half of the block
+         * @param round number of the round
+         * @return bits to mix into the left half
+         */
+        private int mix(int right, int round) {
+            long h = (right + 1) * 0x9e3779b97f4a7c15L ^ (key + round * 0xbf58476d1ce4e5b9L);
+            h = (h ^ (h >>> 31)) * 0x94d049bb133111ebL;
+            return (int) (h ^ (h >>> 29));
+        }
+    }
+
+    /**
+     * This is a basic constructor for a new Status object.
+     *
+     * @param user name
+     */
+    Status(String user) {
+        userName = user;
+        jokeWords = newWords(jokeCount);
+        proverbWords = newWords(proverbCount);
+    }
+
+    /**
+     * Allocates the bitset for a catalog too big for a single long.
+     *
+     * @param size number of items in the catalog
+     * @return words of the bitset, or null if one long is enough
+     */
+    private static long[] newWords(int size) {
+        return size <= 64 ? null : new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * Returns the number of items of a category.
+     *
+     * @param category JOKES or PROVERBS
+     * @return number of items in the catalog
+     */
+    static int size(int category) {
+        return category == PROVERBS ? proverbCount : jokeCount;
+    }
+
+    /**
+     * Checks whether an item has been sent.
+     *
+     * @param category JOKES or PROVERBS
+     * @param index of the item
+     * @return true if it has been sent
+     */
+    boolean isSeen(int category, int index) {
+        long[] words = words(category);
+        if (words == null) {
+            return (word(category) & (1L << index)) != 0;
+        }
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Marks an item as sent.
+     *
+     * @param category JOKES or PROVERBS
+     * @param index of the item
+     */
+    void markSeen(int category, int index) {
+        long[] words = words(category);
+        if (words != null) {
+            long bit = 1L << index;
+            if ((words[index >>> 6] & bit) == 0) {
+                words[index >>> 6] |= bit;
+                if (category == PROVERBS) {
+                    proverbWordsSeen++;
+                } else {
+                    jokeWordsSeen++;
+                }
+            }
+        } else if (category == PROVERBS) {
+            proverbsSeen |= 1L << index;
+        } else {
+            jokesSeen |= 1L << index;
+        }
+    }
+
+    /**
+     * Flushes/clears the record of a category so everything is unseen again,
+     * and starts a new round of picks.
+     *
+     * @param category JOKES or PROVERBS
+     */
+    void clear(int category) {
+        clearSeen(category);
+        Walk walk = category == PROVERBS ? proverbWalk : jokeWalk;
+        if (walk != null) {
+            walk.restart();
+        }
+    }
+
+    /**
+     * Clears the record of a category but leaves its walk as it is, for a
+     * record about to be loaded together with its walk.
+     *
+     * @param category JOKES or PROVERBS
+     */
+    void clearSeen(int category) {
+        long[] words = words(category);
+        if (words != null) {
+            Arrays.fill(words, 0L);
+        } else if (category == PROVERBS) {
+            proverbsSeen = 0L;
+        } else {
+            jokesSeen = 0L;
+        }
+        if (category == PROVERBS) {
+            proverbWordsSeen = 0;
+        } else {
+            jokeWordsSeen = 0;
+        }
+    }
+
+    /**
+     * Finds the first item not sent yet at or after an index.
+     *
+     * @param category JOKES or PROVERBS
+     * @param from index to start looking at
+     * @return index of the item, or -1 if everything from there on was sent
+     */
+    int nextUnseen(int category, int from) {
+        int size = size(category);
+        if (from >= size) {
+            return -1;
+        }
+        long[] words = words(category);
+        int found;
+        if (words == null) {
+            found = Long.numberOfTrailingZeros(~word(category) & (-1L << from));
+        } else {
+            int w = from >>> 6;
+            long unseen = ~words[w] & (-1L << from);
+            while (unseen == 0 && ++w < words.length) {
+                unseen = ~words[w];
+            }
+            found = unseen == 0 ? size : (w << 6) + Long.numberOfTrailingZeros(unseen);
+        }
+        return found < size ? found : -1;
+    }
+
+    /**
+     * Counts the items not sent yet.
+     *
+     * @param category JOKES or PROVERBS
+     * @return number of unseen items
+     */
+    int unseenCount(int category) {
+        int size = size(category);
+        if (words(category) == null) {
+            return size - Long.bitCount(word(category) & lowBits(size));
+        }
+        return size - (category == PROVERBS ? proverbWordsSeen : jokeWordsSeen);
+    }
+
+    /**
+     * Picks an item not sent yet and marks it as sent, starting the record
+     * over once everything has been sent. Only call it through the
+     * UserStateStore, which keeps other changes to this user out meanwhile.
+     *
+     * @param category JOKES or PROVERBS
+     * @return index of the item to send
+     */
+    int takeNext(int category) {
+        if (unseenCount(category) == 0) {
+            // everything has been sent, so start over */
+            clear(category);
+            ServerMetrics.roundRestarted();
+        }
+        return pickUnseen(category);
+    }
+
+    /**
+     * Picks up to size items not sent yet, with no repeats, and marks them all
+     * as sent. If everything has been sent the record is started over first,
+     * just as for a single item. Only call it through the UserStateStore.
+     *
+     * @param category JOKES or PROVERBS
+     * @param size largest number of items to pick
+     * @return indexes of the items to send, in random order
+     */
+    int[] takeBatch(int category, int size) {
+        int unseen = unseenCount(category);
+        if (unseen == 0) {
+            clear(category);
+            ServerMetrics.roundRestarted();
+            unseen = size(category);
+        }
+        int[] counts = new int[Math.min(size, unseen)];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = pickUnseen(category);
+        }
+        return counts;
+    }
+
+    /**
+     * Picks one of the items not sent yet, each as likely as the others, and
+     * marks it as sent. Up to 64 items the unseen bits of the record are
+     * counted and one of them is drawn; for bigger catalogs the walk of the
+     * round goes on to its next unseen item. At least one item must be unseen.
+     *
+     * @param category JOKES or PROVERBS
+     * @return index of the item
+     */
+    private int pickUnseen(int category) {
+        int size = size(category);
+        int count;
+        if (words(category) == null) {
+            long unseen = ~word(category) & lowBits(size);
+            count = selectBit(unseen, ThreadLocalRandom.current().nextInt(Long.bitCount(unseen)));
+        } else {
+            Walk walk = walk(category, size);
+            // items already sent, from a batch or a restored record, are walked past */
+            do {
+                count = walk.next();
+                if (count < 0) {
+                    // the round ran out with items still unseen, a safety net for a record changed behind the walk */
+                    walk.restart();
+                }
+            } while (count < 0 || isSeen(category, count));
+        }
+        markSeen(category, count);
+        return count;
+    }
+
+    /**
+     * Finds the n-th set bit of a word by halving, in six steps with no
+     * branch on the random n.
+     *
+     * @param bits word to look in
+     * @param n number of set bits to pass over, less than the bit count
+     * @return index of the bit
+     */
+    private static int selectBit(long bits, int n) {
+        int index = 0;
+        for (int width = 32; width > 0; width >>>= 1) {
+            int below = Long.bitCount(bits & ((1L << width) - 1));
+            int up = ~(n - below) >>> 31; // 1 when the bit is in the upper half */
+            int shift = width & -up;
+            n -= below & -up;
+            bits >>>= shift;
+            index += shift;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the walk of a category, making it on the first pick.
+     *
+     * @param category JOKES or PROVERBS
+     * @param size number of items in the catalog
+     * @return walk of this round
+     */
+    private Walk walk(int category, int size) {
+        if (category == PROVERBS) {
+            if (proverbWalk == null) {
+                proverbWalk = new Walk(size);
+            }
+            return proverbWalk;
+        }
+        if (jokeWalk == null) {
+            jokeWalk = new Walk(size);
+        }
+        return jokeWalk;
+    }
+
+    /**
+     * Writes the record of a category as (size + 7) / 8 bytes, lowest index
+     * in the lowest bit of the first byte, for the snapshots.
+     *
+     * @param category JOKES or PROVERBS
+     * @param out buffer to write to
+     */
+    void saveTo(int category, ByteBuffer out) {
+        int bytes = (size(category) + 7) >>> 3;
+        long[] words = words(category);
+        long word = word(category);
+        for (int i = 0; i < bytes; i++) {
+            if (words != null) {
+                word = words[i >>> 3];
+            }
+            out.put((byte) (word >>> ((i & 7) << 3)));
+        }
+    }
+
+    /**
+     * Reads the record of a category written by saveTo into a fresh state.
+     *
+     * @param category JOKES or PROVERBS
+     * @param in buffer to read from
+     */
+    void loadFrom(int category, ByteBuffer in) {
+        int bytes = (size(category) + 7) >>> 3;
+        long[] words = words(category);
+        long word = 0L;
+        for (int i = 0; i < bytes; i++) {
+            long b = (in.get() & 0xffL) << ((i & 7) << 3);
+            if (words != null) {
+                words[i >>> 3] |= b;
+            } else {
+                word |= b;
+            }
+        }
+        if (words == null && category == PROVERBS) {
+            proverbsSeen = word;
+        } else if (words == null) {
+            jokesSeen = word;
+        } else {
+            int seen = 0;
+            for (long w : words) {
+                seen += Long.bitCount(w);
+            }
+            if (category == PROVERBS) {
+                proverbWordsSeen = seen;
+            } else {
+                jokeWordsSeen = seen;
+            }
+        }
+    }
+
+    /**
+     * Writes how far the walk of a category has got, its key and next
+     * position as two longs, for a store that keeps the walk with the record
+     * so the next pick carries on from there instead of walking a new order
+     * past every item already sent. Zeros if no walk has been made.
+     *
+     * @param category JOKES or PROVERBS, of a catalog of more than 64 items
+     * @param out buffer to write to
+     */
+    void saveWalk(int category, ByteBuffer out) {
+        Walk walk = category == PROVERBS ? proverbWalk : jokeWalk;
+        out.putLong(walk == null ? 0L : walk.key).putLong(walk == null ? 0L : walk.position);
+    }
+
+    /**
+     * Reads the walk of a category written by saveWalk, after the record it
+     * goes with. A walk that had not started yet starts a new round.
+     *
+     * @param category JOKES or PROVERBS, of a catalog of more than 64 items
+     * @param in buffer to read from
+     */
+    void loadWalk(int category, ByteBuffer in) {
+        long key = in.getLong();
+        long position = in.getLong();
+        if (position == 0) {
+            Walk walk = category == PROVERBS ? proverbWalk : jokeWalk;
+            if (walk != null) {
+                walk.restart();
+            }
+        } else {
+            walk(category, size(category)).resume(key, position);
+        }
+    }
+
+    /**
+     * Mask of the lowest bits of a word.
+     *
+     * @param n number of bits, 1 to 64
+     * @return mask with the n lowest bits set
+     */
+    private static long lowBits(int n) {
+        return n >= 64 ? -1L : (1L << n) - 1;
+    }
+
+    private long word(int category) {
+        return category == PROVERBS ? proverbsSeen : jokesSeen;
+    }
+
+    private long[] words(int category) {
+        return category == PROVERBS ? proverbWords : jokeWords;
+    }
+}
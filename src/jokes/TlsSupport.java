@@ -0,0 +1,375 @@
+/*
+ * TlsSupport.java
+ * TLS for the client and admin ports of the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import javax.net.SocketFactory;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TlsSupport puts TLS on the client port and the admin port when the server
+ * is started with --tls. The key is read from a PKCS12 keystore
+ * (--keystore, jokes.p12 by default); if there is none yet, one is generated
+ * with the JDK's keytool, a self-signed EC key for localhost valid ten years,
+ * and its certificate is exported next to it (jokes.crt) for the clients to
+ * trust.
+ * <p>
+ * A full handshake costs a signature and a key exchange, far more than
+ * serving a joke, so a one-shot client would pay it on every connection.
+ * Sessions are therefore kept in a cache sized by --tls-session-cache for
+ * --tls-session-timeout seconds, and handed to clients as session tickets,
+ * so a client coming back resumes with the abbreviated handshake. The
+ * handshakes on the client port run on a bounded pool of their own
+ * (--tls-handshake-threads with --tls-handshake-queue waiting), not on the
+ * accept loop or the Worker threads, so a burst of handshakes cannot hold up
+ * requests; when the pool is full new connections are closed. A handshake
+ * taking longer than --tls-handshake-timeout-ms is given up. Admin
+ * connections are few and handshake on the admin workers.
+ * <p>
+ * Clients started with --tls trust the exported certificate (--tls-cert)
+ * and make every socket from one context, so every connection after the
+ * first resumes its session.
+ *
+ * @author Kevin Patrick Westropp
+ */
+final class TlsSupport {
+
+    static final String KEYSTORE = "jokes.p12"; // default keystore of the server */
+    static final String CERTIFICATE = "jokes.crt"; // default certificate the clients trust */
+    static final String PASSWORD = "jokes-changeit"; // default keystore password */
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+
+    private final SSLContext context;
+    private final ThreadPoolExecutor handshakes; // runs the handshakes of the client port */
+    private final int timeoutMillis; // longest a handshake may take */
+    private final LatencyHistogram handshakeTimes = new LatencyHistogram(4); // of the completed handshakes */
+    private final LongAdder full = new LongAdder(); // handshakes that made a new session */
+    private final LongAdder resumed = new LongAdder(); // handshakes that resumed a session */
+    private final LongAdder failed = new LongAdder(); // handshakes that failed or timed out */
+    private final LongAdder rejected = new LongAdder(); // connections closed with the pool full */
+
+    /**
+     * Builds the server side from the server options, or returns null when
+     * --tls is not given.
+     *
+     * @param options server options
+     * @return TLS for the server ports, or null
+     * @throws IOException if the keystore cannot be read or made
+     */
+    static TlsSupport fromOptions(ServerOptions options) throws IOException {
+        if (!options.getBoolean("tls", false)) {
+            return null;
+        }
+        enableTickets();
+        Path keystore = Paths.get(options.getString("keystore", KEYSTORE));
+        String password = options.getString("keystore-password", PASSWORD);
+        if (!Files.exists(keystore)) {
+            generate(keystore, password, keystore.resolveSibling(CERTIFICATE));
+            ServerLog.info("Generated a self-signed key in " + keystore + ", clients trust "
+                    + keystore.resolveSibling(CERTIFICATE) + ".");
+        }
+        try {
+            KeyStore keys = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(keystore)) {
+                keys.load(in, password.toCharArray());
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keys, password.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            tune(context.getServerSessionContext(), options);
+            int threads = options.getInt("tls-handshake-threads", Runtime.getRuntime().availableProcessors());
+            return new TlsSupport(context, threads, options.getInt("tls-handshake-queue", 128),
+                    options.getInt("tls-handshake-timeout-ms", 5000));
+        } catch (GeneralSecurityException x) {
+            throw new IOException("Cannot use keystore " + keystore + ": " + x.getMessage(), x);
+        }
+    }
+
+    /**
+     * Basic constructor for the server side.
+     *
+     * @param context context holding the server key
+     * @param threads handshake threads
+     * @param queue handshakes allowed to wait for a thread
+     * @param timeoutMillis longest a handshake may take
+     */
+    private TlsSupport(SSLContext context, int threads, int queue, int timeoutMillis) {
+        this.context = context;
+        this.timeoutMillis = timeoutMillis;
+        this.handshakes = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), HandlerExecutors.namedThreads("tls-handshake"));
+    }
+
+    /**
+     * Makes a TLS listening socket, not bound yet so options can be set
+     * first.
+     *
+     * @return server socket whose accepted sockets speak TLS
+     * @throws IOException if the socket cannot be made
+     */
+    ServerSocket serverSocket() throws IOException {
+        SSLServerSocket socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+        socket.setEnabledProtocols(PROTOCOLS);
+        return socket;
+    }
+
+    /**
+     * Runs the handshake of an accepted connection on the handshake pool,
+     * then hands the connection on. If the handshake fails, times out or the
+     * pool is full, the connection is closed instead.
+     *
+     * @param sock accepted TLS socket
+     * @param then what to do with the connection once the handshake is done
+     */
+    void handshake(final Socket sock, final Consumer<Socket> then) {
+        try {
+            handshakes.execute(() -> {
+                long started = System.nanoTime();
+                long startedMillis = System.currentTimeMillis();
+                try {
+                    SSLSocket ssl = (SSLSocket) sock;
+                    // each flight of the handshake is several writes, Nagle's algorithm would hold them for acks */
+                    ssl.setTcpNoDelay(true);
+                    ssl.setSoTimeout(timeoutMillis);
+                    ssl.startHandshake();
+                    ssl.setSoTimeout(0);
+                    long now = System.nanoTime();
+                    handshakeTimes.record(now - started);
+                    // a resumed session keeps the creation time of the session it resumes */
+                    SSLSession session = ssl.getSession();
+                    (session.getCreationTime() < startedMillis ? resumed : full).increment();
+                } catch (IOException x) {
+                    failed.increment();
+                    ServerLog.warn("TLS handshake failed: " + x);
+                    close(sock);
+                    return;
+                }
+                try {
+                    then.accept(sock);
+                } catch (RuntimeException x) {
+                    close(sock); // the workers are shut down */
+                }
+            });
+        } catch (RejectedExecutionException x) {
+            rejected.increment();
+            close(sock);
+        }
+    }
+
+    /**
+     * Stops the handshake pool once the handshakes already taken on are done
+     * or have timed out.
+     */
+    void close() {
+        handshakes.shutdown();
+    }
+
+    /**
+     * Reports the handshake counters.
+     *
+     * @return one line of counters, times in microseconds
+     */
+    String stats() {
+        long[] buckets = new long[LatencyHistogram.BUCKETS];
+        long count = handshakeTimes.addTo(buckets);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        return "tlsFull=" + full.sum() + " tlsResumed=" + resumed.sum() + " tlsFailed=" + failed.sum()
+                + " tlsRejected=" + rejected.sum() + " tlsWaiting=" + handshakes.getQueue().size()
+                + " tlsCache=" + sessions.getSessionCacheSize() + " tlsTimeout=" + sessions.getSessionTimeout()
+                + String.format(" handshakeP50=%.1f handshakeP99=%.1f",
+                        LatencyHistogram.percentile(buckets, count, 0.50) / 1000.0,
+                        LatencyHistogram.percentile(buckets, count, 0.99) / 1000.0);
+    }
+
+    /**
+     * Builds the socket factory of a client from the client options: plain
+     * sockets, or with --tls sockets trusting the certificate in --tls-cert
+     * (jokes.crt by default), all from one context so they resume its
+     * sessions, and with TCP_NODELAY on as on the server side.
+     *
+     * @param options client options
+     * @return factory for the sockets to the server
+     * @throws IOException if the certificate cannot be read
+     */
+    static SocketFactory clientSockets(ServerOptions options) throws IOException {
+        if (!options.getBoolean("tls", false)) {
+            return SocketFactory.getDefault();
+        }
+        enableTickets();
+        Path certificate = Paths.get(options.getString("tls-cert", CERTIFICATE));
+        try {
+            KeyStore trusted = KeyStore.getInstance("PKCS12");
+            trusted.load(null, null);
+            try (InputStream in = Files.newInputStream(certificate)) {
+                trusted.setCertificateEntry("jokes", CertificateFactory.getInstance("X.509").generateCertificate(in));
+            }
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(trusted);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, tmf.getTrustManagers(), null);
+            tune(context.getClientSessionContext(), options);
+            return new NoDelaySockets(context.getSocketFactory());
+        } catch (GeneralSecurityException x) {
+            throw new IOException("Cannot trust certificate " + certificate + ": " + x.getMessage(), x);
+        }
+    }
+
+    /**
+     * Sizes a session cache from --tls-session-cache and
+     * --tls-session-timeout.
+     *
+     * @param sessions session cache of a context
+     * @param options server or client options
+     */
+    private static void tune(SSLSessionContext sessions, ServerOptions options) {
+        sessions.setSessionCacheSize(options.getInt("tls-session-cache", 20000));
+        sessions.setSessionTimeout(options.getInt("tls-session-timeout", 86400));
+    }
+
+    /**
+     * Turns on stateless session tickets on both sides, unless set on the
+     * command line. Read once when the JDK's TLS is first used, so call
+     * before making a context.
+     */
+    private static void enableTickets() {
+        for (String side : new String[]{"server", "client"}) {
+            String property = "jdk.tls." + side + ".enableSessionTicketExtension";
+            if (System.getProperty(property) == null) {
+                System.setProperty(property, "true");
+            }
+        }
+    }
+
+    /**
+     * Generates a self-signed key with the JDK's keytool and exports its
+     * certificate.
+     *
+     * @param keystore keystore file to make
+     * @param password keystore password
+     * @param certificate certificate file to export to
+     * @throws IOException if keytool fails
+     */
+    static void generate(Path keystore, String password, Path certificate) throws IOException {
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        keytool(keytool, "-genkeypair", "-alias", "jokes", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-sigalg", "SHA256withECDSA", "-validity", "3650", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keystore.toString(), "-storepass", password, "-keypass", password);
+        keytool(keytool, "-exportcert", "-rfc", "-alias", "jokes", "-keystore", keystore.toString(),
+                "-storepass", password, "-file", certificate.toString());
+    }
+
+    /**
+     * Runs keytool to its end.
+     *
+     * @param command keytool and its arguments
+     * @throws IOException if it cannot be run or fails
+     */
+    private static void keytool(String... command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes(), Charset.defaultCharset());
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed: " + output.trim());
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for keytool", x);
+        }
+    }
+
+    /**
+     * Socket factory turning TCP_NODELAY on for every socket it makes. A
+     * println on a TLS socket is two records, and Nagle's algorithm would
+     * hold the second until the server acks the first.
+     */
+    static final class NoDelaySockets extends SocketFactory {
+
+        private final SocketFactory sockets; // factory the sockets come from */
+
+        /**
+         * Basic constructor for the factory.
+         *
+         * @param sockets factory the sockets come from
+         */
+        NoDelaySockets(SocketFactory sockets) {
+            this.sockets = sockets;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return noDelay(sockets.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return noDelay(sockets.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return noDelay(sockets.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return noDelay(sockets.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return noDelay(sockets.createSocket(address, port, localAddress, localPort));
+        }
+
+        /**
+         * Turns TCP_NODELAY on.
+         *
+         * @param sock new socket
+         * @return the socket
+         * @throws IOException if the option cannot be set
+         */
+        private static Socket noDelay(Socket sock) throws IOException {
+            sock.setTcpNoDelay(true);
+            return sock;
+        }
+    }
+
+    /**
+     * Closes a socket, quietly.
+     *
+     * @param sock socket to close
+     */
+    private static void close(Socket sock) {
+        try {
+            sock.close();
+        } catch (IOException x) {
+            // closing anyway */
+        }
+    }
+}
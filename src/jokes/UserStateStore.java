@@ -0,0 +1,507 @@
+/*
+ * UserStateStore.java
+ * User state storage for the Joke Server, by Westropp
+ */
+package jokes;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * UserStateStore keeps the Status of every user the server has seen. A Status
+ * is only ever changed through the store, which gives the caller the state of
+ * one user to itself for the whole change: picking the next joke/proverb and
+ * marking it as sent is one step, so two connections of the same user can
+ * never be handed the same item or lose each other's updates.
+ * <p>
+ * With a write-ahead log set, each pick is appended to the log while the
+ * user is still locked, so the log holds every user's picks in order.
+ * <p>
+ * A missing user is created the first time it is asked for. A null user name
+ * is kept as "null", which is what the user is shown as anyway.
+ * <p>
+ * Pick the store at startup with --state-store=striped (the default),
+ * --state-store=locked or --state-store=mapped for the off-heap
+ * MappedStateStore, and the number of lock stripes with --state-stripes.
+ * --state-max-users and --state-idle-ttl put the striped store behind the
+ * EvictingStateStore, which spills idle users to disk.
+ *
+ * @author Kevin Patrick Westropp
+ */
+interface UserStateStore {
+
+    /**
+     * Checks whether a user has a stored state.
+     *
+     * @param userName name of user
+     * @return true for a stored user state, false if new user
+     */
+    boolean contains(String userName);
+
+    /**
+     * Returns the stored state of a user. The Status is live, read it only
+     * through update while the server is running.
+     *
+     * @param userName name of user
+     * @return Status of the user, or null for a new user
+     */
+    Status get(String userName);
+
+    /**
+     * Stores a state for a user, replacing any state already stored.
+     *
+     * @param userName name of user
+     * @param state Status of the user
+     */
+    void put(String userName, Status state);
+
+    /**
+     * Runs an action on the state of a user with no other change to that user
+     * running at the same time. The state is created if the user is new.
+     *
+     * @param <R> type of the result
+     * @param userName name of user
+     * @param action change to make, must not call back into the store
+     * @return what the action returned
+     */
+    <R> R update(String userName, Function<Status, R> action);
+
+    /**
+     * Picks a joke/proverb the user has not seen and marks it as seen, as one
+     * step.
+     *
+     * @param userName name of user
+     * @param category Status.JOKES or Status.PROVERBS
+     * @return index of the item to send
+     */
+    int takeNext(String userName, int category);
+
+    /**
+     * Picks up to size jokes/proverbs the user has not seen and marks them all
+     * as seen, as one step.
+     *
+     * @param userName name of user
+     * @param category Status.JOKES or Status.PROVERBS
+     * @param size largest number of items to pick
+     * @return indexes of the items to send
+     */
+    int[] takeBatch(String userName, int category, int size);
+
+    /**
+     * Hands every stored state to an action, each one while no change to that
+     * user is running.
+     *
+     * @param action gets the user name and its state
+     */
+    void forEach(BiConsumer<String, Status> action);
+
+    /**
+     * Returns the number of stored users.
+     *
+     * @return number of users
+     */
+    int size();
+
+    /**
+     * Returns how many changes have been made to the store so far, so a
+     * snapshot can tell whether anything changed since the last one.
+     *
+     * @return number of changes
+     */
+    long changes();
+
+    /**
+     * Starts logging every takeNext and takeBatch to a write-ahead log. Other
+     * changes are not logged, they are for restoring the store.
+     *
+     * @param log write-ahead log, or null to stop logging
+     */
+    void setLog(StateLog log);
+
+    /**
+     * Returns the counters of the store for the admin client.
+     *
+     * @return one line of counters
+     */
+    default String stats() {
+        return "users=" + size() + " changes=" + changes();
+    }
+
+    /**
+     * Flushes and lets go of whatever the store holds outside the heap, at
+     * shutdown. Stores on the heap have nothing to do.
+     */
+    default void close() {
+    }
+
+    /**
+     * Builds the store the startup options ask for.
+     *
+     * @param options startup options
+     * @return the store, empty unless it is a mapped store or spill file
+     * reopened
+     * @throws IOException if the state file or spill file cannot be mapped
+     */
+    static UserStateStore fromOptions(ServerOptions options) throws IOException {
+        String kind = options.getString("state-store", "striped");
+        if (options.getInt("state-max-users", 0) > 0 || options.getInt("state-idle-ttl", 0) > 0) {
+            if (!kind.equals("striped")) {
+                throw new IllegalArgumentException("--state-max-users and --state-idle-ttl need --state-store=striped");
+            }
+            return EvictingStateStore.fromOptions(options);
+        }
+        switch (kind) {
+            case "striped":
+                return new Striped(options.getInt("state-stripes", Striped.DEFAULT_STRIPES));
+            case "locked":
+                return new Locked();
+            case "mapped":
+                return MappedStateStore.fromOptions(options);
+            default:
+                throw new IllegalArgumentException("Unknown --state-store: " + kind + " (expected striped, locked or mapped)");
+        }
+    }
+
+    /**
+     * Turns a user name into its key in the store.
+     *
+     * @param userName name of user, may be null
+     * @return key of the user
+     */
+    static String key(String userName) {
+        return userName == null ? "null" : userName;
+    }
+
+    /**
+     * Store for many cores. States are held in a ConcurrentHashMap, so finding
+     * a user takes no lock at all, and changes are serialized by a lock picked
+     * from a fixed set of stripes by the hash of the user name. Two requests
+     * only wait for each other when their users share a stripe.
+     */
+    static final class Striped implements UserStateStore {
+
+        static final int DEFAULT_STRIPES = 256; // lock stripes when --state-stripes is not given */
+
+        private final ConcurrentHashMap<String, Status> states = new ConcurrentHashMap<>(); // user name to state */
+        private final ReentrantLock[] locks; // stripes, a power of two of them */
+        private final int mask; // stripe of a hash is hash & mask */
+        private final LongAdder changes = new LongAdder(); // changes made, spread over cells so cores do not contend */
+        private volatile StateLog log; // write-ahead log of the picks, null when off */
+
+        /**
+         * Basic constructor for the striped store.
+         *
+         * @param stripes number of lock stripes, rounded up to a power of two
+         */
+        Striped(int stripes) {
+            int n = 1;
+            while (n < stripes) {
+                n <<= 1;
+            }
+            locks = new ReentrantLock[n];
+            for (int i = 0; i < n; i++) {
+                locks[i] = new ReentrantLock();
+            }
+            mask = n - 1;
+        }
+
+        /**
+         * Returns the lock stripe of a user.
+         *
+         * @param key key of the user
+         * @return lock guarding the user
+         */
+        private ReentrantLock lockFor(String key) {
+            int h = key.hashCode();
+            return locks[(h ^ (h >>> 16)) & mask];
+        }
+
+        /**
+         * Returns the state of a user, creating it for a new user.
+         *
+         * @param key key of the user
+         * @return Status of the user
+         */
+        private Status state(String key) {
+            Status state = states.get(key);
+            return state != null ? state : states.computeIfAbsent(key, Status::new);
+        }
+
+        @Override
+        public boolean contains(String userName) {
+            return states.containsKey(key(userName));
+        }
+
+        @Override
+        public Status get(String userName) {
+            return states.get(key(userName));
+        }
+
+        @Override
+        public void put(String userName, Status state) {
+            String key = key(userName);
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                states.put(key, state);
+                changes.increment();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public <R> R update(String userName, Function<Status, R> action) {
+            String key = key(userName);
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                changes.increment();
+                return action.apply(state(key));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int takeNext(String userName, int category) {
+            // no lambda here, so the request path does not box the index */
+            String key = key(userName);
+            ReentrantLock lock = lockFor(key);
+            StateLog wal = log;
+            long logged = 0;
+            int count;
+            lock.lock();
+            try {
+                changes.increment();
+                Status state = state(key);
+                boolean reset = wal != null && state.unseenCount(category) == 0;
+                count = state.takeNext(category);
+                if (wal != null) {
+                    logged = wal.append(key, category, reset, count);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (wal != null) {
+                // wait for the group commit outside the lock, so the stripe is free meanwhile */
+                wal.awaitDurable(logged);
+            }
+            return count;
+        }
+
+        @Override
+        public int[] takeBatch(String userName, int category, int size) {
+            String key = key(userName);
+            ReentrantLock lock = lockFor(key);
+            StateLog wal = log;
+            long logged = 0;
+            int[] picked;
+            lock.lock();
+            try {
+                changes.increment();
+                Status state = state(key);
+                boolean reset = wal != null && state.unseenCount(category) == 0;
+                picked = state.takeBatch(category, size);
+                if (wal != null) {
+                    logged = wal.append(key, category, reset, picked, picked.length);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (wal != null) {
+                wal.awaitDurable(logged);
+            }
+            return picked;
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, Status> action) {
+            states.forEach((key, state) -> {
+                ReentrantLock lock = lockFor(key);
+                lock.lock();
+                try {
+                    action.accept(key, state);
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+
+        @Override
+        public int size() {
+            return states.size();
+        }
+
+        @Override
+        public long changes() {
+            return changes.sum();
+        }
+
+        @Override
+        public void setLog(StateLog log) {
+            this.log = log;
+        }
+    }
+
+    /**
+     * Store behind a single lock, as the server kept its HashMap before. Kept
+     * for comparison with the striped store.
+     */
+    static final class Locked implements UserStateStore {
+
+        private final HashMap<String, Status> states = new HashMap<>(); // user name to state */
+        private final ReentrantLock lock = new ReentrantLock(); // guards states and every Status in it */
+        private long changes; // changes made, guarded by lock */
+        private volatile StateLog log; // write-ahead log of the picks, null when off */
+
+        /**
+         * Returns the state of a user, creating it for a new user. The lock
+         * must be held.
+         *
+         * @param key key of the user
+         * @return Status of the user
+         */
+        private Status state(String key) {
+            Status state = states.get(key);
+            if (state == null) {
+                state = new Status(key);
+                states.put(key, state);
+            }
+            return state;
+        }
+
+        @Override
+        public boolean contains(String userName) {
+            lock.lock();
+            try {
+                return states.containsKey(key(userName));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Status get(String userName) {
+            lock.lock();
+            try {
+                return states.get(key(userName));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void put(String userName, Status state) {
+            lock.lock();
+            try {
+                states.put(key(userName), state);
+                changes++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public <R> R update(String userName, Function<Status, R> action) {
+            lock.lock();
+            try {
+                changes++;
+                return action.apply(state(key(userName)));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int takeNext(String userName, int category) {
+            String key = key(userName);
+            StateLog wal = log;
+            long logged = 0;
+            int count;
+            lock.lock();
+            try {
+                changes++;
+                Status state = state(key);
+                boolean reset = wal != null && state.unseenCount(category) == 0;
+                count = state.takeNext(category);
+                if (wal != null) {
+                    logged = wal.append(key, category, reset, count);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (wal != null) {
+                wal.awaitDurable(logged);
+            }
+            return count;
+        }
+
+        @Override
+        public int[] takeBatch(String userName, int category, int size) {
+            String key = key(userName);
+            StateLog wal = log;
+            long logged = 0;
+            int[] picked;
+            lock.lock();
+            try {
+                changes++;
+                Status state = state(key);
+                boolean reset = wal != null && state.unseenCount(category) == 0;
+                picked = state.takeBatch(category, size);
+                if (wal != null) {
+                    logged = wal.append(key, category, reset, picked, picked.length);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (wal != null) {
+                wal.awaitDurable(logged);
+            }
+            return picked;
+        }
+
+        @Override
+        public void forEach(BiConsumer<String, Status> action) {
+            lock.lock();
+            try {
+                for (Map.Entry<String, Status> entry : states.entrySet()) {
+                    action.accept(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int size() {
+            lock.lock();
+            try {
+                return states.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long changes() {
+            lock.lock();
+            try {
+                return changes;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void setLog(StateLog log) {
+            this.log = log;
+        }
+    }
+}
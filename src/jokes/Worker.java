@@ -0,0 +1,364 @@
+/*
+ * Worker.java
+ * Attributed to Elliott, after Hughes, Shoffner, Winslow with alterations by Westropp
+ */
+package jokes;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class definition for worker class, implements the Runnable class. This class
+ * handles each connection accepted by the Server Class, on whichever executor
+ * the server was started with.
+ *
+ * @author Kevin Patrick Westropp
+ */
+class Worker implements Runnable {
+
+    /* Answer sent in maintenance mode, and when the server is too busy to take the request. */
+    static final String UNAVAILABLE = "The server is temporarily unavailable -- check-back shortly.";
+
+    /* Longest a rejected client is waited on, for its first byte and then to hang up. */
+    private static final int REJECT_TIMEOUT_MILLIS = 1000;
+    /* Answers the rejected connections off the accept loop, closing them unanswered when it falls behind. */
+    private static final ThreadPoolExecutor REJECTS = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(128), r -> {
+                Thread t = new Thread(r, "rejecter");
+                t.setDaemon(true);
+                return t;
+            });
+
+    /* Class member, socket, local to Worker. */
+    Socket sock;
+    /* System.nanoTime when the connection was accepted, for the metrics. */
+    long accepted;
+
+    /**
+     * Constructor to assign s to local socket
+     */
+    Worker(Socket s) {
+        sock = s;
+        accepted = System.nanoTime();
+    }
+
+    /**
+     * Get I/O streams from the socket, override annotation to override the
+     * Runnable run method. Handles reading userName from
+     * client, then finding the state if user is not new, then calling the
+     * service handler and finally updating the count to reflect the state of
+     * the jokes/proverbs sent. A client that opens with a session line keeps
+     * the connection and asks for any number of jokes/proverbs on it, and a
+     * client that opens with the magic and a version byte speaks the
+     * BinaryProtocol.
+     */
+    @Override
+    public void run() {
+        // intialize and set new PrintStream out to null */
+        PrintStream out = null;
+        // intialize and set new BufferedReader in to null */
+        BufferedReader in = null;
+        ServerMetrics.opened();
+        try {
+            out = new PrintStream(sock.getOutputStream());
+            BufferedInputStream raw = new BufferedInputStream(sock.getInputStream());
+            in = new BufferedReader(new InputStreamReader(raw));
+            // one snapshot of the mode for the whole request */
+            ServerConfig config = ServerConfig.current();
+            long now = ServerMetrics.since(config.mode, ServerMetrics.ACCEPT, accepted);
+            // a binary client opens with the magic and a version byte, peek at them without taking them */
+            raw.mark(2);
+            boolean binary = raw.read() == BinaryProtocol.MAGIC && BinaryProtocol.isVersion(raw.read());
+            raw.reset();
+            String unavailable = binary ? null : unavailableMessage(config);
+            if (binary) {
+                // answers unavailable per request, in its own frames */
+                sock.setSoTimeout(ClientSession.idleMillis);
+                BinaryProtocol.serve(raw, sock.getOutputStream());
+            } else if (unavailable != null) {
+                out.println(unavailable);
+                ServerMetrics.since(config.mode, ServerMetrics.TOTAL, accepted);
+            } else {
+                try {
+                    // local copy of the userName sent over from the client. */
+                    String userName;
+                    userName = in.readLine();
+                    now = ServerMetrics.since(config.mode, ServerMetrics.READ, now);
+                    // response bytes are built here, reused for every request of the connection */
+                    ResponseBuffer response = new ResponseBuffer();
+                    if (ClientSession.isStart(userName)) {
+                        // keep-alive client, serve requests until it ends the session or goes idle */
+                        sock.setSoTimeout(ClientSession.idleMillis);
+                        runSession(ClientSession.start(userName), in, out, response);
+                    } else {
+                        ClientSession.oneShot(userName, config, response);
+                        now = System.nanoTime();
+                        send(response, out);
+                        now = ServerMetrics.since(config.mode, ServerMetrics.WRITE, now);
+                        ServerMetrics.record(config.mode, ServerMetrics.TOTAL, now - accepted);
+                    }
+                } catch (IOException x) {
+                    ServerLog.error("Server read error", x);    // logs the Exception Stack Trace. */
+                }
+            }
+
+            sock.close();   // close this connection, but not the server. */
+        } catch (IOException ioe) {
+            ServerLog.warn(ioe.toString());
+        } catch (UncheckedIOException x) {
+            // the pick could not be logged, so the client gets no answer */
+            ServerLog.error("Server request failed", x);
+            try {
+                sock.close();
+            } catch (IOException ioe) {
+                ServerLog.warn(ioe.toString());
+            }
+        } finally {
+            ServerMetrics.closed();
+        }
+    }
+
+    /**
+     * Serves the requests of a keep-alive session until the client ends it,
+     * hangs up or sends nothing for the idle timeout of the socket. While
+     * more pipelined requests are already read in, their answers are gathered
+     * and sent with one write, as the nio loops do. The admission is given
+     * back while the session waits for a request and taken again for each.
+     *
+     * @param session session opened by the client
+     * @param in reader of the client socket
+     * @param out PrintStream of the client socket
+     * @param response buffer reused for every response of the session
+     */
+    static void runSession(ClientSession session, BufferedReader in, PrintStream out, ResponseBuffer response) throws IOException {
+        AdmissionControl admission = JokeServer.getAdmission();
+        try {
+            while (session.isOpen()) {
+                if (!in.ready()) {
+                    admission.idle(); // nothing pipelined, so this may wait on the client for long */
+                }
+                String request;
+                try {
+                    request = in.readLine();
+                } catch (SocketTimeoutException x) {
+                    ServerLog.info("Closing a session idle for " + ClientSession.idleMillis + " ms.");
+                    break;
+                }
+                if (request == null) {
+                    break; // client hung up */
+                }
+                long started = System.nanoTime();
+                if (request.equals(ClientSession.END) || admission.resume()) {
+                    session.handle(request, response);
+                } else {
+                    response.line(UNAVAILABLE); // saturated, turn this request away but keep the session */
+                }
+                // the session reads its own snapshot, so record under the mode in force now */
+                int mode = ServerConfig.current().mode;
+                if (in.ready() && session.isOpen()) {
+                    // more requests are pipelined behind this one, answer them all with one write */
+                    ServerMetrics.since(mode, ServerMetrics.TOTAL, started);
+                    continue;
+                }
+                long handled = System.nanoTime();
+                send(response, out);
+                long sent = ServerMetrics.since(mode, ServerMetrics.WRITE, handled);
+                ServerMetrics.record(mode, ServerMetrics.TOTAL, sent - started);
+            }
+        } finally {
+            session.end();
+        }
+    }
+
+    /**
+     * Writes the response of one request with a single flush, and empties the
+     * buffer for the next one.
+     *
+     * @param response response lines to send back
+     * @param out PrintStream of the client socket
+     */
+    static void send(ResponseBuffer response, PrintStream out) {
+        if (response.isEmpty()) {
+            return;
+        }
+        out.write(response.array(), 0, response.length());
+        out.flush();
+        response.reset();
+    }
+
+    /**
+     * Turns a connection away when the server is saturated, with the same
+     * answer as maintenance mode. The answer waits for the first byte, to
+     * tell a BinaryProtocol client, so it is sent from a thread of its own
+     * rather than the accept loop.
+     *
+     * @param s socket of the rejected connection
+     */
+    static void reject(final Socket s) {
+        try {
+            REJECTS.execute(() -> answerRejected(s));
+        } catch (RejectedExecutionException x) {
+            // too many turned away at once to answer them all */
+            try {
+                s.close();
+            } catch (IOException ioe) {
+                ServerLog.warn(ioe.toString());
+            }
+        }
+    }
+
+    /**
+     * Answers a rejected connection: an UNAVAILABLE frame numbered 0, which
+     * stands for every request of the connection, to a binary client, and
+     * the unavailable line to any other. Then waits a moment for the client
+     * to hang up, so the close does not reset the connection on bytes it
+     * sent.
+     *
+     * @param s socket of the rejected connection
+     */
+    private static void answerRejected(Socket s) {
+        try (Socket sock = s) {
+            sock.setSoTimeout(REJECT_TIMEOUT_MILLIS);
+            InputStream in = sock.getInputStream();
+            boolean binary;
+            try {
+                binary = in.read() == BinaryProtocol.MAGIC && BinaryProtocol.isVersion(in.read());
+            } catch (SocketTimeoutException x) {
+                binary = false; // a client waiting to be spoken to first gets the line */
+            }
+            ResponseBuffer response = new ResponseBuffer();
+            if (binary) {
+                BinaryProtocol.reply(response, BinaryProtocol.UNAVAILABLE, 0, ServerConfig.current().mode, UNAVAILABLE);
+            } else {
+                response.line(UNAVAILABLE);
+            }
+            OutputStream out = sock.getOutputStream();
+            response.writeTo(out);
+            out.flush();
+            sock.shutdownOutput();
+            byte[] drain = new byte[512];
+            try {
+                while (in.read(drain) >= 0) {
+                    // drain until the client hangs up */
+                }
+            } catch (SocketTimeoutException x) {
+                // it did not, close anyway */
+            }
+        } catch (IOException ioe) {
+            ServerLog.warn(ioe.toString());
+        }
+    }
+
+    /**
+     * Checks whether the server is taking requests right now. Used before
+     * anything is read from the client, so a shutdown or maintenance answer
+     * can be sent straight away.
+     *
+     * @param config snapshot of the request
+     * @return message to send back to the client, or null if the server is
+     * serving jokes/proverbs
+     */
+    static String unavailableMessage(ServerConfig config) {
+        if (config.controlSwitch != true) {
+            ServerLog.info("Server Shutdown mode.");
+            return "The server is shutting down, Goodbye!";
+        } else if (config.mode == ServerConfig.MAINTENANCE_MODE) {
+            // if server is in maintenance mode just send back message to try back later */
+            ServerLog.info("Maintenance Mode: Request from Client.");
+            return UNAVAILABLE;
+        }
+        return null;
+    }
+
+    /**
+     * Serves one request for a user: picks the joke/proverb to send and marks
+     * it as sent in the user state, as one step in the UserStateStore. This
+     * holds no reference to the socket, so it can be run by a Worker thread or
+     * by a NioServer loop.
+     *
+     * @param userName name of user sent over by the client
+     * @param config snapshot of the request
+     * @param out buffer the joke/proverb line is rendered into
+     */
+    static void serve(String userName, ServerConfig config, ResponseBuffer out) {
+        long started = System.nanoTime();
+        connected(userName);
+        ServerMetrics.since(config.mode, ServerMetrics.LOOKUP, started);
+        out.setUser(userName);
+        nextFor(userName, config, out);
+    }
+
+    /**
+     * Logs a user connecting, telling new users from known ones. The state
+     * of a new user is created by the store on its first request.
+     *
+     * @param userName name of user
+     */
+    static void connected(String userName) {
+        // checks if the server has a state stored for the user */
+        if (JokeServer.checkUser(userName)) {
+            ServerLog.info(userName, " has connected.");
+        } else {
+            ServerLog.info("New User: ", userName, " has connected.");
+        }
+    }
+
+    /**
+     * Picks a joke/proverb the user has not seen, marks it as seen and renders
+     * it. Starts over once everything has been seen.
+     *
+     * @param userName name of user
+     * @param config snapshot of the request, its mode picks the catalog
+     * @param out buffer the joke/proverb line is rendered into, its user name
+     * already set
+     */
+    static void nextFor(String userName, ServerConfig config, ResponseBuffer out) {
+        // the pick and the render use the same catalog, whatever the admin does meanwhile */
+        int category = config.category();
+        long started = System.nanoTime();
+        int count = JokeServer.getStore().takeNext(userName, category);
+        long picked = ServerMetrics.since(config.mode, ServerMetrics.SELECT, started);
+        // render the joke/proverb for the count and username */
+        JokeServer.getCatalog(category).renderTo(count, out);
+        out.endLine();
+        ServerMetrics.since(config.mode, ServerMetrics.RENDER, picked);
+    }
+
+    /**
+     * Picks up to size jokes/proverbs the user has not seen, with no repeats,
+     * marks them all as seen and renders them. If everything has been seen the
+     * record is flushed first, just as for a single request. The batch is
+     * rendered as an items header line with the number of jokes/proverbs,
+     * then one line each.
+     *
+     * @param userName name of user
+     * @param config snapshot of the request, its mode picks the catalog
+     * @param size largest number of jokes/proverbs to pick
+     * @param out buffer the batch is rendered into, its user name already set
+     */
+    static void nextBatch(String userName, ServerConfig config, int size, ResponseBuffer out) {
+        int category = config.category();
+        long started = System.nanoTime();
+        int[] picked = JokeServer.getStore().takeBatch(userName, category, size);
+        long selected = ServerMetrics.since(config.mode, ServerMetrics.SELECT, started);
+        Catalog catalog = JokeServer.getCatalog(category);
+        out.line(ClientSession.ITEMS_BYTES, picked.length);
+        for (int count : picked) {
+            catalog.renderTo(count, out);
+            out.endLine();
+        }
+        ServerMetrics.since(config.mode, ServerMetrics.RENDER, selected);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * ResponseBufferTest.java
+ * Tests of the byte rendering of the Joke Server, by Westropp
+ */
+package jokes;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Checks that rendering a catalog through a ResponseBuffer gives exactly the
+ * bytes PrintStream.println(String.format(template, userName)) gave before
+ * the responses were rendered as bytes, for every item of the built in
+ * catalogs and a plain, a missing, a non-ASCII and an empty user name. The
+ * UTF-8 rendering of binary frames is checked the same way.
+ *
+ * @author Kevin Patrick Westropp
+ */
+public class ResponseBufferTest {
+
+    private static final String[] NAMES = {"Kevin", null, "Zo\u00eb", ""}; // user names rendered */
+
+    @Test
+    public void jokesRenderAsFormatAndPrintlnDid() {
+        assertRendersAsFormat(Catalog.builtInJokes());
+    }
+
+    @Test
+    public void proverbsRenderAsFormatAndPrintlnDid() {
+        assertRendersAsFormat(Catalog.builtInProverbs());
+    }
+
+    /**
+     * Compares every item of a catalog, for every test name, with what
+     * String.format and println make of its template, and with the UTF-8
+     * bytes of the formatted item.
+     *
+     * @param catalog catalog to check
+     */
+    private static void assertRendersAsFormat(Catalog catalog) {
+        ResponseBuffer buffer = new ResponseBuffer();
+        for (int i = 0; i < catalog.size(); i++) {
+            String template = StandardCharsets.UTF_8.decode(catalog.templateBytes(i)).toString();
+            for (String userName : NAMES) {
+                byte[] expected = (String.format(template, userName) + System.lineSeparator()).getBytes(ResponseBuffer.CHARSET);
+                buffer.reset();
+                buffer.setUser(userName);
+                catalog.renderTo(i, buffer);
+                buffer.endLine();
+                assertArrayEquals("item " + i + " for " + userName, expected,
+                        Arrays.copyOf(buffer.array(), buffer.length()));
+                buffer.reset();
+                buffer.setUserUtf8(userName);
+                catalog.renderUtf8(i, buffer);
+                assertArrayEquals("UTF-8 item " + i + " for " + userName,
+                        String.format(template, userName).getBytes(StandardCharsets.UTF_8),
+                        Arrays.copyOf(buffer.array(), buffer.length()));
+            }
+        }
+    }
+}